@@ -0,0 +1,357 @@
+package HTTPClient;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The paths of the authorization infos of one context, indexed for the
+ * preemptive selection in {@link AuthorizationInfo#findBest(RoRequest)}. For
+ * each host and port the directories of the paths form a tree; each node
+ * holds the infos with a path in that directory, the infos per file name in
+ * that directory, and the nearest node below it (or itself) holding any
+ * info. Finding the best info for a request therefore only walks the
+ * directories of the request's path.
+ *
+ * <P>Lookups don't lock: the children and files are kept in concurrent maps
+ * and the infos of a node in an array which is replaced, never modified.
+ * Changes are serialized on the index.
+ */
+final class AuthPathIndex
+	{
+		private static final AuthorizationInfo[] NO_INFOS = new AuthorizationInfo[0];
+
+		/** the root directory per server: "host:port" -> Node */
+		private final ConcurrentHashMap servers = new ConcurrentHashMap();
+
+		/**
+		 * Returns the info to send preemptively for the given path. This is an
+		 * info with exactly that path if there is one, else one with a path in
+		 * the same directory, else the one whose directory is the nearest parent
+		 * or child directory (counted in path segments). On a tie the parent
+		 * wins.
+		 *
+		 * @param host
+		 *          the server's host
+		 * @param port
+		 *          the server's port
+		 * @param path
+		 *          the path of the request, without query and fragment
+		 * @return the best info, or null if there is none
+		 */
+		AuthorizationInfo findBest(String host, int port, String path)
+			{
+				Node node = (Node) servers.get(host + ':' + port);
+				if (node == null)
+					{
+						return null;
+					}
+
+				AuthorizationInfo parent = null;
+				int parent_depth = 0, depth = 0;
+
+				AuthorizationInfo[] infos = node.infos;
+				if (infos.length > 0)
+					{
+						parent = infos[0];
+					}
+
+				int last = path.lastIndexOf('/'), start = 0;
+				while (start <= last)
+					{
+						int end = path.indexOf('/', start);
+						node = (Node) node.children.get(path.substring(start, end));
+						if (node == null)
+							{
+								return parent;
+							}
+						depth++;
+
+						infos = node.infos;
+						if (infos.length > 0)
+							{
+								parent = infos[0];
+								parent_depth = depth;
+							}
+						start = end + 1;
+					}
+
+				// node is now the request's directory
+				AuthorizationInfo[] exact = (AuthorizationInfo[]) node.files.get(path.substring(last + 1));
+				if (exact != null)
+					{
+						return exact[0];
+					}
+
+				Nearest child = node.nearest;
+				if (child == null || (parent != null && depth - parent_depth <= child.distance))
+					{
+						return parent;
+					}
+				return child.info;
+			}
+
+		/**
+		 * Adds the given info under all its paths. The info must not be in
+		 * the index yet.
+		 *
+		 * @param info
+		 *          the info
+		 */
+		synchronized void add(AuthorizationInfo info)
+			{
+				info.setIn(this, true);
+
+				String[] paths = info.getPaths();
+				for (int idx = 0; idx < paths.length; idx++)
+					{
+						addPath0(info, paths[idx]);
+					}
+			}
+
+		/**
+		 * Adds a path to the given info, if the info is in this index.
+		 *
+		 * @param info
+		 *          the info
+		 * @param path
+		 *          the path
+		 */
+		synchronized void addPath(AuthorizationInfo info, String path)
+			{
+				if (info.isIn(this))
+					{
+						addPath0(info, path);
+					}
+			}
+
+		private void addPath0(AuthorizationInfo info, String path)
+			{
+				String key = info.getHost() + ':' + info.getPort();
+				Node node = (Node) servers.get(key);
+				if (node == null)
+					{
+						node = new Node(null, null);
+						servers.put(key, node);
+					}
+
+				int last = path.lastIndexOf('/'), start = 0;
+				while (start <= last)
+					{
+						int end = path.indexOf('/', start);
+						String segment = path.substring(start, end);
+						Node child = (Node) node.children.get(segment);
+						if (child == null)
+							{
+								child = new Node(node, segment);
+								node.children.put(segment, child);
+							}
+						node = child;
+						start = end + 1;
+					}
+
+				String file = path.substring(last + 1);
+				node.files.put(file, append((AuthorizationInfo[]) node.files.get(file), info));
+
+				if (!contains(node.infos, info))
+					{
+						node.infos = append(node.infos, info);
+
+						// this node may now be the nearest one for its ancestors
+						int distance = 0;
+						for (Node anc = node; anc != null; anc = anc.parent, distance++)
+							{
+								if (anc.nearest != null && anc.nearest.distance <= distance)
+									{
+										break;
+									}
+								anc.nearest = new Nearest(distance, info);
+							}
+					}
+			}
+
+		/**
+		 * Removes the given info, if it's in this index.
+		 *
+		 * @param info
+		 *          the info
+		 */
+		synchronized void remove(AuthorizationInfo info)
+			{
+				if (!info.isIn(this))
+					{
+						return;
+					}
+				info.setIn(this, false);
+
+				Node root = (Node) servers.get(info.getHost() + ':' + info.getPort());
+				if (root == null)
+					{
+						return;
+					}
+
+				String[] paths = info.getPaths();
+				for (int idx = 0; idx < paths.length; idx++)
+					{
+						String path = paths[idx];
+
+						Node node = root;
+						int last = path.lastIndexOf('/'), start = 0;
+						while (node != null && start <= last)
+							{
+								int end = path.indexOf('/', start);
+								node = (Node) node.children.get(path.substring(start, end));
+								start = end + 1;
+							}
+						if (node == null)
+							{
+								continue;
+							}
+
+						String file = path.substring(last + 1);
+						AuthorizationInfo[] exact = remove((AuthorizationInfo[]) node.files.get(file), info);
+						if (exact.length == 0)
+							{
+								node.files.remove(file);
+							}
+						else
+							{
+								node.files.put(file, exact);
+							}
+
+						node.infos = remove(node.infos, info);
+
+						// recompute the nearest infos upwards, dropping empty nodes
+						for (; node != null; node = node.parent)
+							{
+								node.nearest = nearest(node);
+								if (node.nearest == null && node.files.isEmpty() && node.parent != null)
+									{
+										node.parent.children.remove(node.segment);
+									}
+							}
+					}
+
+				if (root.nearest == null && root.files.isEmpty() && root.children.isEmpty())
+					{
+						servers.remove(info.getHost() + ':' + info.getPort());
+					}
+			}
+
+		/**
+		 * @return the nearest info at or below the given node, going by its
+		 *         own infos and its children's nearest infos
+		 */
+		private static Nearest nearest(Node node)
+			{
+				if (node.infos.length > 0)
+					{
+						return new Nearest(0, node.infos[0]);
+					}
+
+				Nearest best = null;
+				for (Iterator iter = node.children.values().iterator(); iter.hasNext();)
+					{
+						Nearest child = ((Node) iter.next()).nearest;
+						if (child != null && (best == null || child.distance + 1 < best.distance))
+							{
+								best = new Nearest(child.distance + 1, child.info);
+							}
+					}
+				return best;
+			}
+
+		private static boolean contains(AuthorizationInfo[] list, AuthorizationInfo info)
+			{
+				for (int idx = 0; idx < list.length; idx++)
+					{
+						if (list[idx] == info)
+							{
+								return true;
+							}
+					}
+				return false;
+			}
+
+		private static AuthorizationInfo[] append(AuthorizationInfo[] list, AuthorizationInfo info)
+			{
+				if (list == null)
+					{
+						return new AuthorizationInfo[] { info };
+					}
+				if (contains(list, info))
+					{
+						return list;
+					}
+
+				AuthorizationInfo[] tmp = new AuthorizationInfo[list.length + 1];
+				System.arraycopy(list, 0, tmp, 0, list.length);
+				tmp[list.length] = info;
+				return tmp;
+			}
+
+		private static AuthorizationInfo[] remove(AuthorizationInfo[] list, AuthorizationInfo info)
+			{
+				if (list == null)
+					{
+						return NO_INFOS;
+					}
+
+				for (int idx = 0; idx < list.length; idx++)
+					{
+						if (list[idx] == info)
+							{
+								AuthorizationInfo[] tmp = new AuthorizationInfo[list.length - 1];
+								System.arraycopy(list, 0, tmp, 0, idx);
+								System.arraycopy(list, idx + 1, tmp, idx, list.length - idx - 1);
+								return tmp;
+							}
+					}
+				return list;
+			}
+
+		/**
+		 * A directory.
+		 */
+		private static final class Node
+			{
+				final Node parent;
+
+				/** the name of this directory in the parent */
+				final String segment;
+
+				/** the subdirectories: String -> Node */
+				final ConcurrentHashMap children = new ConcurrentHashMap();
+
+				/** the infos with a path in this directory, per file name: String -> AuthorizationInfo[] */
+				final ConcurrentHashMap files = new ConcurrentHashMap();
+
+				/** the infos with a path in this directory */
+				volatile AuthorizationInfo[] infos = NO_INFOS;
+
+				/** the nearest info at or below this directory, or null */
+				volatile Nearest nearest = null;
+
+				Node(Node parent, String segment)
+					{
+						this.parent = parent;
+						this.segment = segment;
+					}
+			}
+
+		/**
+		 * An info and the number of directories between it and the node
+		 * referring to it.
+		 */
+		private static final class Nearest
+			{
+				final int distance;
+
+				final AuthorizationInfo info;
+
+				Nearest(int distance, AuthorizationInfo info)
+					{
+						this.distance = distance;
+						this.info = info;
+					}
+			}
+	}
@@ -33,7 +33,7 @@ package HTTPClient;
 import java.net.ProtocolException;
 import java.util.Vector;
 import java.util.Hashtable;
-import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
@@ -94,6 +94,9 @@ public class AuthorizationInfo implements GlobalConstants, Cloneable
     /** Holds the list of lists of authorization info structures */
     private static Hashtable     CntxtList = new Hashtable();
 
+    /** Holds the path index of the auth info per context */
+    private static ConcurrentHashMap IndexList = new ConcurrentHashMap();
+
     /** A pointer to the handler to be called when we need authorization info */
     private static AuthorizationHandler
 				 AuthHandler = new DefaultAuthHandler();
@@ -131,7 +134,10 @@ public class AuthorizationInfo implements GlobalConstants, Cloneable
     private Object extra_info = null;
 
     /** a list of paths where this realm has been known to be required */
-    private String[] paths = new String[0];
+    private volatile String[] paths = new String[0];
+
+    /** the indexes this info is in */
+    private volatile AuthPathIndex[] indexes = new AuthPathIndex[0];
 
 
     // Constructors
@@ -290,7 +296,7 @@ public class AuthorizationInfo implements GlobalConstants, Cloneable
      * @param  context      the context this info is associated with
      * @return a pointer to the authorization data or null if not found
      */
-    public static synchronized AuthorizationInfo getAuthorization(
+    public static AuthorizationInfo getAuthorization(
 						String host, int port,
 						String scheme, String realm,
 						Object context)
@@ -356,7 +362,7 @@ public class AuthorizationInfo implements GlobalConstants, Cloneable
      * @return a pointer to the authorization data or null if not found
      * @exception AuthSchemeNotImplException If thrown by the AuthHandler.
      */
-    static synchronized AuthorizationInfo getAuthorization(
+    static AuthorizationInfo getAuthorization(
 				    AuthorizationInfo auth_info, RoRequest req,
 				    RoResponse resp, boolean proxy,
 				    boolean query_auth_h)
@@ -372,7 +378,15 @@ public class AuthorizationInfo implements GlobalConstants, Cloneable
 	    (AuthorizationInfo) AuthList.get(auth_info);
 
 	if (new_info == null  &&  query_auth_h)
-	    new_info = queryAuthHandler(auth_info, req, resp, proxy);
+	{
+	    // only one query at a time; somebody may have beaten us to it
+	    synchronized (AuthorizationInfo.class)
+	    {
+		new_info = (AuthorizationInfo) AuthList.get(auth_info);
+		if (new_info == null)
+		    new_info = queryAuthHandler(auth_info, req, resp, proxy);
+	    }
+	}
 
 	return new_info;
     }
@@ -428,25 +442,33 @@ public class AuthorizationInfo implements GlobalConstants, Cloneable
 					Object context)
     {
 	Hashtable AuthList = HttpClientUtil.getList(CntxtList, context);
+	AuthPathIndex index = getIndex(context);
 
-	// merge path list
-	AuthorizationInfo old_info =
-			    (AuthorizationInfo) AuthList.get(auth_info);
-	if (old_info != null)
+	synchronized (index)
 	{
-	    int ol = old_info.paths.length,
-		al = auth_info.paths.length;
-
-	    if (al == 0)
-		auth_info.paths = old_info.paths;
-	    else
+	    // merge path list
+	    AuthorizationInfo old_info =
+				(AuthorizationInfo) AuthList.get(auth_info);
+	    if (old_info != null)
 	    {
-		auth_info.paths = HttpClientUtil.resizeArray(auth_info.paths, al+ol);
-		System.arraycopy(old_info.paths, 0, auth_info.paths, al, ol);
+		int ol = old_info.paths.length,
+		    al = auth_info.paths.length;
+
+		if (al == 0)
+		    auth_info.paths = old_info.paths;
+		else if (old_info != auth_info)
+		{
+		    String[] paths = HttpClientUtil.resizeArray(auth_info.paths, al+ol);
+		    System.arraycopy(old_info.paths, 0, paths, al, ol);
+		    auth_info.paths = paths;
+		}
+
+		index.remove(old_info);
 	    }
-	}
 
-	AuthList.put(auth_info, auth_info);
+	    AuthList.put(auth_info, auth_info);
+	    index.add(auth_info);
+	}
     }
 
 
@@ -678,7 +700,15 @@ public class AuthorizationInfo implements GlobalConstants, Cloneable
 					   Object context)
     {
 	Hashtable AuthList = HttpClientUtil.getList(CntxtList, context);
-	AuthList.remove(auth_info);
+	AuthPathIndex index = getIndex(context);
+
+	synchronized (index)
+	{
+	    AuthorizationInfo old_info =
+				(AuthorizationInfo) AuthList.remove(auth_info);
+	    if (old_info != null)
+		index.remove(old_info);
+	}
     }
 
 
@@ -726,6 +756,9 @@ public class AuthorizationInfo implements GlobalConstants, Cloneable
      * and the one with either the nearest direct parent or child is chosen.
      * This is used for preemptively sending auth info.
      *
+     * <P>The paths are looked up in an index per context, so this only
+     * costs as much as the depth of the request's path, and doesn't lock.
+     *
      * @param  req  the Request
      * @return an AuthorizationInfo containing the info for the best match,
      *         or null if none found.
@@ -733,100 +766,113 @@ public class AuthorizationInfo implements GlobalConstants, Cloneable
     static AuthorizationInfo findBest(RoRequest req)
     {
 	String path = HttpClientUtil.getPath(req.getRequestURI());
-	String host = req.getConnection().getHost();
-	int    port = req.getConnection().getPort();
+	HTTPConnection con = req.getConnection();
 
+	return getIndex(con.getContext()).findBest(con.getHost(),
+						   con.getPort(), path);
+    }
 
-	// First search for an exact match
 
-	Hashtable AuthList =
-		    HttpClientUtil.getList(CntxtList, req.getConnection().getContext());
-	Enumeration list = AuthList.elements();
-	while (list.hasMoreElements())
+    /**
+     * Returns the path index for the given context, creating it if
+     * necessary.
+     *
+     * @param context the context Object
+     */
+    private static AuthPathIndex getIndex(Object context)
+    {
+	AuthPathIndex index = (AuthPathIndex) IndexList.get(context);
+	if (index == null)
 	{
-	    AuthorizationInfo info = (AuthorizationInfo) list.nextElement();
-
-	    if (!info.Host.equals(host)  ||  info.Port != port)
-		continue;
-
-	    String[] paths = info.paths;
-	    for (int idx=0; idx<paths.length; idx++)
-	    {
-		if (path.equals(paths[idx]))
-		    return info;
-	    }
+	    index = new AuthPathIndex();
+	    AuthPathIndex old =
+			(AuthPathIndex) IndexList.putIfAbsent(context, index);
+	    if (old != null)
+		index = old;
 	}
 
+	return index;
+    }
 
-	// Now find the closest parent or child
 
-	AuthorizationInfo best = null;
-	String base = path.substring(0, path.lastIndexOf('/')+1);
-	int    min  = Integer.MAX_VALUE;
+    /**
+     * Adds the path from the given resource to our path list.
+     *
+     * @param resource the resource from which to extract the path
+     */
+    void addPath(String resource)
+    {
+	String path = HttpClientUtil.getPath(resource);
+	AuthPathIndex[] in;
 
-	list = AuthList.elements();
-	while (list.hasMoreElements())
+	synchronized (this)
 	{
-	    AuthorizationInfo info = (AuthorizationInfo) list.nextElement();
+	    // First check that we don't already have this one
+	    for (int idx=0; idx<paths.length; idx++)
+		if (paths[idx].equals(path)) return;
 
-	    if (!info.Host.equals(host)  ||  info.Port != port)
-		continue;
+	    // Ok, add it
+	    String[] tmp = HttpClientUtil.resizeArray(paths, paths.length+1);
+	    tmp[tmp.length-1] = path;
+	    paths = tmp;
 
-	    String[] paths = info.paths;
-	    for (int idx=0; idx<paths.length; idx++)
-	    {
-		// strip the last path segment, leaving a trailing "/"
-		String ibase =
-			paths[idx].substring(0, paths[idx].lastIndexOf('/')+1);
+	    in = indexes;
+	}
 
-		if (base.equals(ibase))
-		    return info;
+	// tell the indexes outside the lock, they lock themselves
+	for (int idx=0; idx<in.length; idx++)
+	    in[idx].addPath(this, path);
+    }
 
-		if (base.startsWith(ibase))		// found a parent
-		{
-		    int num_seg = 0, pos = ibase.length()-1;
-		    while ((pos = base.indexOf('/', pos+1)) != -1)  num_seg++;
 
-		    if (num_seg < min)
-		    {
-			min  = num_seg;
-			best = info;
-		    }
-		}
-		else if (ibase.startsWith(base))	// found a child
-		{
-		    int num_seg = 0, pos = base.length();
-		    while ((pos = ibase.indexOf('/', pos+1)) != -1)  num_seg++;
+    /**
+     * @return the paths where this realm has been known to be required
+     */
+    final String[] getPaths()
+    {
+	return paths;
+    }
 
-		    if (num_seg < min)
-		    {
-			min  = num_seg;
-			best = info;
-		    }
-		}
-	    }
-	}
 
-	return best;
+    /**
+     * @param  index an index
+     * @return true if this info is in the given index
+     */
+    final boolean isIn(AuthPathIndex index)
+    {
+	AuthPathIndex[] in = indexes;
+	for (int idx=0; idx<in.length; idx++)
+	    if (in[idx] == index) return true;
+	return false;
     }
 
 
     /**
-     * Adds the path from the given resource to our path list.
+     * Records whether this info is in the given index. Only invoked by the
+     * index.
      *
-     * @param resource the resource from which to extract the path
+     * @param index the index
+     * @param in    whether this info is in it
      */
-    synchronized void addPath(String resource)
+    final synchronized void setIn(AuthPathIndex index, boolean in)
     {
-	String path = HttpClientUtil.getPath(resource);
+	if (in == isIn(index))
+	    return;
 
-	// First check that we don't already have this one
-	for (int idx=0; idx<paths.length; idx++)
-	    if (paths[idx].equals(path)) return;
-
-	// Ok, add it
-	paths = HttpClientUtil.resizeArray(paths, paths.length+1);
-	paths[paths.length-1] = path;
+	if (in)
+	{
+	    AuthPathIndex[] tmp = new AuthPathIndex[indexes.length+1];
+	    System.arraycopy(indexes, 0, tmp, 0, indexes.length);
+	    tmp[indexes.length] = index;
+	    indexes = tmp;
+	}
+	else
+	{
+	    AuthPathIndex[] tmp = new AuthPathIndex[indexes.length-1];
+	    for (int idx=0, cnt=0; idx<indexes.length; idx++)
+		if (indexes[idx] != index) tmp[cnt++] = indexes[idx];
+	    indexes = tmp;
+	}
     }
 
 
@@ -1213,6 +1259,7 @@ public class AuthorizationInfo implements GlobalConstants, Cloneable
 		{ }
 	    ai.paths = new String[paths.length];
 	    System.arraycopy(paths, 0, ai.paths, 0, paths.length);
+	    ai.indexes = new AuthPathIndex[0];
 	}
 	catch (CloneNotSupportedException cnse)
 	    { throw new InternalError(cnse.toString()); /* shouldn't happen */ }
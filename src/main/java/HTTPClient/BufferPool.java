@@ -0,0 +1,253 @@
+package HTTPClient;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of byte arrays used as I/O buffers, so that connections and
+ * transfers which come and go don't each allocate their own buffers. The
+ * buffers are kept in size classes of powers of 2 from 512 bytes to 64
+ * kilobytes; a request is served with a buffer of the smallest class which
+ * is large enough, so the buffer returned may be larger than requested.
+ * Larger requests are not pooled.
+ *
+ * <P>Each size class holds at most a given number of bytes (256 kilobytes
+ * by default); buffers returned beyond that are left to the garbage
+ * collector. The limit may be set with the property
+ * <var>HTTPClient.bufferPoolSize</var> or with {@link #setMaxPooledBytes(int)};
+ * 0 disables pooling.
+ *
+ * <P>The pool is thread-safe and doesn't lock. A buffer must not be used
+ * anymore once it has been returned.
+ *
+ * <P>The counters may be used to check how effective the pool is, e.g. by
+ * logging {@link #getStatistics()}.
+ */
+public final class BufferPool implements GlobalConstants
+	{
+		/** log2 of the smallest size class */
+		private static final int MIN_SHIFT = 9;
+
+		/** log2 of the largest size class */
+		private static final int MAX_SHIFT = 16;
+
+		/** the pooled buffers, per size class */
+		private static final ConcurrentLinkedQueue[] Pools = new ConcurrentLinkedQueue[MAX_SHIFT - MIN_SHIFT + 1];
+
+		/** the number of pooled buffers, per size class */
+		private static final AtomicInteger[] Counts = new AtomicInteger[Pools.length];
+
+		/** the maximum number of bytes pooled per size class */
+		private static volatile int MaxPooledBytes = 256 * 1024;
+
+		private static final AtomicLong Borrowed = new AtomicLong(), Reused = new AtomicLong(),
+				Returned = new AtomicLong(), Discarded = new AtomicLong();
+
+		static
+			{
+				for (int idx = 0; idx < Pools.length; idx++)
+					{
+						Pools[idx] = new ConcurrentLinkedQueue();
+						Counts[idx] = new AtomicInteger();
+					}
+
+				try
+					{
+						MaxPooledBytes = Math.max(Integer.getInteger("HTTPClient.bufferPoolSize", MaxPooledBytes).intValue(), 0);
+						if (DebugConn)
+							{
+								HttpClientUtil.logLine("Conn:  pooling up to " + MaxPooledBytes + " bytes of buffers per size");
+							}
+					}
+				catch (Exception e)
+					{
+					}
+			}
+
+		private BufferPool()
+			{
+			}
+
+		/**
+		 * @return the index of the size class for the given size, or -1 if the
+		 *         size is too large to be pooled
+		 */
+		private static int sizeClass(int size)
+			{
+				if (size <= (1 << MIN_SHIFT))
+					{
+						return 0;
+					}
+				if (size > (1 << MAX_SHIFT))
+					{
+						return -1;
+					}
+				return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+			}
+
+		/**
+		 * Gets a buffer of at least the given size. If the pool has one it is
+		 * reused, otherwise a new one is allocated. The contents of the buffer
+		 * are undefined.
+		 *
+		 * @param size
+		 *          the minimum size
+		 * @return the buffer
+		 */
+		static byte[] borrow(int size)
+			{
+				Borrowed.incrementAndGet();
+
+				int cls = sizeClass(size);
+				if (cls < 0)
+					{
+						return new byte[size];
+					}
+
+				byte[] buf = (byte[]) Pools[cls].poll();
+				if (buf != null)
+					{
+						Counts[cls].decrementAndGet();
+						Reused.incrementAndGet();
+						return buf;
+					}
+
+				return new byte[1 << (cls + MIN_SHIFT)];
+			}
+
+		/**
+		 * Returns a buffer to the pool. Buffers whose size is not that of a size
+		 * class, and buffers for which there's no more room in the pool, are
+		 * dropped. The caller must not use the buffer anymore.
+		 *
+		 * @param buf
+		 *          the buffer; may be null
+		 */
+		static void release(byte[] buf)
+			{
+				if (buf == null)
+					{
+						return;
+					}
+
+				int cls = sizeClass(buf.length);
+				if (cls < 0 || buf.length != (1 << (cls + MIN_SHIFT)))
+					{
+						return;
+					}
+
+				Returned.incrementAndGet();
+				if ((Counts[cls].incrementAndGet() << (cls + MIN_SHIFT)) > MaxPooledBytes)
+					{
+						Counts[cls].decrementAndGet();
+						Discarded.incrementAndGet();
+						return;
+					}
+
+				Pools[cls].offer(buf);
+			}
+
+		/**
+		 * Sets the maximum number of bytes kept per size class. Lowering the
+		 * limit does not drop buffers which are already pooled; use
+		 * {@link #clear()} for that.
+		 *
+		 * @param max
+		 *          the maximum number of bytes; 0 disables pooling
+		 */
+		public static void setMaxPooledBytes(int max)
+			{
+				MaxPooledBytes = Math.max(max, 0);
+			}
+
+		/**
+		 * @return the maximum number of bytes kept per size class
+		 */
+		public static int getMaxPooledBytes()
+			{
+				return MaxPooledBytes;
+			}
+
+		/**
+		 * Drops all pooled buffers.
+		 */
+		public static void clear()
+			{
+				for (int idx = 0; idx < Pools.length; idx++)
+					{
+						while (Pools[idx].poll() != null)
+							{
+								Counts[idx].decrementAndGet();
+							}
+					}
+			}
+
+		/**
+		 * @return the number of buffers handed out
+		 */
+		public static long getBorrowCount()
+			{
+				return Borrowed.get();
+			}
+
+		/**
+		 * @return the number of buffers handed out which were taken from the
+		 *         pool instead of being allocated
+		 */
+		public static long getReuseCount()
+			{
+				return Reused.get();
+			}
+
+		/**
+		 * @return the number of pooled-size buffers given back
+		 */
+		public static long getReturnCount()
+			{
+				return Returned.get();
+			}
+
+		/**
+		 * @return the number of buffers given back which were dropped because
+		 *         the pool was full
+		 */
+		public static long getDiscardCount()
+			{
+				return Discarded.get();
+			}
+
+		/**
+		 * @return the number of bytes currently held by the pool
+		 */
+		public static long getPooledBytes()
+			{
+				long total = 0;
+				for (int idx = 0; idx < Counts.length; idx++)
+					{
+						total += (long) Counts[idx].get() << (idx + MIN_SHIFT);
+					}
+				return total;
+			}
+
+		/**
+		 * @return a string with the counters and the number of buffers pooled
+		 *         per size class
+		 */
+		public static String getStatistics()
+			{
+				StringBuffer buf = new StringBuffer("BufferPool[borrowed=");
+				buf.append(getBorrowCount()).append(",reused=").append(getReuseCount());
+				buf.append(",returned=").append(getReturnCount()).append(",discarded=").append(getDiscardCount());
+				buf.append(",pooled=").append(getPooledBytes()).append(",classes={");
+				for (int idx = 0; idx < Counts.length; idx++)
+					{
+						if (idx > 0)
+							{
+								buf.append(", ");
+							}
+						buf.append(1 << (idx + MIN_SHIFT)).append('=').append(Counts[idx].get());
+					}
+				return buf.append("}]").toString();
+			}
+	}
@@ -0,0 +1,363 @@
+package HTTPClient;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A DNS resolver which caches the results of another resolver. Successful
+ * lookups are cached for the positive TTL and failed lookups for the
+ * negative TTL. When a successful lookup has expired, the stale addresses
+ * are still returned for up to the stale time while a fresh lookup is done
+ * in the background, so that connection setup to frequently used hosts
+ * doesn't wait for the name server. The background lookups run on a small
+ * pool of daemon threads shared by all caches, separate from the one used
+ * for asynchronous requests. If the background lookup fails the stale
+ * addresses are kept until the stale time has passed. The cache holds at
+ * most a given number of hosts; the least recently used host is evicted
+ * first.
+ *
+ * <P>
+ * Example:
+ *
+ * <PRE>
+ * HTTPConnection.setDefaultDNSResolver(new CachingDNSResolver());
+ * </PRE>
+ *
+ * @see HTTPConnection#setDNSResolver(IHTTPClientDNSResolver)
+ * @see HTTPConnection#setDefaultDNSResolver(IHTTPClientDNSResolver)
+ */
+public class CachingDNSResolver implements IHTTPClientDNSResolver, GlobalConstants
+	{
+		/** the threads doing the background refreshes; created lazily */
+		private static ThreadPoolExecutor RefreshExecutor = null;
+
+		/** the resolver whose results are cached; null = InetAddress */
+		private IHTTPClientDNSResolver resolver;
+
+		/** how long successful lookups are cached, in milliseconds */
+		private long ttl;
+
+		/** how long failed lookups are cached, in milliseconds */
+		private long negative_ttl;
+
+		/** how long expired addresses may still be used while refreshing */
+		private long stale_time;
+
+		/** the maximum number of hosts cached */
+		private int max_entries;
+
+		/** host -> CacheEntry, in access order */
+		private LinkedHashMap cache;
+
+		private long hits = 0;
+
+		private long misses = 0;
+
+		/**
+		 * Creates a new cache which caches successful lookups for 60 seconds,
+		 * failed lookups for 10 seconds, serves stale addresses for up to 60
+		 * seconds while refreshing them, and holds up to 512 hosts. The lookups
+		 * are done using <code>InetAddress.getAllByName()</code>.
+		 */
+		public CachingDNSResolver()
+			{
+				this(null, 60000, 10000, 60000, 512);
+			}
+
+		/**
+		 * Creates a new cache.
+		 *
+		 * @param resolver
+		 *          the resolver used for the actual lookups; if null then
+		 *          <code>InetAddress.getAllByName()</code> is used
+		 * @param ttl
+		 *          the time in milliseconds successful lookups are cached
+		 * @param negative_ttl
+		 *          the time in milliseconds failed lookups are cached; 0
+		 *          disables caching of failed lookups
+		 * @param stale_time
+		 *          the time in milliseconds after the ttl during which the
+		 *          cached addresses are still returned while being refreshed in
+		 *          the background; 0 disables background refreshing
+		 * @param max_entries
+		 *          the maximum number of hosts cached
+		 */
+		public CachingDNSResolver(IHTTPClientDNSResolver resolver, long ttl, long negative_ttl, long stale_time,
+				int max_entries)
+			{
+				if (max_entries < 1)
+					{
+						throw new IllegalArgumentException("max_entries must be positive: " + max_entries);
+					}
+
+				this.resolver = resolver;
+				this.ttl = Math.max(ttl, 0);
+				this.negative_ttl = Math.max(negative_ttl, 0);
+				this.stale_time = Math.max(stale_time, 0);
+				this.max_entries = max_entries;
+				this.cache = new LinkedHashMap(16, 0.75f, true)
+					{
+						protected boolean removeEldestEntry(Map.Entry eldest)
+							{
+								return size() > CachingDNSResolver.this.max_entries;
+							}
+					};
+			}
+
+		/**
+		 * Looks up the addresses of the given host, using the cached addresses
+		 * if possible.
+		 *
+		 * @param host
+		 *          the host name
+		 * @return the host's addresses
+		 * @exception UnknownHostException
+		 *              if the host could not be resolved
+		 */
+		public InetAddress[] getAllByName(String host) throws UnknownHostException
+			{
+				String key = host.toLowerCase();
+				boolean refresh = false;
+				CacheEntry entry;
+
+				synchronized (this)
+					{
+						entry = (CacheEntry) cache.get(key);
+						long now = System.currentTimeMillis();
+						if (entry != null && now < entry.expires)
+							{
+								hits++;
+							}
+						else if (entry != null && entry.addrs != null && now < entry.expires + stale_time)
+							{
+								hits++;
+								if (!entry.refreshing)
+									{
+										entry.refreshing = true;
+										refresh = true;
+									}
+							}
+						else
+							{
+								misses++;
+								entry = null;
+							}
+					}
+
+				if (entry == null)
+					{
+						return lookup(key, host);
+					}
+
+				if (refresh)
+					{
+						refresh(key, host, entry);
+					}
+
+				if (entry.addrs == null)
+					{
+						throw new UnknownHostException(entry.message);
+					}
+				return (InetAddress[]) entry.addrs.clone();
+			}
+
+		/**
+		 * Does the actual lookup and caches the result.
+		 */
+		private InetAddress[] lookup(String key, String host) throws UnknownHostException
+			{
+				InetAddress[] addrs;
+				try
+					{
+						addrs = (resolver != null) ? resolver.getAllByName(host) : InetAddress.getAllByName(host);
+					}
+				catch (UnknownHostException uhe)
+					{
+						if (negative_ttl > 0)
+							{
+								put(key, new CacheEntry(null, uhe.getMessage(), negative_ttl));
+							}
+						throw uhe;
+					}
+
+				if (addrs == null || addrs.length == 0)
+					{
+						throw new UnknownHostException(host);
+					}
+
+				put(key, new CacheEntry((InetAddress[]) addrs.clone(), null, ttl));
+				return addrs;
+			}
+
+		/**
+		 * Refreshes the given entry in the background. If the refresh fails the
+		 * stale entry is left in place.
+		 */
+		private void refresh(final String key, final String host, final CacheEntry entry)
+			{
+				Runnable task = new Runnable()
+					{
+						public void run()
+							{
+								try
+									{
+										lookup(key, host);
+									}
+								catch (UnknownHostException uhe)
+									{
+										if (DebugConn)
+											{
+												HttpClientUtil.logLine("Conn:  Refreshing " + host + " failed: " + uhe);
+											}
+										synchronized (CachingDNSResolver.this)
+											{
+												if (cache.get(key) != entry)
+													{
+														cache.put(key, entry); // keep the stale entry
+													}
+											}
+									}
+								finally
+									{
+										// also after a RuntimeException from the resolver, so a later
+										// lookup tries again
+										synchronized (CachingDNSResolver.this)
+											{
+												entry.refreshing = false;
+											}
+									}
+							}
+					};
+
+				try
+					{
+						getRefreshExecutor().execute(task);
+					}
+				catch (RejectedExecutionException ree)
+					{
+						synchronized (this)
+							{
+								entry.refreshing = false;
+							}
+					}
+			}
+
+		/**
+		 * @return the executor for the background refreshes; its idle threads
+		 *         die after a while, and when its queue is full refreshes are
+		 *         rejected (and tried again on a later lookup)
+		 */
+		private static synchronized ThreadPoolExecutor getRefreshExecutor()
+			{
+				if (RefreshExecutor == null)
+					{
+						RefreshExecutor = new ThreadPoolExecutor(2, 2, 30L, TimeUnit.SECONDS, new ArrayBlockingQueue(64),
+								new ThreadFactory()
+									{
+										private int num = 0;
+
+										public synchronized Thread newThread(Runnable r)
+											{
+												Thread thread = new Thread(r, "HTTPClient-DNS-" + (num++));
+												thread.setDaemon(true);
+												return thread;
+											}
+									});
+						RefreshExecutor.allowCoreThreadTimeOut(true);
+					}
+
+				return RefreshExecutor;
+			}
+
+		private synchronized void put(String key, CacheEntry entry)
+			{
+				cache.put(key, entry);
+			}
+
+		/**
+		 * Removes the given host from the cache.
+		 *
+		 * @param host
+		 *          the host name
+		 */
+		public synchronized void remove(String host)
+			{
+				cache.remove(host.toLowerCase());
+			}
+
+		/**
+		 * Removes all hosts from the cache and resets the counters.
+		 */
+		public synchronized void clear()
+			{
+				cache.clear();
+				hits = 0;
+				misses = 0;
+			}
+
+		/**
+		 * @return the number of hosts currently cached
+		 */
+		public synchronized int size()
+			{
+				return cache.size();
+			}
+
+		/**
+		 * @return the number of lookups answered from the cache
+		 */
+		public synchronized long getHitCount()
+			{
+				return hits;
+			}
+
+		/**
+		 * @return the number of lookups which had to ask the resolver
+		 */
+		public synchronized long getMissCount()
+			{
+				return misses;
+			}
+
+		/**
+		 * @return a string containing the cache size and the counters
+		 */
+		public String toString()
+			{
+				synchronized (this)
+					{
+						return getClass().getName() + "[size=" + cache.size() + ",hits=" + hits + ",misses=" + misses + "]";
+					}
+			}
+
+		/**
+		 * A cached lookup result.
+		 */
+		private static final class CacheEntry
+			{
+				/** the addresses, or null if the lookup failed */
+				final InetAddress[] addrs;
+
+				/** the message of the UnknownHostException if the lookup failed */
+				final String message;
+
+				final long expires;
+
+				/** a background refresh is in progress; guarded by the resolver */
+				boolean refreshing = false;
+
+				CacheEntry(InetAddress[] addrs, String message, long ttl)
+					{
+						this.addrs = addrs;
+						this.message = message;
+						this.expires = System.currentTimeMillis() + ttl;
+					}
+			}
+	}
@@ -0,0 +1,716 @@
+package HTTPClient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * A pool of keep-alive sockets which can be shared by any number of
+ * HTTPConnections. Sockets are kept per route, where a route is the tuple
+ * (protocol, host, port, proxy, socks server, socket factory, context). When
+ * a response has been completely read and the connection may be kept alive,
+ * the socket is handed back to the pool instead of being kept by the
+ * connection, so that the next request to the same route - from any
+ * HTTPConnection - can reuse it.
+ *
+ * <P>The pool limits the number of sockets per route and in total. If no
+ * idle socket is available and no new socket may be opened the requesting
+ * thread waits; waiting threads are served in the order in which they
+ * arrived. Idle sockets are closed after the idle timeout has elapsed; this
+ * check is done lazily whenever the pool is used, or explicitly via
+ * <code>closeIdleConnections()</code>. A socket which has been idle for
+ * more than a second is probed before it's reused, in case the server has
+ * closed it in the meantime; sockets reused sooner are only checked for
+ * unexpected data.
+ *
+ * <P>A pool is enabled for all new HTTPConnections by setting the property
+ * <var>HTTPClient.useConnectionPool</var> to <var>true</var>, or via
+ * <code>HTTPConnection.setDefaultConnectionPool()</code> or
+ * <code>HTTPConnection.setConnectionPool()</code>.
+ *
+ * @see HTTPConnection#setConnectionPool(ConnectionPool)
+ */
+public class ConnectionPool implements GlobalConstants
+	{
+		/** the shared default pool */
+		private static ConnectionPool DefaultPool = null;
+
+		/** idle sockets are probed before reuse after this many milliseconds */
+		private static final long PROBE_AFTER_IDLE = 1000L;
+
+		/** maximum number of sockets (leased and idle) per route */
+		private int max_per_route;
+
+		/** maximum number of sockets (leased and idle) over all routes */
+		private int max_total;
+
+		/** idle sockets are closed after this many milliseconds */
+		private long idle_timeout;
+
+		/** the routes: Route -> RouteEntry */
+		private Hashtable routes = new Hashtable();
+
+		/** the number of sockets (leased and idle) over all routes */
+		private int total = 0;
+
+		/** the threads waiting for a socket, in order of arrival */
+		private Vector waiters = new Vector();
+
+		/**
+		 * Creates a new pool with a maximum of 4 sockets per route, 20 sockets
+		 * in total, and an idle timeout of 60 seconds.
+		 */
+		public ConnectionPool()
+			{
+				this(4, 20, 60000L);
+			}
+
+		/**
+		 * Creates a new pool.
+		 *
+		 * @param maxPerRoute
+		 *          the maximum number of sockets per route
+		 * @param maxTotal
+		 *          the maximum number of sockets over all routes
+		 * @param idleTimeout
+		 *          the number of milliseconds after which an idle socket is
+		 *          closed; 0 means sockets are never kept idle.
+		 */
+		public ConnectionPool(int maxPerRoute, int maxTotal, long idleTimeout)
+			{
+				if (maxPerRoute < 1 || maxTotal < 1 || idleTimeout < 0)
+					{
+						throw new IllegalArgumentException("Invalid pool limits: " + maxPerRoute + "/" + maxTotal + "/"
+								+ idleTimeout);
+					}
+
+				max_per_route = maxPerRoute;
+				max_total = maxTotal;
+				idle_timeout = idleTimeout;
+			}
+
+		/**
+		 * Returns the shared default pool, creating it if necessary.
+		 *
+		 * @return the default pool
+		 */
+		public static synchronized ConnectionPool getDefault()
+			{
+				if (DefaultPool == null)
+					{
+						DefaultPool = new ConnectionPool();
+					}
+
+				return DefaultPool;
+			}
+
+		/**
+		 * Sets the maximum number of sockets per route. Sockets already open
+		 * are not closed.
+		 *
+		 * @param maxPerRoute
+		 *          the new maximum
+		 */
+		public synchronized void setMaxPerRoute(int maxPerRoute)
+			{
+				if (maxPerRoute < 1)
+					{
+						throw new IllegalArgumentException("Invalid maximum: " + maxPerRoute);
+					}
+				max_per_route = maxPerRoute;
+				notifyAll();
+			}
+
+		/**
+		 * @return the maximum number of sockets per route
+		 */
+		public synchronized int getMaxPerRoute()
+			{
+				return max_per_route;
+			}
+
+		/**
+		 * Sets the maximum number of sockets over all routes. Sockets already
+		 * open are not closed.
+		 *
+		 * @param maxTotal
+		 *          the new maximum
+		 */
+		public synchronized void setMaxTotal(int maxTotal)
+			{
+				if (maxTotal < 1)
+					{
+						throw new IllegalArgumentException("Invalid maximum: " + maxTotal);
+					}
+				max_total = maxTotal;
+				notifyAll();
+			}
+
+		/**
+		 * @return the maximum number of sockets over all routes
+		 */
+		public synchronized int getMaxTotal()
+			{
+				return max_total;
+			}
+
+		/**
+		 * Sets the time after which idle sockets are closed.
+		 *
+		 * @param idleTimeout
+		 *          the timeout in milliseconds; 0 means sockets are never kept
+		 *          idle.
+		 */
+		public void setIdleTimeout(long idleTimeout)
+			{
+				if (idleTimeout < 0)
+					{
+						throw new IllegalArgumentException("Invalid timeout: " + idleTimeout);
+					}
+
+				synchronized (this)
+					{
+						idle_timeout = idleTimeout;
+					}
+				closeIdleConnections();
+			}
+
+		/**
+		 * @return the time in milliseconds after which idle sockets are closed
+		 */
+		public synchronized long getIdleTimeout()
+			{
+				return idle_timeout;
+			}
+
+		/**
+		 * @return the number of idle sockets in the pool
+		 */
+		public synchronized int getIdleCount()
+			{
+				int cnt = 0;
+				for (Enumeration en = routes.elements(); en.hasMoreElements();)
+					{
+						cnt += ((RouteEntry) en.nextElement()).idle.size();
+					}
+				return cnt;
+			}
+
+		/**
+		 * @return the number of sockets currently in use
+		 */
+		public synchronized int getLeasedCount()
+			{
+				int cnt = 0;
+				for (Enumeration en = routes.elements(); en.hasMoreElements();)
+					{
+						cnt += ((RouteEntry) en.nextElement()).leased;
+					}
+				return cnt;
+			}
+
+		/**
+		 * Closes all sockets which have been idle for longer than the idle
+		 * timeout.
+		 */
+		public void closeIdleConnections()
+			{
+				Vector expired = new Vector();
+				synchronized (this)
+					{
+						expireIdle(System.currentTimeMillis(), expired);
+						if (expired.size() > 0)
+							{
+								notifyAll();
+							}
+					}
+				closeAll(expired);
+			}
+
+		/**
+		 * Closes all idle sockets. Sockets currently in use are not affected.
+		 */
+		public void clear()
+			{
+				Vector closed = new Vector();
+				synchronized (this)
+					{
+						for (Enumeration en = routes.elements(); en.hasMoreElements();)
+							{
+								RouteEntry entry = (RouteEntry) en.nextElement();
+								while (entry.idle.size() > 0)
+									{
+										closed.addElement(((IdleSocket) entry.idle.lastElement()).sock);
+										entry.idle.removeElementAt(entry.idle.size() - 1);
+										total--;
+									}
+							}
+						removeUnusedRoutes();
+						notifyAll();
+					}
+				closeAll(closed);
+			}
+
+		/**
+		 * Gets a socket for the given route. If an idle socket is available it
+		 * is returned. Otherwise, if a new socket may be opened, a slot is
+		 * reserved for the caller and null is returned; the caller must then
+		 * open the socket itself and eventually invoke <code>release()</code>
+		 * for it. If neither is possible the caller waits until a socket is
+		 * released.
+		 *
+		 * @param route
+		 *          the route
+		 * @param timeout
+		 *          the maximum time to wait in milliseconds, or 0 to wait
+		 *          indefinitely
+		 * @return an idle socket, or null if the caller may open a new one
+		 * @exception InterruptedIOException
+		 *              if no socket became available within the timeout
+		 * @exception ThreadInterruptedIOException
+		 *              if the current thread was interrupted
+		 */
+		Socket lease(Route route, long timeout) throws InterruptedIOException, ThreadInterruptedIOException
+			{
+				while (true)
+					{
+						Socket sock;
+						long idle_for = 0;
+						Vector evicted = new Vector();
+
+						synchronized (this)
+							{
+								long now = System.currentTimeMillis();
+								long end = (timeout > 0) ? now + timeout : Long.MAX_VALUE;
+								expireIdle(now, evicted);
+
+								Object waiter = null;
+								while (true)
+									{
+										RouteEntry entry = getEntry(route);
+
+										if (waiter == null || waiters.elementAt(0) == waiter || !earlierWaiterServable(waiter))
+											{
+												if (entry.idle.size() > 0)
+													{
+														IdleSocket idle = (IdleSocket) entry.idle.lastElement();
+														entry.idle.removeElementAt(entry.idle.size() - 1);
+														entry.leased++;
+														sock = idle.sock;
+														idle_for = now - idle.since;
+														break;
+													}
+
+												if (entry.leased < max_per_route && (total < max_total || evictOldest(evicted)))
+													{
+														entry.leased++;
+														total++;
+														sock = null;
+														break;
+													}
+											}
+
+										if (waiter == null)
+											{
+												waiter = new Object[] { route };
+												waiters.addElement(waiter);
+											}
+
+										now = System.currentTimeMillis();
+										if (now >= end)
+											{
+												waiters.removeElement(waiter);
+												notifyAll();
+												throw new InterruptedIOException("Timed out waiting for a pooled connection");
+											}
+
+										try
+											{
+												if (DebugConn)
+													{
+														HttpClientUtil.logLine("Pool:  Waiting for a connection to " + route);
+													}
+												wait(end == Long.MAX_VALUE ? 0L : end - now);
+											}
+										catch (InterruptedException ie)
+											{
+												waiters.removeElement(waiter);
+												notifyAll();
+												throw new ThreadInterruptedIOException("Current thread was interrupted!");
+											}
+									}
+
+								if (waiter != null)
+									{
+										waiters.removeElement(waiter);
+										notifyAll();
+									}
+							}
+
+						closeAll(evicted);
+
+						if (sock == null || !isStale(sock, idle_for))
+							{
+								if (DebugConn)
+									{
+										HttpClientUtil.logLine("Pool:  " + (sock == null ? "Opening new" : "Reusing")
+												+ " connection to " + route);
+									}
+								return sock;
+							}
+
+						// the server closed the idle socket - drop it and try again
+						release(route, sock, false);
+					}
+			}
+
+		/**
+		 * Hands a socket back to the pool. If <var>reuse</var> is true the
+		 * socket is kept for the next request on the same route; otherwise it is
+		 * closed and its slot is freed. The socket may be null if it could not
+		 * be opened.
+		 *
+		 * @param route
+		 *          the route the socket was leased for
+		 * @param sock
+		 *          the socket, or null
+		 * @param reuse
+		 *          whether the socket may be reused
+		 */
+		void release(Route route, Socket sock, boolean reuse)
+			{
+				Vector closed = new Vector();
+
+				synchronized (this)
+					{
+						RouteEntry entry = getEntry(route);
+						if (entry.leased > 0)
+							{
+								entry.leased--;
+							}
+
+						long now = System.currentTimeMillis();
+						if (reuse && sock != null && idle_timeout > 0)
+							{
+								entry.idle.addElement(new IdleSocket(sock, now));
+							}
+						else
+							{
+								total--;
+								if (sock != null)
+									{
+										closed.addElement(sock);
+									}
+							}
+
+						expireIdle(now, closed);
+						removeUnusedRoutes();
+						notifyAll();
+					}
+
+				closeAll(closed);
+			}
+
+		/**
+		 * Is there a waiter which arrived before <var>waiter</var> and which
+		 * could be served right now?
+		 */
+		private boolean earlierWaiterServable(Object waiter)
+			{
+				for (int idx = 0; idx < waiters.size(); idx++)
+					{
+						Object[] other = (Object[]) waiters.elementAt(idx);
+						if (other == waiter)
+							{
+								return false;
+							}
+
+						RouteEntry entry = (RouteEntry) routes.get(other[0]);
+						int leased = (entry != null) ? entry.leased : 0;
+						if ((entry != null && entry.idle.size() > 0)
+								|| (leased < max_per_route && (total < max_total || hasIdleSocket())))
+							{
+								return true;
+							}
+					}
+
+				return false;
+			}
+
+		private boolean hasIdleSocket()
+			{
+				for (Enumeration en = routes.elements(); en.hasMoreElements();)
+					{
+						if (((RouteEntry) en.nextElement()).idle.size() > 0)
+							{
+								return true;
+							}
+					}
+				return false;
+			}
+
+		/**
+		 * Removes the least recently used idle socket of any route to make room
+		 * for a new socket.
+		 *
+		 * @return false if there was no idle socket
+		 */
+		private boolean evictOldest(Vector evicted)
+			{
+				RouteEntry oldest = null;
+				for (Enumeration en = routes.elements(); en.hasMoreElements();)
+					{
+						RouteEntry entry = (RouteEntry) en.nextElement();
+						if (entry.idle.size() > 0
+								&& (oldest == null || ((IdleSocket) entry.idle.firstElement()).since < ((IdleSocket) oldest.idle
+										.firstElement()).since))
+							{
+								oldest = entry;
+							}
+					}
+
+				if (oldest == null)
+					{
+						return false;
+					}
+
+				evicted.addElement(((IdleSocket) oldest.idle.firstElement()).sock);
+				oldest.idle.removeElementAt(0);
+				total--;
+				return true;
+			}
+
+		/**
+		 * Removes all sockets which have been idle too long. The sockets are
+		 * added to <var>expired</var> so that they can be closed outside the
+		 * lock.
+		 */
+		private void expireIdle(long now, Vector expired)
+			{
+				for (Enumeration en = routes.elements(); en.hasMoreElements();)
+					{
+						RouteEntry entry = (RouteEntry) en.nextElement();
+						while (entry.idle.size() > 0 && now - ((IdleSocket) entry.idle.firstElement()).since >= idle_timeout)
+							{
+								expired.addElement(((IdleSocket) entry.idle.firstElement()).sock);
+								entry.idle.removeElementAt(0);
+								total--;
+							}
+					}
+			}
+
+		private RouteEntry getEntry(Route route)
+			{
+				RouteEntry entry = (RouteEntry) routes.get(route);
+				if (entry == null)
+					{
+						entry = new RouteEntry();
+						routes.put(route, entry);
+					}
+				return entry;
+			}
+
+		private void removeUnusedRoutes()
+			{
+				Vector unused = null;
+				for (Enumeration en = routes.keys(); en.hasMoreElements();)
+					{
+						Object route = en.nextElement();
+						RouteEntry entry = (RouteEntry) routes.get(route);
+						if (entry.leased == 0 && entry.idle.size() == 0)
+							{
+								if (unused == null)
+									{
+										unused = new Vector();
+									}
+								unused.addElement(route);
+							}
+					}
+
+				if (unused != null)
+					{
+						for (int idx = 0; idx < unused.size(); idx++)
+							{
+								routes.remove(unused.elementAt(idx));
+							}
+					}
+			}
+
+		/**
+		 * Checks whether the server has sent something unexpected on an idle
+		 * socket, or, if it has been idle for a while, closed it. The latter
+		 * costs a read with a 1 ms timeout, so it's not done for sockets which
+		 * are reused quickly.
+		 *
+		 * @param idle_for
+		 *          the number of milliseconds the socket has been idle
+		 */
+		private static boolean isStale(Socket sock, long idle_for)
+			{
+				try
+					{
+						InputStream in = sock.getInputStream();
+						if (in.available() > 0)
+							{
+								return true;
+							}
+						if (idle_for < PROBE_AFTER_IDLE)
+							{
+								return false;
+							}
+
+						int timeout = sock.getSoTimeout();
+						sock.setSoTimeout(1);
+						try
+							{
+								in.read(); // either EOF or garbage on an idle connection
+								return true;
+							}
+						catch (InterruptedIOException iioe)
+							{
+								// nothing there - the socket is fine
+							}
+						finally
+							{
+								sock.setSoTimeout(timeout);
+							}
+						return false;
+					}
+				catch (IOException ioe)
+					{
+						return true;
+					}
+			}
+
+		private static void closeAll(Vector socks)
+			{
+				for (int idx = 0; idx < socks.size(); idx++)
+					{
+						try
+							{
+								((Socket) socks.elementAt(idx)).close();
+							}
+						catch (IOException ioe)
+							{
+							}
+					}
+			}
+
+		/**
+		 * Produces a string describing the state of this pool.
+		 */
+		public synchronized String toString()
+			{
+				return getClass().getName() + "[routes=" + routes.size() + ",total=" + total + ",max-per-route="
+						+ max_per_route + ",max-total=" + max_total + ",waiting=" + waiters.size() + "]";
+			}
+
+		/**
+		 * The key under which sockets are pooled. Two requests may share a
+		 * socket only if they agree in all of protocol, host, port, proxy, socks
+		 * server, socket factory and context.
+		 */
+		static final class Route
+			{
+				private final int protocol;
+
+				private final String host;
+
+				private final int port;
+
+				private final String proxy_host;
+
+				private final int proxy_port;
+
+				private final SocksClient socks;
+
+				private final HTTPClientSocketFactory factory;
+
+				private final Object context;
+
+				private final int hash;
+
+				Route(int protocol, String host, int port, String proxy_host, int proxy_port, SocksClient socks,
+						HTTPClientSocketFactory factory, Object context)
+					{
+						this.protocol = protocol;
+						this.host = host.toLowerCase();
+						this.port = port;
+						this.proxy_host = (proxy_host != null) ? proxy_host.toLowerCase() : null;
+						this.proxy_port = (proxy_host != null) ? proxy_port : -1;
+						this.socks = socks;
+						this.factory = factory;
+						this.context = context;
+
+						int h = protocol;
+						h = 31 * h + this.host.hashCode();
+						h = 31 * h + port;
+						if (this.proxy_host != null)
+							{
+								h = 31 * h + this.proxy_host.hashCode();
+								h = 31 * h + proxy_port;
+							}
+						if (context != null)
+							{
+								h = 31 * h + System.identityHashCode(context);
+							}
+						hash = h;
+					}
+
+				public int hashCode()
+					{
+						return hash;
+					}
+
+				public boolean equals(Object obj)
+					{
+						if (this == obj)
+							{
+								return true;
+							}
+						if (!(obj instanceof Route))
+							{
+								return false;
+							}
+
+						Route other = (Route) obj;
+						return hash == other.hash && protocol == other.protocol && port == other.port
+								&& proxy_port == other.proxy_port && host.equals(other.host)
+								&& (proxy_host == null ? other.proxy_host == null : proxy_host.equals(other.proxy_host))
+								&& socks == other.socks && factory == other.factory && context == other.context;
+					}
+
+				public String toString()
+					{
+						return host + ":" + port + (proxy_host != null ? " via " + proxy_host + ":" + proxy_port : "");
+					}
+			}
+
+		/** the sockets of a single route */
+		private static final class RouteEntry
+			{
+				/** the idle sockets, oldest first */
+				Vector idle = new Vector();
+
+				/** the number of sockets in use */
+				int leased = 0;
+			}
+
+		/** an idle socket and the time it was handed back */
+		private static final class IdleSocket
+			{
+				Socket sock;
+
+				long since;
+
+				IdleSocket(Socket sock, long since)
+					{
+						this.sock = sock;
+						this.since = since;
+					}
+			}
+	}
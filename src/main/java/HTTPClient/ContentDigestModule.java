@@ -0,0 +1,296 @@
+package HTTPClient;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Hashtable;
+
+/**
+ * This module verifies the integrity of response bodies against the
+ * <var>Content-Digest</var> and <var>Repr-Digest</var> headers (RFC 9530)
+ * and the older <var>Digest</var> header (RFC 3230), for the algorithms
+ * sha-256 and sha-512. Like the {@link ContentMD5Module} it wraps a
+ * {@link HashInputStream} around the response input stream, so the digest
+ * is calculated while the application reads the body, and an IOException is
+ * thrown when the end of the body is reached (or the stream is closed) if
+ * the digests don't match. The digests may also be sent as trailers.
+ *
+ * <P>Only one field is verified per response: <var>Content-Digest</var> if
+ * present, else <var>Repr-Digest</var>, else <var>Digest</var>; the latter
+ * two are not verified on 206 (Partial Content) responses, as they then
+ * cover the whole representation. Of the field's digests the sha-512 one is
+ * verified if present, else the sha-256 one. If the field is announced as a
+ * trailer the algorithm isn't known until the body has been read, so both
+ * are calculated.
+ *
+ * <P>The digests are of the content as sent, i.e. before any content coding
+ * is removed, so this module must come before the
+ * {@link ContentEncodingModule}. It's not in the default module list; with
+ * the default list it's added with
+ *
+ * <PRE>
+ * HTTPConnection.addDefaultModule(ContentDigestModule.class, -2);
+ * </PRE>
+ *
+ * @see HTTPConnection#addModule(java.lang.Class, int)
+ */
+public class ContentDigestModule implements StatelessModule, GlobalConstants
+	{
+		/** the fields, in the order in which they're looked for */
+		private static final String[] FIELDS = { "Content-Digest", "Repr-Digest", "Digest" };
+
+		/** the supported algorithms, strongest first */
+		private static final String[] ALGORITHMS = { "sha-512", "sha-256" };
+
+		public ContentDigestModule()
+			{
+			}
+
+		/**
+		 * Invoked by the HTTPClient. Only the phase 3 handler does any work.
+		 */
+		public int getPhases()
+			{
+				return PHASE_RESPONSE_3;
+			}
+
+		/**
+		 * Invoked by the HTTPClient.
+		 */
+		public int requestHandler(Request req, Response[] resp)
+			{
+				return REQ_CONTINUE;
+			}
+
+		/**
+		 * Invoked by the HTTPClient.
+		 */
+		public void responsePhase1Handler(Response resp, RoRequest req)
+			{
+			}
+
+		/**
+		 * Invoked by the HTTPClient.
+		 */
+		public int responsePhase2Handler(Response resp, Request req)
+			{
+				return RSP_CONTINUE;
+			}
+
+		/**
+		 * Invoked by the HTTPClient.
+		 */
+		public void responsePhase3Handler(Response resp, RoRequest req) throws IOException, ModuleException
+			{
+				if (req.getMethod().equals("HEAD"))
+					{
+						return;
+					}
+
+				int status = resp.getStatusCode();
+				if (status < 200 || status == 204 || status == 304 || resp.getHeader("Transfer-Encoding") != null)
+					{
+						return;
+					}
+
+				String trailer = resp.getHeader("Trailer");
+				for (int fidx = 0; fidx < FIELDS.length; fidx++)
+					{
+						String field = FIELDS[fidx];
+						if (status == 206 && fidx > 0)
+							{
+								break;
+							}
+
+						String value = resp.getHeader(field);
+						if (value != null)
+							{
+								Hashtable digests = parseDigests(value);
+								for (int aidx = 0; aidx < ALGORITHMS.length; aidx++)
+									{
+										if (digests.containsKey(ALGORITHMS[aidx]))
+											{
+												if (DebugMods)
+													{
+														HttpClientUtil.logLine("CDigM: Received " + field + ": " + value + " - pushing "
+																+ ALGORITHMS[aidx] + "-check-stream");
+													}
+												push(resp, field, false, new String[] { ALGORITHMS[aidx] });
+												return;
+											}
+									}
+								continue;
+							}
+
+						try
+							{
+								if (trailer != null && HttpClientUtil.hasToken(trailer, field))
+									{
+										if (DebugMods)
+											{
+												HttpClientUtil.logLine("CDigM: Expecting " + field + " in trailer - pushing digest-check-stream");
+											}
+										push(resp, field, true, ALGORITHMS);
+										return;
+									}
+							}
+						catch (ParseException pe)
+							{
+								throw new ModuleException(pe.toString());
+							}
+					}
+			}
+
+		/**
+		 * Invoked by the HTTPClient.
+		 */
+		public void trailerHandler(Response resp, RoRequest req)
+			{
+			}
+
+		/**
+		 * Wraps a HashInputStream for the given algorithms around the
+		 * response's input stream.
+		 */
+		private static void push(Response resp, String field, boolean in_trailer, String[] algorithms)
+				throws ModuleException
+			{
+				Hash[] hashes = new Hash[algorithms.length];
+				HashVerifier[] verifiers = new HashVerifier[algorithms.length];
+				for (int idx = 0; idx < algorithms.length; idx++)
+					{
+						try
+							{
+								hashes[idx] = Hash.getInstance(algorithms[idx].toUpperCase());
+							}
+						catch (NoSuchAlgorithmException nsae)
+							{
+								throw new ModuleException("No " + algorithms[idx] + " implementation: " + nsae);
+							}
+						verifiers[idx] = new VerifyDigest(resp, field, in_trailer, algorithms[idx]);
+					}
+
+				resp.inp_stream = new HashInputStream(resp.inp_stream, hashes, verifiers);
+			}
+
+		/**
+		 * Parses the value of a digest field. Both the structured dictionary
+		 * of RFC 9530 (<code>sha-256=:base64:</code>) and the list of RFC 3230
+		 * (<code>SHA-256=base64</code>) are understood; parameters are
+		 * ignored.
+		 *
+		 * @param value
+		 *          the field's value
+		 * @return the base64-encoded digests, keyed by the lowercased
+		 *         algorithm
+		 */
+		static Hashtable parseDigests(String value)
+			{
+				Hashtable digests = new Hashtable();
+
+				int beg = 0;
+				while (beg < value.length())
+					{
+						int end = value.indexOf(',', beg);
+						if (end == -1)
+							{
+								end = value.length();
+							}
+						String item = value.substring(beg, end).trim();
+						beg = end + 1;
+
+						int eq = item.indexOf('=');
+						if (eq <= 0)
+							{
+								continue;
+							}
+						String alg = item.substring(0, eq).trim().toLowerCase();
+						String digest = item.substring(eq + 1).trim();
+
+						if (digest.startsWith(":"))
+							{
+								int colon = digest.indexOf(':', 1);
+								if (colon == -1)
+									{
+										continue;
+									}
+								digest = digest.substring(1, colon);
+							}
+						else
+							{
+								int semi = digest.indexOf(';');
+								if (semi != -1)
+									{
+										digest = digest.substring(0, semi).trim();
+									}
+							}
+
+						if (!digests.containsKey(alg))
+							{
+								digests.put(alg, digest);
+							}
+					}
+
+				return digests;
+			}
+
+		/**
+		 * Compares a calculated hash with the one in the response's header or
+		 * trailer.
+		 */
+		private static final class VerifyDigest implements HashVerifier
+			{
+				private final RoResponse resp;
+
+				private final String field;
+
+				private final boolean in_trailer;
+
+				private final String algorithm;
+
+				VerifyDigest(RoResponse resp, String field, boolean in_trailer, String algorithm)
+					{
+						this.resp = resp;
+						this.field = field;
+						this.in_trailer = in_trailer;
+						this.algorithm = algorithm;
+					}
+
+				public void verifyHash(byte[] hash, long len) throws IOException
+					{
+						String value = in_trailer ? resp.getTrailer(field) : resp.getHeader(field);
+						String digest = (value != null) ? (String) parseDigests(value).get(algorithm) : null;
+						if (digest == null)
+							{
+								if (DebugMods)
+									{
+										HttpClientUtil.logLine("CDigM: no " + algorithm + " digest in " + field
+												+ (in_trailer ? " trailer" : " header"));
+									}
+								return;
+							}
+
+						byte[] expected;
+						try
+							{
+								expected = Codecs.base64Decode(digest.getBytes("8859_1"));
+							}
+						catch (RuntimeException re)
+							{
+								throw new IOException("Malformed " + algorithm + " digest in " + field + ": " + digest);
+							}
+
+						if (!MessageDigest.isEqual(expected, hash))
+							{
+								throw new IOException(algorithm + " digest mismatch in " + field + ": expected "
+										+ Hash.toHex(expected) + " but calculated " + Hash.toHex(hash) + " over " + len
+										+ " bytes");
+							}
+
+						if (DebugMods)
+							{
+								HttpClientUtil.logLine("CDigM: " + algorithm + " digest successfully verified");
+							}
+					}
+			}
+	}
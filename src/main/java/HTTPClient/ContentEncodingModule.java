@@ -46,7 +46,7 @@ import java.util.zip.GZIPInputStream;
  * @author      modified by Stefan K&ouml;psell, 04/11/24
  */
 
-class ContentEncodingModule implements HTTPClientModule, GlobalConstants
+class ContentEncodingModule implements StatelessModule, GlobalConstants
 {
   /** @author modified by Stefan K&ouml;psell, 04/11/24*/
    /* static
@@ -67,6 +67,15 @@ class ContentEncodingModule implements HTTPClientModule, GlobalConstants
 
     // Methods
 
+    /**
+     * Invoked by the HTTPClient. Only the request and the phase 3 handlers do any work.
+     */
+    public int getPhases()
+    {
+	return PHASE_REQUEST | PHASE_RESPONSE_3;
+    }
+
+
     /**
      * Invoked by the HTTPClient.
      */
@@ -45,7 +45,7 @@ import java.net.ProtocolException;
  * @author	Ronald Tschal&auml;r
  */
 
-class ContentMD5Module implements HTTPClientModule, GlobalConstants
+class ContentMD5Module implements StatelessModule, GlobalConstants
 {
     // Constructors
 
@@ -56,6 +56,15 @@ class ContentMD5Module implements HTTPClientModule, GlobalConstants
 
     // Methods
 
+    /**
+     * Invoked by the HTTPClient. Only the phase 3 handler does any work.
+     */
+    public int getPhases()
+    {
+	return PHASE_RESPONSE_3;
+    }
+
+
     /**
      * Invoked by the HTTPClient.
      */
@@ -0,0 +1,616 @@
+package HTTPClient;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Keeps the persistent cookies of a context in a file, so that they survive
+ * a restart of the application. Only cookies which have an expiry date and
+ * are not to be discarded at the end of the session are saved.
+ *
+ * <P>The file is an append-only log: each cookie which is set or replaced is
+ * appended as a record, and so is the removal of a cookie. When the log has
+ * grown to more than twice the number of live cookies (plus some slack) it
+ * is compacted, i.e. rewritten with only the live cookies; the new file is
+ * synced to disk before it replaces the old one. A record which was only
+ * partially written, e.g. because the application crashed, is dropped when
+ * the file is loaded, and a garbled record is skipped.
+ *
+ * <P>Nothing is read when the jar is created. The file is read in one go
+ * and replayed when the cookies of the context are first needed. Expired
+ * cookies are only dropped from the jar when it's compacted.
+ *
+ * <P>Example:
+ *
+ * <PRE>
+ * CookieModule.setCookieJar(new CookieJar(new File("cookies.jar")));
+ * </PRE>
+ *
+ * The jar for the default context may also be set with the property
+ * <var>HTTPClient.cookies.jar</var>, which must contain the name of the
+ * file.
+ *
+ * @see CookieModule#setCookieJar(CookieJar, Object)
+ */
+public class CookieJar implements GlobalConstants
+	{
+		/** "HCJ1" */
+		private static final int MAGIC = 0x48434A31;
+
+		private static final byte OP_PUT = 1, OP_REMOVE = 2;
+
+		private static final byte TYPE_COOKIE = 0, TYPE_COOKIE2 = 1;
+
+		/** the minimum number of records before the log is compacted */
+		private static final int MIN_COMPACT = 256;
+
+		private final File file;
+
+		/** the live persistent cookies: Cookie -> Cookie */
+		private final HashMap live = new HashMap();
+
+		/** the number of records in the log */
+		private int records = 0;
+
+		/** the log has been read */
+		private boolean loaded = false;
+
+		/** the log could not be read; nothing is written to it then */
+		private boolean failed = false;
+
+		/** the stream records are appended to; opened lazily */
+		private DataOutputStream out = null;
+
+		/**
+		 * Creates a jar kept in the given file. The file is created when the
+		 * first cookie is saved.
+		 *
+		 * @param file
+		 *          the file
+		 */
+		public CookieJar(File file)
+			{
+				if (file == null)
+					{
+						throw new NullPointerException("file");
+					}
+				this.file = file;
+			}
+
+		/**
+		 * @return the file the cookies are kept in
+		 */
+		public File getFile()
+			{
+				return file;
+			}
+
+		/**
+		 * @return true if the given cookie should be kept in a jar
+		 */
+		static boolean isPersistent(Cookie cookie)
+			{
+				return cookie.expires() != null && !cookie.discard() && !cookie.hasExpired();
+			}
+
+		/**
+		 * Reads the log, if that hasn't happened yet, and returns the live
+		 * cookies.
+		 *
+		 * @return the cookies which haven't expired
+		 */
+		synchronized Cookie[] load()
+			{
+				ensureLoaded();
+
+				Cookie[] cookies = new Cookie[live.size()];
+				int cnt = 0;
+				for (Iterator iter = live.values().iterator(); iter.hasNext();)
+					{
+						Cookie cookie = (Cookie) iter.next();
+						if (!cookie.hasExpired())
+							{
+								cookies[cnt++] = cookie;
+							}
+					}
+				return (cnt == cookies.length) ? cookies : HttpClientUtil.resizeArray(cookies, cnt);
+			}
+
+		/**
+		 * Reads the log, if that hasn't happened yet. If the log can't be read
+		 * the error is logged, and the jar leaves the file alone from then on.
+		 */
+		private void ensureLoaded()
+			{
+				if (!loaded)
+					{
+						loaded = true;
+						try
+							{
+								readLog();
+							}
+						catch (IOException ioe)
+							{
+								failed = true;
+								live.clear();
+								if (DebugMods)
+									{
+										HttpClientUtil.logLine("CookM: Reading cookie jar " + file + " failed: " + ioe);
+									}
+							}
+					}
+			}
+
+		/**
+		 * Saves the given cookie, replacing any equal one.
+		 *
+		 * @param cookie
+		 *          the cookie; it should be persistent
+		 */
+		synchronized void put(Cookie cookie)
+			{
+				ensureLoaded();
+				live.put(cookie, cookie);
+				append(OP_PUT, cookie);
+			}
+
+		/**
+		 * Removes the cookie equal to the given one, if it's in the jar.
+		 *
+		 * @param cookie
+		 *          the cookie
+		 */
+		synchronized void remove(Cookie cookie)
+			{
+				ensureLoaded();
+				if (live.remove(cookie) != null)
+					{
+						append(OP_REMOVE, cookie);
+					}
+			}
+
+		/**
+		 * Rewrites the file with only the live cookies, dropping the expired
+		 * ones. This is done automatically as the log grows.
+		 *
+		 * @exception IOException
+		 *              if the file could not be written
+		 */
+		public synchronized void compact() throws IOException
+			{
+				ensureLoaded();
+				if (failed)
+					{
+						throw new IOException("Could not read cookie jar " + file);
+					}
+				closeLog();
+
+				for (Iterator iter = live.values().iterator(); iter.hasNext();)
+					{
+						if (((Cookie) iter.next()).hasExpired())
+							{
+								iter.remove();
+							}
+					}
+
+				File tmp = new File(file.getPath() + ".tmp");
+				FileOutputStream fos = new FileOutputStream(tmp);
+				DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(fos));
+				try
+					{
+						dout.writeInt(MAGIC);
+						for (Iterator iter = live.values().iterator(); iter.hasNext();)
+							{
+								writeRecord(dout, OP_PUT, (Cookie) iter.next());
+							}
+						dout.flush();
+						fos.getFD().sync();
+					}
+				finally
+					{
+						dout.close();
+					}
+
+				if (!tmp.renameTo(file))
+					{
+						// e.g. on Windows, where an existing file can't be replaced;
+						// the old file is moved aside, never deleted, so that there
+						// is always a complete copy for recover() to find
+						File old = new File(file.getPath() + ".old");
+						old.delete();
+						if (!file.renameTo(old))
+							{
+								throw new IOException("Could not rename " + file + " to " + old);
+							}
+						if (!tmp.renameTo(file))
+							{
+								old.renameTo(file);
+								throw new IOException("Could not rename " + tmp + " to " + file);
+							}
+						old.delete();
+					}
+
+				records = live.size();
+
+				if (DebugMods)
+					{
+						HttpClientUtil.logLine("CookM: Compacted cookie jar " + file + " to " + records + " cookies");
+					}
+			}
+
+		/**
+		 * Closes the file. It's reopened when the next cookie is saved.
+		 *
+		 * @exception IOException
+		 *              if closing the file failed
+		 */
+		public synchronized void close() throws IOException
+			{
+				closeLog();
+			}
+
+		private void closeLog() throws IOException
+			{
+				if (out != null)
+					{
+						DataOutputStream tmp = out;
+						out = null;
+						tmp.close();
+					}
+			}
+
+		/**
+		 * Appends a record to the log, compacting it if it has grown too much.
+		 * Errors are logged.
+		 */
+		private void append(byte op, Cookie cookie)
+			{
+				if (failed)
+					{
+						return;
+					}
+
+				try
+					{
+						if (out == null)
+							{
+								boolean exists = file.length() > 0;
+								out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.getPath(), true)));
+								if (!exists)
+									{
+										out.writeInt(MAGIC);
+									}
+							}
+
+						writeRecord(out, op, cookie);
+						out.flush();
+						records++;
+
+						if (records > MIN_COMPACT && records > 2 * live.size())
+							{
+								compact();
+							}
+					}
+				catch (IOException ioe)
+					{
+						if (DebugMods)
+							{
+								HttpClientUtil.logLine("CookM: Writing cookie jar " + file + " failed: " + ioe);
+							}
+						try
+							{
+								closeLog();
+							}
+						catch (IOException ioe2)
+							{
+							}
+					}
+			}
+
+		/**
+		 * Writes a record as its length followed by the operation and the
+		 * cookie's fields. A removal only needs the fields which identify the
+		 * cookie.
+		 */
+		private static void writeRecord(DataOutputStream dest, byte op, Cookie cookie) throws IOException
+			{
+				ByteArrayOutputStream buf = new ByteArrayOutputStream(128);
+				DataOutputStream rec = new DataOutputStream(buf);
+
+				rec.writeByte(op);
+				rec.writeUTF(cookie.name);
+				rec.writeUTF(cookie.domain);
+				rec.writeUTF(cookie.path);
+
+				if (op == OP_PUT)
+					{
+						boolean v1 = cookie instanceof Cookie2;
+						rec.writeByte(v1 ? TYPE_COOKIE2 : TYPE_COOKIE);
+						rec.writeUTF(cookie.value);
+						rec.writeLong(cookie.expires.getTime());
+						rec.writeByte((cookie.secure ? 1 : 0) | (cookie.httponly ? 2 : 0));
+
+						if (v1)
+							{
+								Cookie2 c2 = (Cookie2) cookie;
+								rec.writeInt(c2.version);
+								rec.writeByte((c2.path_set ? 1 : 0) | (c2.port_set ? 2 : 0) | (c2.domain_set ? 4 : 0));
+								writeString(rec, c2.comment);
+								writeString(rec, (c2.comment_url != null) ? c2.comment_url.toString() : null);
+								writeString(rec, c2.port_list_str);
+							}
+					}
+
+				rec.flush();
+				dest.writeInt(buf.size());
+				buf.writeTo(dest);
+			}
+
+		private static void writeString(DataOutputStream rec, String str) throws IOException
+			{
+				rec.writeBoolean(str != null);
+				if (str != null)
+					{
+						rec.writeUTF(str);
+					}
+			}
+
+		private static String readString(DataInputStream rec) throws IOException
+			{
+				return rec.readBoolean() ? rec.readUTF() : null;
+			}
+
+		/**
+		 * Cleans up after a compaction which was interrupted by a crash. As long
+		 * as the file exists it's complete, and the <var>.tmp</var> and
+		 * <var>.old</var> files are leftovers. If it's missing the compaction
+		 * was interrupted between moving the old file aside and renaming the
+		 * new one, which was synced to disk before; so that one is used, or
+		 * the old file if there is no new one.
+		 */
+		private void recover()
+			{
+				File tmp = new File(file.getPath() + ".tmp");
+				File old = new File(file.getPath() + ".old");
+
+				if (!file.exists())
+					{
+						if (tmp.exists())
+							{
+								tmp.renameTo(file);
+							}
+						else if (old.exists())
+							{
+								old.renameTo(file);
+							}
+
+						if (DebugMods && file.exists())
+							{
+								HttpClientUtil.logLine("CookM: Recovered cookie jar " + file + " after an interrupted compaction");
+							}
+					}
+
+				tmp.delete();
+				old.delete();
+			}
+
+		/**
+		 * Reads the file and replays the log into the live cookies. A record
+		 * which is complete but garbled is skipped; a trailing partial record is
+		 * cut off the file. A record with an impossible length ends the replay,
+		 * as the following records can't be found; the file is then left alone.
+		 * The file is read into memory rather than mapped, as a mapped file
+		 * can't be truncated or replaced on some platforms (e.g. Windows) while
+		 * the mapping is alive.
+		 */
+		private void readLog() throws IOException
+			{
+				recover();
+				if (!file.exists() || file.length() == 0)
+					{
+						return;
+					}
+
+				long valid;
+				FileInputStream fis = new FileInputStream(file);
+				try
+					{
+						FileChannel chan = fis.getChannel();
+						ByteBuffer data = ByteBuffer.allocate((int) chan.size());
+						while (data.hasRemaining() && chan.read(data) != -1)
+							{
+							}
+						data.flip();
+						if (data.remaining() < 4 || data.getInt() != MAGIC)
+							{
+								throw new IOException("Not a cookie jar: " + file);
+							}
+
+						DataInputStream rec = new DataInputStream(new BufferInputStream(data));
+						valid = data.position();
+						while (data.remaining() >= 4)
+							{
+								int len = data.getInt();
+								if (len > data.remaining())
+									{
+										break; // partial record
+									}
+								if (len <= 0)
+									{
+										failed = true;
+										if (DebugMods)
+											{
+												HttpClientUtil.logLine("CookM: Invalid record length " + len + " at " + (data.position() - 4)
+														+ " in cookie jar " + file);
+											}
+										break;
+									}
+
+								int end = data.position() + len;
+								int limit = data.limit();
+								data.limit(end);
+								try
+									{
+										readRecord(rec);
+									}
+								catch (IOException ioe)
+									{
+										skipped(valid, ioe);
+									}
+								catch (RuntimeException re)
+									{
+										skipped(valid, re);
+									}
+								finally
+									{
+										data.limit(limit);
+									}
+								data.position(end);
+								valid = end;
+								records++;
+							}
+					}
+				finally
+					{
+						fis.close();
+					}
+
+				if (!failed && valid < file.length())
+					{
+						RandomAccessFile raf = new RandomAccessFile(file, "rw");
+						try
+							{
+								raf.setLength(valid);
+							}
+						finally
+							{
+								raf.close();
+							}
+					}
+
+				if (DebugMods)
+					{
+						HttpClientUtil.logLine("CookM: Read " + records + " records with " + live.size()
+								+ " cookies from cookie jar " + file);
+					}
+			}
+
+		private void skipped(long pos, Exception e)
+			{
+				if (DebugMods)
+					{
+						HttpClientUtil.logLine("CookM: Skipped garbled record at " + pos + " in cookie jar " + file + ": " + e);
+					}
+			}
+
+		private void readRecord(DataInputStream rec) throws IOException
+			{
+				byte op = rec.readByte();
+				String name = rec.readUTF();
+				String domain = rec.readUTF();
+				String path = rec.readUTF();
+
+				if (op == OP_REMOVE)
+					{
+						live.remove(new Cookie(name, "", domain, path, null, false, false));
+						return;
+					}
+				if (op != OP_PUT)
+					{
+						throw new IOException("Unknown record " + op);
+					}
+
+				byte type = rec.readByte();
+				String value = rec.readUTF();
+				Date expires = new Date(rec.readLong());
+				int flags = rec.readByte();
+
+				Cookie cookie;
+				if (type == TYPE_COOKIE2)
+					{
+						int version = rec.readInt();
+						int flags2 = rec.readByte();
+						String comment = readString(rec);
+						String comment_url = readString(rec);
+						String ports = readString(rec);
+
+						Cookie2 c2 = new Cookie2(name, value, domain, parsePorts(ports), path, expires, false,
+								(flags & 1) != 0, (flags & 2) != 0, comment, (comment_url != null) ? new URL(comment_url) : null);
+						c2.version = version;
+						c2.path_set = (flags2 & 1) != 0;
+						c2.port_set = (flags2 & 2) != 0;
+						c2.domain_set = (flags2 & 4) != 0;
+						cookie = c2;
+					}
+				else
+					{
+						cookie = new Cookie(name, value, domain, path, expires, (flags & 1) != 0, (flags & 2) != 0);
+					}
+
+				live.put(cookie, cookie);
+			}
+
+		private static int[] parsePorts(String ports)
+			{
+				if (ports == null || ports.length() == 0)
+					{
+						return null;
+					}
+
+				String[] list = HttpClientUtil.splitList(ports, ",");
+				int[] port_list = new int[list.length];
+				for (int idx = 0; idx < list.length; idx++)
+					{
+						port_list[idx] = Integer.parseInt(list[idx].trim());
+					}
+				return port_list;
+			}
+
+		/**
+		 * Reads from a ByteBuffer, so that the records can be decoded directly
+		 * from the buffer the file was read into.
+		 */
+		private static final class BufferInputStream extends InputStream
+			{
+				private final ByteBuffer buf;
+
+				BufferInputStream(ByteBuffer buf)
+					{
+						this.buf = buf;
+					}
+
+				public int read()
+					{
+						return buf.hasRemaining() ? (buf.get() & 0xFF) : -1;
+					}
+
+				public int read(byte[] b, int off, int len)
+					{
+						if (len == 0)
+							{
+								return 0;
+							}
+						if (!buf.hasRemaining())
+							{
+								return -1;
+							}
+						len = Math.min(len, buf.remaining());
+						buf.get(b, off, len);
+						return len;
+					}
+			}
+	}
@@ -38,7 +38,6 @@ import java.io.FileOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.ProtocolException;
-import java.util.Vector;
 import java.util.Hashtable;
 import java.util.Enumeration;
 
@@ -62,15 +61,34 @@ import java.util.Enumeration;
  * @since	V0.3
  */
 
-public class CookieModule implements HTTPClientModule, GlobalConstants
+public class CookieModule implements StatelessModule, GlobalConstants
 {
-    /** the list of known cookies */
+    /** the list of known cookies: context -> CookieStore */
     private static Hashtable cookie_cntxt_list = new Hashtable();
 
     /** the cookie policy handler */
     private static CookiePolicyHandler cookie_handler =
 					    new DefaultCookiePolicyHandler();
 
+    /** the jars persistent cookies are saved in: context -> CookieJar */
+    private static Hashtable cookie_jars = new Hashtable();
+
+    static
+    {
+	try
+	{
+	    String file = System.getProperty("HTTPClient.cookies.jar");
+	    if (file != null  &&  file.length() > 0)
+	    {
+		setCookieJar(new CookieJar(new File(file)));
+		if (DebugMods)
+		    HttpClientUtil.logLine("CookM: Keeping persistent cookies in " + file);
+	    }
+	}
+	catch (Exception e)
+	    { }
+    }
+
 
     // Constructors
 
@@ -81,6 +99,15 @@ public class CookieModule implements HTTPClientModule, GlobalConstants
 
     // Methods
 
+    /**
+     * Invoked by the HTTPClient. Only the request, phase 1 and trailer handlers do any work.
+     */
+    public int getPhases()
+    {
+	return PHASE_REQUEST | PHASE_RESPONSE_1 | PHASE_TRAILER;
+    }
+
+
     /**
      * Invoked by the HTTPClient.
      */
@@ -94,71 +121,38 @@ public class CookieModule implements HTTPClientModule, GlobalConstants
 
 	// Now set any new cookie headers
 
-	Hashtable cookie_list =
-	    HttpClientUtil.getList(cookie_cntxt_list, req.getConnection().getContext());
-	if (cookie_list.size() == 0)
+	Cookie[] cookies =
+	    getStore(req.getConnection().getContext()).find(req);
+	if (cookies.length == 0)
 	    return REQ_CONTINUE;	// no need to create a lot of objects
 
-	Vector  names   = new Vector();
-	Vector  lens    = new Vector();
+	// the cookies are already sorted by path length; apply the policy
+	int     cnt     = 0;
 	boolean cookie2 = false;
-
-	synchronized(cookie_list)
+	for (int idx=0; idx<cookies.length; idx++)
 	{
-	    Enumeration list = cookie_list.elements();
-	    Vector remove_list = null;
-
-	    while (list.hasMoreElements())
-	    {
-		Cookie cookie = (Cookie) list.nextElement();
-
-		if (cookie.hasExpired())
-		{
-		    if (remove_list == null)  remove_list = new Vector();
-		    remove_list.addElement(cookie); /** @author modified by Stefan K&ouml;psell, 04/11/24 */
-		    continue;
-		}
-
-		if (cookie.sendWith(req)  &&  (cookie_handler == null  ||
-		    cookie_handler.sendCookie(cookie, req)))
-		{
-		    int len = cookie.getPath().length();
-		    int idx;
-
-		    // insert in correct position
-		    for (idx=0; idx<lens.size(); idx++)
-			if (((Integer) lens.elementAt(idx)).intValue() < len)
-			    break;
-
-		    names.insertElementAt(cookie.toExternalForm(), idx);
-		    lens.insertElementAt(new Integer(len), idx);
-
-		    if (cookie instanceof Cookie2)  cookie2 = true;
-		}
-	    }
-
-	    // remove any marked cookies
-	    // Note: we can't do this during the enumeration!
-	    if (remove_list != null)
+	    if (cookie_handler == null  ||
+		cookie_handler.sendCookie(cookies[idx], req))
 	    {
-		for (int idx=0; idx<remove_list.size(); idx++)
-		    cookie_list.remove(remove_list.elementAt(idx));
+		cookies[cnt++] = cookies[idx];
+		if (cookies[idx] instanceof Cookie2)  cookie2 = true;
 	    }
 	}
 
-	if (!names.isEmpty())
+	if (cnt > 0)
 	{
 	    StringBuffer value = new StringBuffer();
 
 	    if (cookie2)
 		value.append("$Version=\"1\"; ");
 
-	    value.append((String) names.elementAt(0));
-	    for (int idx=1; idx<names.size(); idx++)
+	    value.append(cookies[0].toExternalForm());
+	    for (int idx=1; idx<cnt; idx++)
 	    {
 		value.append("; ");
-		value.append((String) names.elementAt(idx));
+		value.append(cookies[idx].toExternalForm());
 	    }
+
 	    NVPair[] hdrs = req.getHeaders();
 	    hdrs = HttpClientUtil.resizeArray(hdrs, hdrs.length+1);
 	    hdrs[hdrs.length-1] = new NVPair("Cookie", value.toString());
@@ -257,23 +251,46 @@ public class CookieModule implements HTTPClientModule, GlobalConstants
 		HttpClientUtil.logLine("CookM: Cookie " + idx + ": " +cookies[idx]);
 	}
 
-	Hashtable cookie_list =
-	    HttpClientUtil.getList(cookie_cntxt_list, req.getConnection().getContext());
-	synchronized(cookie_list)
+	CookieStore store = getStore(req.getConnection().getContext());
+	for (int idx=0; idx<cookies.length; idx++)
 	{
-	    for (int idx=0; idx<cookies.length; idx++)
+	    Cookie cookie = store.get(cookies[idx]);
+	    if (cookie != null  &&  cookies[idx].hasExpired())
+		store.remove(cookie);		// expired, so remove
+	    else  				// new or replaced
 	    {
-		Cookie cookie = (Cookie) cookie_list.get(cookies[idx]);
-		if (cookie != null  &&  cookies[idx].hasExpired())
-		    cookie_list.remove(cookie);		// expired, so remove
-		else  					// new or replaced
+		if (cookie_handler == null  ||
+		    cookie_handler.acceptCookie(cookies[idx], req, resp))
+		    store.put(cookies[idx]);
+	    }
+	}
+    }
+
+
+    /**
+     * Returns the cookie store for the given context, creating it if
+     * necessary.
+     *
+     * @param context the context Object
+     */
+    private static CookieStore getStore(Object context)
+    {
+	CookieStore store = (CookieStore) cookie_cntxt_list.get(context);
+	if (store == null)
+	{
+	    synchronized(cookie_cntxt_list)	// only synch if necessary
+	    {
+		store = (CookieStore) cookie_cntxt_list.get(context);
+		if (store == null)	// verify nobody else beat us to it
 		{
-		    if (cookie_handler == null  ||
-			cookie_handler.acceptCookie(cookies[idx], req, resp))
-			cookie_list.put(cookies[idx], cookies[idx]);
+		    store = new CookieStore();
+		    store.setJar((CookieJar) cookie_jars.get(context));
+		    cookie_cntxt_list.put(context, store);
 		}
 	    }
 	}
+
+	return store;
     }
 
 
@@ -296,9 +313,7 @@ public class CookieModule implements HTTPClientModule, GlobalConstants
      */
     public static void discardAllCookies(Object context)
     {
-	Hashtable cookie_list = HttpClientUtil.getList(cookie_cntxt_list, context);
-	synchronized(cookie_list)
-	    { cookie_list.clear(); }
+	getStore(context).clear();
     }
 
 
@@ -317,14 +332,10 @@ public class CookieModule implements HTTPClientModule, GlobalConstants
 	    Enumeration cntxt_list = cookie_cntxt_list.elements();
 	    while (cntxt_list.hasMoreElements())
 	    {
-		Hashtable cntxt = (Hashtable) cntxt_list.nextElement();
-		synchronized(cntxt)
-		{
-		    cookies = HttpClientUtil.resizeArray(cookies, idx+cntxt.size());
-		    Enumeration cookie_list = cntxt.elements();
-		    while (cookie_list.hasMoreElements())
-			cookies[idx++] = (Cookie) cookie_list.nextElement();
-		}
+		Cookie[] cntxt = ((CookieStore) cntxt_list.nextElement()).toArray();
+		cookies = HttpClientUtil.resizeArray(cookies, idx+cntxt.length);
+		System.arraycopy(cntxt, 0, cookies, idx, cntxt.length);
+		idx += cntxt.length;
 	    }
 
 	    return cookies;
@@ -341,19 +352,7 @@ public class CookieModule implements HTTPClientModule, GlobalConstants
      */
     public static Cookie[] listAllCookies(Object context)
     {
-	Hashtable cookie_list = HttpClientUtil.getList(cookie_cntxt_list, context);
-
-	synchronized(cookie_list)
-	{
-	    Cookie[] cookies = new Cookie[cookie_list.size()];
-	    int idx = 0;
-
-	    Enumeration enumer = cookie_list.elements();
-	    while (enumer.hasMoreElements())
-		cookies[idx++] = (Cookie) enumer.nextElement();
-
-	    return cookies;
-	}
+	return getStore(context).toArray();
     }
 
 
@@ -366,9 +365,7 @@ public class CookieModule implements HTTPClientModule, GlobalConstants
      */
     public static void addCookie(Cookie cookie)
     {
-	Hashtable cookie_list =
-	    HttpClientUtil.getList(cookie_cntxt_list, HTTPConnection.getDefaultContext());
-	cookie_list.put(cookie, cookie);
+	getStore(HTTPConnection.getDefaultContext()).put(cookie);
     }
 
 
@@ -383,8 +380,7 @@ public class CookieModule implements HTTPClientModule, GlobalConstants
      */
     public static void addCookie(Cookie cookie, Object context)
     {
-	Hashtable cookie_list = HttpClientUtil.getList(cookie_cntxt_list, context);
-	cookie_list.put(cookie, cookie);
+	getStore(context).put(cookie);
     }
 
 
@@ -397,9 +393,7 @@ public class CookieModule implements HTTPClientModule, GlobalConstants
      */
     public static void removeCookie(Cookie cookie)
     {
-	Hashtable cookie_list =
-	    HttpClientUtil.getList(cookie_cntxt_list, HTTPConnection.getDefaultContext());
-	cookie_list.remove(cookie);
+	getStore(HTTPConnection.getDefaultContext()).remove(cookie);
     }
 
 
@@ -413,8 +407,58 @@ public class CookieModule implements HTTPClientModule, GlobalConstants
      */
     public static void removeCookie(Cookie cookie, Object context)
     {
-	Hashtable cookie_list = HttpClientUtil.getList(cookie_cntxt_list, context);
-	cookie_list.remove(cookie);
+	getStore(context).remove(cookie);
+    }
+
+
+    /**
+     * Sets the jar the persistent cookies of the default context are saved
+     * in.
+     *
+     * @param jar the jar, or null to not save cookies
+     * @see #setCookieJar(CookieJar, Object)
+     */
+    public static void setCookieJar(CookieJar jar)
+    {
+	setCookieJar(jar, HTTPConnection.getDefaultContext());
+    }
+
+
+    /**
+     * Sets the jar the persistent cookies of the given context are saved
+     * in. The cookies in the jar are loaded when the cookies of the context
+     * are next used; they don't replace cookies already known. From then on
+     * every persistent cookie which is set, replaced or removed is recorded
+     * in the jar. Cookies already known are saved only when they are set
+     * again.
+     *
+     * <P>The jar stays with the context when its cookies are discarded.
+     *
+     * @param jar     the jar, or null to not save cookies
+     * @param context the context Object
+     * @see CookieJar
+     */
+    public static void setCookieJar(CookieJar jar, Object context)
+    {
+	synchronized(cookie_cntxt_list)
+	{
+	    if (jar != null)
+		cookie_jars.put(context, jar);
+	    else
+		cookie_jars.remove(context);
+	    getStore(context).setJar(jar);
+	}
+    }
+
+
+    /**
+     * @param  context the context Object
+     * @return the jar the persistent cookies of the given context are
+     *         saved in, or null
+     */
+    public static CookieJar getCookieJar(Object context)
+    {
+	return (CookieJar) cookie_jars.get(context);
     }
 
 
@@ -0,0 +1,386 @@
+package HTTPClient;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The cookies of one context, as kept by the {@link CookieModule}. The
+ * cookies are indexed by their domain: for a request only the cookies whose
+ * domain is the request's host or one of its parent domains (".b.com" and
+ * ".com" for "a.b.com") are looked at. Within a domain the cookies are kept
+ * sorted by decreasing path length, which is the order in which they are
+ * sent.
+ *
+ * <P>Lookups don't lock: each domain's cookies are kept in an array which
+ * is replaced, never modified, when cookies are added or removed. Changes
+ * are serialized on the store.
+ *
+ * <P>Cookies with an expiry date are also kept in a queue ordered by that
+ * date, so expired cookies are removed without scanning all cookies.
+ *
+ * <P>If a {@link CookieJar} is set the persistent cookies are saved in it
+ * as they are added and removed.
+ */
+final class CookieStore
+	{
+		private static final Cookie[] NO_COOKIES = new Cookie[0];
+
+		/** all cookies: Cookie -> Cookie, using Cookie.equals() */
+		private final ConcurrentHashMap all = new ConcurrentHashMap();
+
+		/** the cookies per domain: String -> Cookie[], by decreasing path length */
+		private final ConcurrentHashMap domains = new ConcurrentHashMap();
+
+		/** the cookies with an expiry date, earliest first; guarded by this */
+		private final PriorityQueue expiry = new PriorityQueue(16, new Comparator()
+			{
+				public int compare(Object o1, Object o2)
+					{
+						long t1 = ((Cookie) o1).expires().getTime(), t2 = ((Cookie) o2).expires().getTime();
+						return (t1 < t2) ? -1 : ((t1 == t2) ? 0 : 1);
+					}
+			});
+
+		/** the time the first cookie in the queue expires */
+		private volatile long next_expiry = Long.MAX_VALUE;
+
+		/** the jar persistent cookies are saved in, or null */
+		private volatile CookieJar jar = null;
+
+		/** the cookies in the jar have been added */
+		private volatile boolean jar_loaded = true;
+
+		/**
+		 * Sets the jar the persistent cookies are saved in. The cookies in the
+		 * jar are added when the store is next used; cookies already in the
+		 * store are saved only when they are set again.
+		 *
+		 * @param jar
+		 *          the jar, or null to not save cookies
+		 */
+		synchronized void setJar(CookieJar jar)
+			{
+				this.jar = jar;
+				jar_loaded = (jar == null);
+			}
+
+		/**
+		 * Adds the cookies from the jar, if that hasn't been done yet. Cookies
+		 * already in the store take precedence.
+		 */
+		private void loadJar()
+			{
+				if (jar_loaded)
+					{
+						return;
+					}
+
+				synchronized (this)
+					{
+						if (!jar_loaded)
+							{
+								Cookie[] cookies = jar.load();
+								for (int idx = 0; idx < cookies.length; idx++)
+									{
+										if (!all.containsKey(cookies[idx]))
+											{
+												index(cookies[idx]);
+											}
+									}
+								jar_loaded = true;
+							}
+					}
+			}
+
+		/**
+		 * Returns the cookies to be sent with the given request, in the order
+		 * in which they are to be sent: longer paths first. Expired cookies are
+		 * removed first. The policy handler is not consulted here.
+		 *
+		 * @param req
+		 *          the request
+		 * @return the cookies for which <code>sendWith(req)</code> is true
+		 */
+		Cookie[] find(RoRequest req)
+			{
+				loadJar();
+				if (all.isEmpty())
+					{
+						return NO_COOKIES;
+					}
+
+				expire(System.currentTimeMillis());
+
+				String host = req.getConnection().getHost();
+				if (host.indexOf('.') == -1)
+					{
+						host += ".local";
+					}
+
+				Cookie[] found = NO_COOKIES;
+				int cnt = 0;
+
+				// the host itself, then each parent domain with its leading '.'
+				int dot = -1;
+				while (true)
+					{
+						Cookie[] list = (Cookie[]) domains.get((dot < 0) ? host : host.substring(dot));
+						if (list != null)
+							{
+								for (int idx = 0; idx < list.length; idx++)
+									{
+										Cookie cookie = list[idx];
+										if (!cookie.hasExpired() && cookie.sendWith(req))
+											{
+												if (cnt == found.length)
+													{
+														found = HttpClientUtil.resizeArray(found, Math.max(cnt * 2, 4));
+													}
+												found[cnt++] = cookie;
+											}
+									}
+							}
+
+						dot = host.indexOf('.', dot + 1);
+						if (dot < 0)
+							{
+								break;
+							}
+					}
+
+				if (cnt == 0)
+					{
+						return NO_COOKIES;
+					}
+
+				// merge the domains by path length; stable, and the lists are short
+				for (int idx = 1; idx < cnt; idx++)
+					{
+						Cookie cookie = found[idx];
+						int len = cookie.getPath().length(), pos = idx;
+						while (pos > 0 && found[pos - 1].getPath().length() < len)
+							{
+								found[pos] = found[pos - 1];
+								pos--;
+							}
+						found[pos] = cookie;
+					}
+
+				return (cnt == found.length) ? found : HttpClientUtil.resizeArray(found, cnt);
+			}
+
+		/**
+		 * @return the stored cookie equal to the given one, or null
+		 */
+		Cookie get(Cookie cookie)
+			{
+				loadJar();
+				return (Cookie) all.get(cookie);
+			}
+
+		/**
+		 * Adds the cookie, replacing any equal one. If there's a jar the
+		 * cookie is saved in it if it's persistent, else any equal cookie is
+		 * removed from it.
+		 *
+		 * @param cookie
+		 *          the cookie
+		 */
+		synchronized void put(Cookie cookie)
+			{
+				loadJar();
+				index(cookie);
+
+				if (jar != null)
+					{
+						if (CookieJar.isPersistent(cookie))
+							{
+								jar.put(cookie);
+							}
+						else
+							{
+								jar.remove(cookie);
+							}
+					}
+			}
+
+		/**
+		 * Adds the cookie to the indexes, replacing any equal one.
+		 */
+		private void index(Cookie cookie)
+			{
+				Cookie old = (Cookie) all.put(cookie, cookie);
+				if (old != null)
+					{
+						unindex(old);
+					}
+
+				String domain = cookie.getDomain();
+				Cookie[] list = (Cookie[]) domains.get(domain);
+				if (list == null)
+					{
+						list = NO_COOKIES;
+					}
+
+				int len = cookie.getPath().length(), pos = 0;
+				while (pos < list.length && list[pos].getPath().length() >= len)
+					{
+						pos++;
+					}
+
+				Cookie[] tmp = new Cookie[list.length + 1];
+				System.arraycopy(list, 0, tmp, 0, pos);
+				tmp[pos] = cookie;
+				System.arraycopy(list, pos, tmp, pos + 1, list.length - pos);
+				domains.put(domain, tmp);
+
+				if (cookie.expires() != null)
+					{
+						expiry.add(cookie);
+						if (expiry.size() > 2 * all.size() + 64)
+							{
+								purgeQueue();
+							}
+						next_expiry = ((Cookie) expiry.peek()).expires().getTime();
+					}
+			}
+
+		/**
+		 * Removes the cookie equal to the given one.
+		 *
+		 * @param cookie
+		 *          the cookie
+		 * @return the removed cookie, or null if there was none
+		 */
+		synchronized Cookie remove(Cookie cookie)
+			{
+				loadJar();
+				Cookie old = (Cookie) all.remove(cookie);
+				if (old != null)
+					{
+						unindex(old);
+					}
+				if (jar != null)
+					{
+						jar.remove(cookie);
+					}
+				return old;
+			}
+
+		/**
+		 * Removes the given cookie from the domain index. The expiry queue is
+		 * cleaned up lazily.
+		 */
+		private void unindex(Cookie cookie)
+			{
+				String domain = cookie.getDomain();
+				Cookie[] list = (Cookie[]) domains.get(domain);
+				if (list == null)
+					{
+						return;
+					}
+
+				for (int idx = 0; idx < list.length; idx++)
+					{
+						if (list[idx] == cookie)
+							{
+								if (list.length == 1)
+									{
+										domains.remove(domain);
+									}
+								else
+									{
+										Cookie[] tmp = new Cookie[list.length - 1];
+										System.arraycopy(list, 0, tmp, 0, idx);
+										System.arraycopy(list, idx + 1, tmp, idx, list.length - idx - 1);
+										domains.put(domain, tmp);
+									}
+								return;
+							}
+					}
+			}
+
+		/**
+		 * Removes all cookies which have expired at the given time.
+		 */
+		private void expire(long now)
+			{
+				if (now < next_expiry)
+					{
+						return;
+					}
+
+				synchronized (this)
+					{
+						while (!expiry.isEmpty() && ((Cookie) expiry.peek()).expires().getTime() <= now)
+							{
+								Cookie cookie = (Cookie) expiry.poll();
+								if (all.get(cookie) == cookie)
+									{
+										all.remove(cookie);
+										unindex(cookie);
+									}
+							}
+						next_expiry = expiry.isEmpty() ? Long.MAX_VALUE : ((Cookie) expiry.peek()).expires().getTime();
+					}
+			}
+
+		/**
+		 * Drops the queue entries of cookies which have been replaced or
+		 * removed.
+		 */
+		private void purgeQueue()
+			{
+				for (Iterator iter = expiry.iterator(); iter.hasNext();)
+					{
+						Cookie cookie = (Cookie) iter.next();
+						if (all.get(cookie) != cookie)
+							{
+								iter.remove();
+							}
+					}
+			}
+
+		/**
+		 * Removes all cookies. The jar, if any, is left alone.
+		 */
+		synchronized void clear()
+			{
+				jar_loaded = true;
+				all.clear();
+				domains.clear();
+				expiry.clear();
+				next_expiry = Long.MAX_VALUE;
+			}
+
+		/**
+		 * @return the number of cookies
+		 */
+		int size()
+			{
+				loadJar();
+				return all.size();
+			}
+
+		/**
+		 * @return all cookies, in no particular order
+		 */
+		Cookie[] toArray()
+			{
+				loadJar();
+				Cookie[] cookies = new Cookie[all.size()];
+				int cnt = 0;
+				for (Iterator iter = all.values().iterator(); iter.hasNext();)
+					{
+						Cookie cookie = (Cookie) iter.next();
+						if (cnt == cookies.length)
+							{
+								cookies = HttpClientUtil.resizeArray(cookies, cnt * 2 + 1);
+							}
+						cookies[cnt++] = cookie;
+					}
+				return (cnt == cookies.length) ? cookies : HttpClientUtil.resizeArray(cookies, cnt);
+			}
+	}
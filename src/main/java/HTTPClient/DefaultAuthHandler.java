@@ -33,12 +33,18 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.util.Vector;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class is the default authorization handler. It currently handles the
  * authentication schemes "Basic", "Digest", "NTLM", and "SOCKS5" (used for
  * the SocksClient and not part of HTTP per se).
  *
+ * <P>Digest credentials may be sent preemptively, reusing the last nonce
+ * the server handed out for the realm: see {@link
+ * #setDigestPreemptive(boolean)}.
+ *
  * @version	0.4  12/05/1998
  * @author	Ronald Tschal&auml;r
  * @author      modified by Stefan K&ouml;psell, 04/11/24
@@ -58,6 +64,25 @@ public class DefaultAuthHandler implements AuthorizationHandler, GlobalConstants
 			new ie.brd.crypto.algorithms.DES.DESAlgorithm(false);
     private static byte[] digest_secret = null;
 
+    /** send Digest credentials preemptively using the last nonce */
+    private static boolean digest_preemptive = false;
+
+    /** the nonce in use per protection space: DigestKey -> DigestNonce */
+    private static ConcurrentHashMap digest_nonces = new ConcurrentHashMap();
+
+    static
+    {
+	try
+	{
+	    digest_preemptive =
+		Boolean.getBoolean("HTTPClient.defAuthHandler.Digest.preemptive");
+	    if (DebugAuth  &&  digest_preemptive)
+		HttpClientUtil.logLine("Auth:  sending Digest credentials preemptively");
+	}
+	catch (Exception e)
+	    { }
+    }
+
 
     /** @author  removed by Stefan Lieske, 2005/02/13 */
     //static
@@ -266,6 +291,10 @@ public class DefaultAuthHandler implements AuthorizationHandler, GlobalConstants
 	String auth_info = resp.getHeader("Authentication-Info");
 	String prxy_info = resp.getHeader("Proxy-Authentication-Info");
 
+	if (digest_preemptive  &&  prev != null  &&
+	    resp.getStatusCode() != 401)
+	    digest_add_space(prev, req);
+
 	if (auth_info == null  &&  prev != null  &&
 	    hasParam(prev.getParams(), "qop", "auth-int"))
 	    auth_info = "";
@@ -439,7 +468,7 @@ public class DefaultAuthHandler implements AuthorizationHandler, GlobalConstants
 							  Object context)
     {
 	String A1 = user + ":" + realm + ":" + pass;
-	String[] a1s = { new MD5(A1).asHex(), null };
+	String[] a1s = { Hash.md5Hex(A1), null };
 
 	AuthorizationInfo prev = AuthorizationInfo.getAuthorization(host, port,
 						    "Digest", realm, context);
@@ -479,6 +508,16 @@ public class DefaultAuthHandler implements AuthorizationHandler, GlobalConstants
 						  boolean proxy)
 	    throws AuthSchemeNotImplException
     {
+	// reuse the last nonce without going through the params below
+
+	if (challenge == null  &&  digest_preemptive)
+	{
+	    AuthorizationInfo new_info = digest_preemptive_fixup(info, req);
+	    if (new_info != null)
+		return new_info;
+	}
+
+
 	// get various parameters from challenge
 
 	int ch_domain=-1, ch_nonce=-1, ch_alg=-1, ch_opaque=-1, ch_stale=-1,
@@ -590,23 +629,7 @@ public class DefaultAuthHandler implements AuthorizationHandler, GlobalConstants
 		    cnonce = params.length-1;
 		}
 
-		if (digest_secret == null)
-		    digest_secret = gen_random_bytes(20);
-
-		long l_time = System.currentTimeMillis();
-		byte[] time = new byte[8];
-		time[0] = (byte) (l_time & 0xFF);
-		time[1] = (byte) ((l_time >>  8) & 0xFF);
-		time[2] = (byte) ((l_time >> 16) & 0xFF);
-		time[3] = (byte) ((l_time >> 24) & 0xFF);
-		time[4] = (byte) ((l_time >> 32) & 0xFF);
-		time[5] = (byte) ((l_time >> 40) & 0xFF);
-		time[6] = (byte) ((l_time >> 48) & 0xFF);
-		time[7] = (byte) ((l_time >> 56) & 0xFF);
-
-		MD5 hash = new MD5(digest_secret);
-		hash.Update(time);
-		params[cnonce] = new NVPair("cnonce", hash.asHex());
+		params[cnonce] = new NVPair("cnonce", gen_cnonce());
 	    }
 
 
@@ -701,12 +724,41 @@ public class DefaultAuthHandler implements AuthorizationHandler, GlobalConstants
 		alg != -1  &&
 		params[alg].getValue().equalsIgnoreCase("MD5-sess"))
 	    {
-		extra[1] = new MD5(extra[0] + ":" + params[nonce].getValue() +
-				   ":" + params[cnonce].getValue()).asHex();
+		extra[1] = Hash.md5Hex(extra[0] + ":" + params[nonce].getValue() +
+				       ":" + params[cnonce].getValue());
 		info.setExtraInfo(extra);
 	    }
 
 
+	    // remember the nonce for sending preemptively; requests sent
+	    // preemptively count with the same nonce
+
+	    if (digest_preemptive)
+	    {
+		DigestNonce cur = digest_get_nonce(new DigestKey(info, req),
+						   params[nonce].getValue());
+		if (cur == null  &&  challenge != null  &&  ch_dreq == -1  &&
+		    digest == -1)
+		{
+		    String A1 = extra[0];
+		    if (alg != -1  &&
+			params[alg].getValue().equalsIgnoreCase("MD5-sess"))
+			A1 = extra[1];
+
+		    cur = digest_put_nonce(new DigestKey(info, req),
+			new DigestNonce(params[nonce].getValue(),
+			    (opaque == -1 ? null : params[opaque].getValue()),
+			    (alg == -1 ? null : params[alg].getValue()),
+			    (qop == -1 ? null : params[qop].getValue()),
+			    (cnonce == -1 ? null : params[cnonce].getValue()),
+			    extra[0], A1, 0, !proxy  &&  ch_domain == -1));
+		}
+
+		if (cur != null  &&  qop != -1)
+		    params[nc] = new NVPair("nc", cur.nextCount(), false);
+	    }
+
+
 	    // update parameters for next auth cycle
 
 	    info.setParams(params);
@@ -715,33 +767,18 @@ public class DefaultAuthHandler implements AuthorizationHandler, GlobalConstants
 
 	// calc "response" attribute
 
-	String A1, A2, resp_val;
-
+	String A1;
 	if (alg != -1  &&  params[alg].getValue().equalsIgnoreCase("MD5-sess"))
 	    A1 = extra[1];
 	else
 	    A1 = extra[0];
 
-	A2 = req.getMethod() + ":" + params[uri].getValue();
-	if (qop != -1  &&  params[qop].getValue().equalsIgnoreCase("auth-int"))
-	{
-	    MD5 entity_hash = new MD5();
-	    entity_hash.Update(req.getData() == null ? NUL : req.getData());
-	    A2 += ":" + entity_hash.asHex();
-	}
-	A2 = new MD5(A2).asHex();
-
-	if (qop == -1)
-	    resp_val =
-		new MD5(A1 + ":" + params[nonce].getValue() + ":" + A2).asHex();
-	else
-	    resp_val =
-		new MD5(A1 + ":" + params[nonce].getValue() + ":" +
-			params[nc].getValue() + ":" +
-			params[cnonce].getValue() + ":" +
-			params[qop].getValue() + ":" + A2).asHex();
-
-	params[response] = new NVPair("response", resp_val);
+	params[response] = new NVPair("response",
+		digest_response(digest_prefix(A1, params[nonce].getValue()),
+				(qop == -1 ? null : params[nc].getValue()),
+				(cnonce == -1 ? null : params[cnonce].getValue()),
+				(qop == -1 ? null : params[qop].getValue()),
+				params[uri].getValue(), req));
 
 
 	// calc digest if necessary
@@ -906,6 +943,14 @@ public class DefaultAuthHandler implements AuthorizationHandler, GlobalConstants
 	    ai.setParams(params);
 	}
 
+	if (digest_preemptive)
+	{
+	    DigestKey   key = new DigestKey(ai, req);
+	    DigestNonce cur = (DigestNonce) digest_nonces.get(key);
+	    if (cur != null  &&  !cur.nonce.equals(nextnonce.getValue()))
+		digest_put_nonce(key, cur.next(nextnonce.getValue()));
+	}
+
 	return true;
     }
 
@@ -939,7 +984,7 @@ public class DefaultAuthHandler implements AuthorizationHandler, GlobalConstants
 	{
 	    if (DebugAuth)
 		HttpClientUtil.logLine("Auth:  verifying digest from " + hdr_name);
-	    verifier.verifyHash(new MD5().Final(), 0);
+	    verifier.verifyHash(Hash.md5().digest(), 0);
 	}
 
 	return true;
@@ -997,7 +1042,7 @@ public class DefaultAuthHandler implements AuthorizationHandler, GlobalConstants
 	{
 	    if (DebugAuth)
 		HttpClientUtil.logLine("Auth:  verifying rspauth from " + hdr_name);
-	    verifier.verifyHash(new MD5().Final(), 0);
+	    verifier.verifyHash(Hash.md5().digest(), 0);
 	}
 	else
 	{
@@ -1013,6 +1058,178 @@ public class DefaultAuthHandler implements AuthorizationHandler, GlobalConstants
     }
 
 
+    /**
+     * Sets up the Digest credentials for a request which is sent
+     * preemptively, using the last nonce of the info's protection space.
+     * The nonce-count is taken from a counter per nonce, so concurrent
+     * requests neither lock nor send the same count. The info itself is not
+     * modified.
+     *
+     * @return the credentials to send, or null if there's no usable nonce
+     *         and the regular fixup must be done
+     */
+    private static AuthorizationInfo digest_preemptive_fixup(
+					    AuthorizationInfo info,
+					    RoRequest req)
+    {
+	DigestNonce cur =
+		(DigestNonce) digest_nonces.get(new DigestKey(info, req));
+	String[] extra = (String[]) info.getExtraInfo();
+	if (cur == null  ||  extra == null  ||  !cur.ha1.equals(extra[0]))
+	    return null;		// new credentials
+	if (cur.qop != null  &&  cur.qop.equalsIgnoreCase("auth-int")  &&
+	    req.getStream() != null)
+	    return null;		// can't hash the body
+
+	NVPair[] params = info.getParams();
+	if (hasParam(params, "digest", null))
+	    return null;		// digest-required; not worth it
+
+	String uri = req.getRequestURI();
+	params = HttpClientUtil.setValue(params, "uri", uri);
+	params = HttpClientUtil.setValue(params, "nonce", cur.nonce);
+	if (cur.opaque != null)
+	    params = HttpClientUtil.setValue(params, "opaque", cur.opaque);
+	if (cur.algorithm != null)
+	    params = HttpClientUtil.setValue(params, "algorithm", cur.algorithm);
+
+	String nc = null;
+	if (cur.qop != null)
+	{
+	    nc = cur.nextCount();
+	    params = HttpClientUtil.setValue(params, "cnonce", cur.cnonce);
+	    params = HttpClientUtil.setValue(params, "nc", nc, false);
+	    params = HttpClientUtil.setValue(params, "qop", cur.qop, false);
+	}
+
+	params = HttpClientUtil.setValue(params, "response",
+		    digest_response(cur.startResponse(), nc, cur.cnonce, cur.qop,
+				    uri, req));
+
+	if (DebugAuth)
+	    HttpClientUtil.logLine("Auth:  reusing nonce " + cur.nonce +
+			 (nc != null ? " with nc " + nc : ""));
+
+	return new AuthorizationInfo(info.getHost(), info.getPort(),
+				     info.getScheme(), info.getRealm(),
+				     params, extra);
+    }
+
+
+    /**
+     * @return the state of the given nonce in the given protection space,
+     *         or null if that's not the nonce in use
+     */
+    private static DigestNonce digest_get_nonce(DigestKey key, String nonce)
+    {
+	DigestNonce cur = (DigestNonce) digest_nonces.get(key);
+	return (cur != null  &&  cur.nonce.equals(nonce)) ? cur : null;
+    }
+
+
+    /**
+     * Makes the given nonce the one in use in the given protection space,
+     * unless some other request got there first with the same nonce.
+     *
+     * @return the state of the nonce in use
+     */
+    private static DigestNonce digest_put_nonce(DigestKey key,
+						DigestNonce nonce)
+    {
+	while (true)
+	{
+	    DigestNonce cur = (DigestNonce) digest_nonces.get(key);
+	    if (cur != null  &&  cur.nonce.equals(nonce.nonce))
+		return cur;
+	    if (cur == null ? digest_nonces.putIfAbsent(key, nonce) == null
+			    : digest_nonces.replace(key, cur, nonce))
+		return nonce;
+	}
+    }
+
+
+    /**
+     * Starts the hash for the "response" attribute. The part hashed here
+     * only depends on the credentials and the nonce, so it may be copied
+     * for each request using the same nonce.
+     *
+     * @param A1     the hex digest of A1
+     * @param nonce  the nonce
+     * @return the hash of "A1:nonce:"
+     */
+    private static Hash digest_prefix(String A1, String nonce)
+    {
+	Hash prefix = Hash.md5();
+	prefix.update(A1 + ":" + nonce + ":");
+	return prefix;
+    }
+
+
+    /**
+     * Calculates the "response" attribute.
+     *
+     * @param prefix the hash started by digest_prefix(); it's used up
+     * @param nc     the nonce-count; null if no qop
+     * @param cnonce the cnonce; null if no qop
+     * @param qop    the qop; null if none
+     * @param uri    the "uri" attribute
+     * @param req    the request
+     * @return the hex digest
+     */
+    private static String digest_response(Hash prefix, String nc,
+					  String cnonce, String qop,
+					  String uri, RoRequest req)
+    {
+	String A2 = req.getMethod() + ":" + uri;
+	if (qop != null  &&  qop.equalsIgnoreCase("auth-int"))
+	{
+	    Hash entity_hash = Hash.md5();
+	    entity_hash.update(req.getData() == null ? NUL : req.getData());
+	    A2 += ":" + entity_hash.digestHex();
+	}
+	A2 = Hash.md5Hex(A2);
+
+	if (qop == null)
+	    prefix.update(A2);
+	else
+	    prefix.update(nc + ":" + cnonce + ":" + qop + ":" + A2);
+	return prefix.digestHex();
+    }
+
+
+    /**
+     * If the server didn't list the domain of the protection space in the
+     * challenge, the whole server belongs to it. Adds the root to the
+     * stored info's paths once the credentials have been accepted, so that
+     * they are sent preemptively to all of the server.
+     */
+    private static void digest_add_space(AuthorizationInfo prev,
+					 RoRequest req)
+    {
+	if (!prev.getScheme().equalsIgnoreCase("Digest"))
+	    return;
+
+	DigestNonce cur =
+		(DigestNonce) digest_nonces.get(new DigestKey(prev, req));
+	if (cur == null  ||  !cur.whole_server  ||  cur.space_added)
+	    return;
+
+	try
+	{
+	    AuthorizationInfo stored =
+		AuthorizationInfo.getAuthorization(prev, req, null, false,
+						   false);
+	    if (stored != null)
+	    {
+		stored.addPath("/");
+		cur.space_added = true;
+	    }
+	}
+	catch (AuthSchemeNotImplException asnie)
+	    { /* shouldn't happen */ }
+    }
+
+
     /**
      * Calculates the digest of the request body. This was in RFC-2069
      * and draft-ietf-http-authentication-00.txt, but has subsequently
@@ -1043,18 +1260,19 @@ public class DefaultAuthHandler implements AuthorizationHandler, GlobalConstants
 
 	NVPair[] hdrs = req.getHeaders();
 	byte[] entity_body = (req.getData() == null ? NUL : req.getData());
-	MD5 entity_hash = new MD5();
-	entity_hash.Update(entity_body);
+	Hash entity_hash = Hash.md5();
+	entity_hash.update(entity_body);
+	String entity_body_hash = entity_hash.digestHex();
 
-	String entity_info = new MD5(req.getRequestURI() + ":" +
+	String entity_info = Hash.md5Hex(req.getRequestURI() + ":" +
 	     (ct == -1 ? "" : hdrs[ct].getValue()) + ":" +
 	     entity_body.length + ":" +
 	     (ce == -1 ? "" : hdrs[ce].getValue()) + ":" +
 	     (lm == -1 ? "" : hdrs[lm].getValue()) + ":" +
-	     (ex == -1 ? "" : hdrs[ex].getValue())).asHex();
+	     (ex == -1 ? "" : hdrs[ex].getValue()));
 	String entity_digest = A1_hash + ":" + nonce + ":" + req.getMethod() +
 			":" + (dt == -1 ? "" : hdrs[dt].getValue()) +
-			":" + entity_info + ":" + entity_hash.asHex();
+			":" + entity_info + ":" + entity_body_hash;
 
 	if (DebugAuth)
 	{
@@ -1064,11 +1282,11 @@ public class DefaultAuthHandler implements AuthorizationHandler, GlobalConstants
 		 (ce == -1 ? "" : hdrs[ce].getValue()) + ":" +
 		 (lm == -1 ? "" : hdrs[lm].getValue()) + ":" +
 		 (ex == -1 ? "" : hdrs[ex].getValue()) +"'");
-	    HttpClientUtil.logLine("Auth:  Entity-Body: '" + entity_hash.asHex() + "'");
+	    HttpClientUtil.logLine("Auth:  Entity-Body: '" + entity_body_hash + "'");
 	    HttpClientUtil.logLine("Auth:  Entity-Digest: '" + entity_digest + "'");
 	}
 
-	return new MD5(entity_digest).asHex();
+	return Hash.md5Hex(entity_digest);
     }
 
 
@@ -1089,6 +1307,34 @@ public class DefaultAuthHandler implements AuthorizationHandler, GlobalConstants
     }
 
 
+    /**
+     * Generate a new client nonce.
+     *
+     * @return the cnonce, as hex string
+     */
+    private static String gen_cnonce()
+    {
+	if (digest_secret == null)
+	    digest_secret = gen_random_bytes(20);
+
+	long l_time = System.currentTimeMillis();
+	byte[] time = new byte[8];
+	time[0] = (byte) (l_time & 0xFF);
+	time[1] = (byte) ((l_time >>  8) & 0xFF);
+	time[2] = (byte) ((l_time >> 16) & 0xFF);
+	time[3] = (byte) ((l_time >> 24) & 0xFF);
+	time[4] = (byte) ((l_time >> 32) & 0xFF);
+	time[5] = (byte) ((l_time >> 40) & 0xFF);
+	time[6] = (byte) ((l_time >> 48) & 0xFF);
+	time[7] = (byte) ((l_time >> 56) & 0xFF);
+
+	Hash hash = Hash.md5();
+	hash.update(digest_secret);
+	hash.update(time);
+	return hash.digestHex();
+    }
+
+
     /**
      * Generate <var>num</var> bytes of random data.
      *
@@ -1566,7 +1812,9 @@ public class DefaultAuthHandler implements AuthorizationHandler, GlobalConstants
 
 	// calc MD4 hash of password (as unicode array)
 
-	byte[] hash = new MD4(uc).getHash();
+	Hash md4 = Hash.md4();
+	md4.update(uc);
+	byte[] hash = md4.digest();
 	return HttpClientUtil.resizeArray(hash, 21);
     }
 
@@ -1684,6 +1932,41 @@ public class DefaultAuthHandler implements AuthorizationHandler, GlobalConstants
 	return prev;
     }
 
+
+    /**
+     * Enables or disables sending Digest credentials preemptively. When
+     * enabled, the nonce (and opaque, algorithm, qop and cnonce) of the
+     * last challenge is kept per protection space, and requests which are
+     * sent preemptively compute their response from it. The nonce-count is
+     * incremented atomically, so concurrent requests don't need to lock.
+     * A new nonce is picked up from the <var>nextnonce</var> attribute of
+     * the Authentication-Info header, or when the server rejects the
+     * nonce with a <var>stale=true</var> challenge. If the server's
+     * challenge didn't list a domain, the credentials are sent to the
+     * whole server once they have been accepted.
+     *
+     * <P>This is disabled by default. It may also be enabled with the
+     * property <var>HTTPClient.defAuthHandler.Digest.preemptive</var>.
+     *
+     * @param enable true to send Digest credentials preemptively
+     */
+    public static void setDigestPreemptive(boolean enable)
+    {
+	digest_preemptive = enable;
+	if (!enable)
+	    digest_nonces.clear();
+    }
+
+
+    /**
+     * @return true if Digest credentials are sent preemptively
+     * @see #setDigestPreemptive(boolean)
+     */
+    public static boolean isDigestPreemptive()
+    {
+	return digest_preemptive;
+    }
+
     private static final byte[] unHex(String hex)
     {
 	byte[] digest = new byte[hex.length()/2];
@@ -1787,18 +2070,18 @@ public class DefaultAuthHandler implements AuthorizationHandler, GlobalConstants
 
 	    String A1, A2;
 	    if (alg != null  &&  alg.equalsIgnoreCase("MD5-sess"))
-		A1 = new MD5(HA1 + ":" + nonce + ":" + cnonce).asHex();
+		A1 = Hash.md5Hex(HA1 + ":" + nonce + ":" + cnonce);
 	    else
 		A1 = HA1;
 
 	    // draft-01 was: A2 = resp.getStatusCode() + ":" + uri;
 	    A2 = ":" + uri;
 	    if (qop.equalsIgnoreCase("auth-int"))
-		A2 += ":" + MD5.asHex(hash);
-	    A2 = new MD5(A2).asHex();
+		A2 += ":" + Hash.toHex(hash);
+	    A2 = Hash.md5Hex(A2);
 
-	    hash = new MD5(A1 + ":" + nonce + ":" +  nc + ":" + cnonce + ":" +
-			   qop + ":" + A2).Final();
+	    hash = Hash.md5Digest(A1 + ":" + nonce + ":" +  nc + ":" + cnonce +
+				  ":" + qop + ":" + A2);
 
 	    for (int idx=0; idx<hash.length; idx++)
 	    {
@@ -1859,16 +2142,16 @@ public class DefaultAuthHandler implements AuthorizationHandler, GlobalConstants
 
 	    byte[] digest = unHex(elem.getValue());
 
-	    String entity_info = new MD5(
+	    String entity_info = Hash.md5Hex(
 				    uri + ":" +
 				    header_val("Content-type", resp) + ":" +
 				    header_val("Content-length", resp) + ":" +
 				    header_val("Content-Encoding", resp) + ":" +
 				    header_val("Last-Modified", resp) + ":" +
-				    header_val("Expires", resp)).asHex();
-	    hash = new MD5(HA1 + ":" + nonce + ":" + method + ":" +
-			   header_val("Date", resp) +
-			   ":" + entity_info + ":" + MD5.asHex(hash)).Final();
+				    header_val("Expires", resp));
+	    hash = Hash.md5Digest(HA1 + ":" + nonce + ":" + method + ":" +
+				  header_val("Date", resp) +
+				  ":" + entity_info + ":" + Hash.toHex(hash));
 
 	    for (int idx=0; idx<hash.length; idx++)
 	    {
@@ -1892,7 +2175,118 @@ public class DefaultAuthHandler implements AuthorizationHandler, GlobalConstants
 	    return (hdr != null ? hdr : (tlr != null ? tlr : ""));
 	}
     }
-}
 
 
+    /**
+     * Identifies a protection space in a context.
+     */
+    private static final class DigestKey
+    {
+	private final Object context;
+	private final String host;
+	private final int    port;
+	private final String realm;
+
+	DigestKey(AuthorizationInfo info, RoRequest req)
+	{
+	    this.context = (req != null) ? req.getConnection().getContext()
+					 : HTTPConnection.getDefaultContext();
+	    this.host    = info.getHost();
+	    this.port    = info.getPort();
+	    this.realm   = info.getRealm();
+	}
+
+	public int hashCode()
+	{
+	    return host.hashCode() ^ realm.hashCode() ^ port;
+	}
+
+	public boolean equals(Object obj)
+	{
+	    if (!(obj instanceof DigestKey))
+		return false;
+	    DigestKey other = (DigestKey) obj;
+	    return context == other.context  &&  port == other.port  &&
+		   host.equals(other.host)  &&  realm.equals(other.realm);
+	}
+    }
+
+
+    /**
+     * A server nonce and what's needed to compute responses with it. Only
+     * the nonce-count changes.
+     */
+    private static final class DigestNonce
+    {
+	final String  nonce, opaque, algorithm, qop, cnonce;
+
+	/** the hash of user:realm:password, to detect new credentials */
+	final String  ha1;
+
+	/** the A1 hash to use; for MD5-sess this depends on the nonce */
+	final String  a1;
+
+	/** the hash of "A1:nonce:"; only ever copied, never updated */
+	final Hash    prefix;
 
+	/** the challenge didn't list a domain */
+	final boolean whole_server;
+
+	/** the whole server has been added to the info's paths */
+	volatile boolean space_added = false;
+
+	private final AtomicLong nc;
+
+	DigestNonce(String nonce, String opaque, String algorithm, String qop,
+		    String cnonce, String ha1, String a1, long nc,
+		    boolean whole_server)
+	{
+	    this.nonce        = nonce;
+	    this.opaque       = opaque;
+	    this.algorithm    = algorithm;
+	    this.qop          = qop;
+	    this.cnonce       = cnonce;
+	    this.ha1          = ha1;
+	    this.a1           = a1;
+	    this.prefix       = digest_prefix(a1, nonce);
+	    this.nc           = new AtomicLong(nc);
+	    this.whole_server = whole_server;
+	}
+
+	/**
+	 * @return a hash of "A1:nonce:" to finish a response with; it's a
+	 *         copy of the prefix, or hashed anew if the prefix can't be
+	 *         copied
+	 */
+	Hash startResponse()
+	{
+	    Hash hash = prefix.copy();
+	    return (hash != null) ? hash : digest_prefix(a1, nonce);
+	}
+
+	/**
+	 * @return the next nonce-count, as 8 hex digits
+	 */
+	String nextCount()
+	{
+	    String c = Long.toHexString(nc.incrementAndGet());
+	    return "00000000".substring(Math.min(c.length(), 8)) + c;
+	}
+
+	/**
+	 * @return the state for the given next nonce, counting from 1 again
+	 */
+	DigestNonce next(String next_nonce)
+	{
+	    String next_a1 = a1;
+	    if (algorithm != null  &&  algorithm.equalsIgnoreCase("MD5-sess"))
+		next_a1 = Hash.md5Hex(ha1 + ":" + next_nonce + ":" + cnonce);
+
+	    DigestNonce next =
+		new DigestNonce(next_nonce, opaque, algorithm, qop, cnonce, ha1,
+				next_a1, 0, whole_server);
+	    next.space_added = space_added;
+	    return next;
+	}
+    }
+}
@@ -125,16 +125,18 @@ final class ExtBufferedInputStream extends DemultiplexorInputStream
 
     /**
      * Creates a new buffered input stream to read data from the 
-     * specified input stream with the specified buffer size. 
+     * specified input stream with the specified buffer size. The buffer
+     * is taken from the BufferPool and given back when the stream is
+     * closed.
      *
      * @param   in     the underlying input stream.
-     * @param   size   the buffer size.
+     * @param   size   the minimum buffer size.
      * @since   JDK1.0
      */
     public ExtBufferedInputStream(InputStream in, int size)
     {
 	super(in);
-	buf = new byte[size];
+	buf = BufferPool.borrow(size);
     }
 
 
@@ -299,7 +301,7 @@ final class ExtBufferedInputStream extends DemultiplexorInputStream
      * the input stream ended just after the terminator; use null to
      * disable. Resets the atEnd() flag.
      */
-    public void setTerminator(byte[] end_str, int[] end_cmp)
+    public synchronized void setTerminator(byte[] end_str, int[] end_cmp)
     {
 	eod_str = end_str;
 	eod_cmp = end_cmp;
@@ -331,7 +333,7 @@ final class ExtBufferedInputStream extends DemultiplexorInputStream
      * up and the method returns true; else nothing is read and false is
      * returned.
      */
-    public boolean startsWithCRLF()  throws IOException
+    public synchronized boolean startsWithCRLF()  throws IOException
     {
 	// the easy cases
 
@@ -369,5 +371,38 @@ final class ExtBufferedInputStream extends DemultiplexorInputStream
 	pos += 2;
 	return true;
     }
+
+
+    /**
+     * Closes the underlying stream and gives the buffer back to the
+     * BufferPool. The underlying stream is closed first so that a read
+     * blocked on it is woken up.
+     *
+     * @exception  IOException  if an I/O error occurs.
+     */
+    public void close()  throws IOException
+    {
+	try
+	    { in.close(); }
+	finally
+	    { releaseBuffer(); }
+    }
+
+
+    /**
+     * Gives the buffer back to the BufferPool without closing the
+     * underlying stream, for when the socket is kept open for someone
+     * else. The stream can't be read after this.
+     */
+    synchronized void releaseBuffer()
+    {
+	if (buf.length == 0)  return;
+
+	BufferPool.release(buf);
+	buf     = new byte[0];
+	pos     = 0;
+	count   = 0;
+	eod_pos = -1;
+    }
 }
 
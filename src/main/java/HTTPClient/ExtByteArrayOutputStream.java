@@ -94,9 +94,7 @@ final class ExtByteArrayOutputStream
 	if (buf.length - count < len)
 	    buf = HttpClientUtil.resizeArray(buf, Math.max(buf.length*2, count + 2*len));
 
-//	str.getBytes(0, len, buf, count);
-	HttpClientUtil.getBytes(str,buf,count);
-	count += len;
+	put(str, len);
     }
 
 
@@ -115,12 +113,8 @@ final class ExtByteArrayOutputStream
 	    buf = HttpClientUtil.resizeArray(buf,
 				Math.max(buf.length*2, count + 2*(len1+len2)));
 
-//        str1.getBytes(0, len1, buf, count);
-	HttpClientUtil.getBytes(str1,buf,count);
-	count += len1;
-//	str2.getBytes(0, len2, buf, count);
-	HttpClientUtil.getBytes(str2,buf,count);
-	count += len2;
+	put(str1, len1);
+	put(str2, len2);
     }
 
 
@@ -140,15 +134,23 @@ final class ExtByteArrayOutputStream
 	    buf = HttpClientUtil.resizeArray(buf,
 			    Math.max(buf.length*2, count + 2*(len1+len2+len3)));
 
-//	str1.getBytes(0, len1, buf, count);
-	HttpClientUtil.getBytes(str1,buf,count);
-	count += len1;
-//	str2.getBytes(0, len2, buf, count);
-	HttpClientUtil.getBytes(str2,buf,count);
-	count += len2;
-//	str3.getBytes(0, len3, buf, count);
-	HttpClientUtil.getBytes(str3,buf,count);
-	count += len3;
+	put(str1, len1);
+	put(str2, len2);
+	put(str3, len3);
+    }
+
+
+    /**
+     * Copies the lower byte of each char into the buffer, as the deprecated
+     * String.getBytes(int, int, byte[], int) does. There must be enough room.
+     */
+    private final void put(String str, int len)
+    {
+	byte[] b = buf;
+	int    c = count;
+	for (int idx=0; idx<len; idx++)
+	    b[c++] = (byte) str.charAt(idx);
+	count = c;
     }
 
 
@@ -178,6 +180,15 @@ final class ExtByteArrayOutputStream
     }
 
 
+    /**
+     * @return the current size of the buffer
+     */
+    public final int capacity()
+    {
+	return buf.length;
+    }
+
+
     /**
      * Write the contents on the output stream;
      *
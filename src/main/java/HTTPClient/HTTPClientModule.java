@@ -73,6 +73,9 @@ import java.io.IOException;
  * made to detect redirect loops; it could do this by defining an instance
  * variable and incrementing it each time the request handler is invoked.
  *
+ * <P>Modules which need no such state may implement {@link StatelessModule}
+ * instead; a single instance of these is then shared by all requests.
+ *
  * @version	0.3  30/01/1998
  * @author	Ronald Tschal&auml;r
  * @since	V0.3
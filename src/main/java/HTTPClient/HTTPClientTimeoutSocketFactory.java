@@ -0,0 +1,35 @@
+package HTTPClient;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * A socket factory which can limit the time spent establishing a connection.
+ * If the socket factory set on an HTTPConnection implements this interface
+ * and a timeout is set, the connection is established in the calling thread;
+ * plain HTTPClientSocketFactory's need a separate thread per connection
+ * attempt to implement the timeout.
+ *
+ * @see HTTPConnection#setSocketFactory(HTTPClientSocketFactory)
+ */
+public interface HTTPClientTimeoutSocketFactory extends HTTPClientSocketFactory
+	{
+		/**
+		 * Creates a socket connected to the given host and port.
+		 *
+		 * @param host
+		 *          the host
+		 * @param port
+		 *          the port
+		 * @param timeout
+		 *          the maximum time in milliseconds to spend connecting; 0
+		 *          means wait indefinitely
+		 * @return the connected socket
+		 * @exception java.net.SocketTimeoutException
+		 *              if the timeout expired
+		 * @exception IOException
+		 *              if the connection could not be established
+		 */
+		Socket connect(InetAddress host, int port, int timeout) throws IOException;
+	}
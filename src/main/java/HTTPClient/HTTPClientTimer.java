@@ -0,0 +1,46 @@
+package HTTPClient;
+
+/**
+ * A timer used by the HTTPClient to schedule timeouts. The default
+ * implementation is the HashedWheelTimer; a different implementation may be
+ * installed with <code>HTTPConnection.setTimer()</code>.
+ *
+ * <P>Currently only the closing of idle connections is scheduled here. Read
+ * and connect timeouts are left to the socket: reads use the socket's
+ * SO_TIMEOUT (or, for non-blocking channels, a timed wait on the buffered
+ * data), and connects use <code>Socket.connect(address, timeout)</code> or a
+ * selector. Both block the calling thread anyway, so a timer task would only
+ * add the work of scheduling and cancelling it for every read.
+ *
+ * <P>Implementations must be thread-safe. Tasks are expected to be short;
+ * they should not block.
+ *
+ * @see HashedWheelTimer
+ * @see HTTPConnection#setTimer(HTTPClientTimer)
+ */
+public interface HTTPClientTimer
+	{
+		/**
+		 * Schedules a task to be run once after the given delay.
+		 *
+		 * @param task
+		 *          the task to run
+		 * @param delay
+		 *          the delay in milliseconds
+		 * @return a handle which may be used to cancel the task
+		 */
+		Timeout schedule(Runnable task, long delay);
+
+		/**
+		 * A handle for a scheduled task.
+		 */
+		interface Timeout
+			{
+				/**
+				 * Cancels the task.
+				 *
+				 * @return false if the task has already been run or cancelled
+				 */
+				boolean cancel();
+			}
+	}
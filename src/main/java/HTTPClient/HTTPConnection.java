@@ -29,16 +29,37 @@
 
 package HTTPClient;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.OutputStream;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.ConnectException;
 import java.net.URL;
 import java.net.Socket;
+import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class implements http protocol requests; it contains most of HTTP/1.1
@@ -279,12 +300,15 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 		/** the maximum number of requests over a HTTP/1.0 keep-alive connection */
 		private int KeepAliveReqMax = -1;
 
-		/** the number of requests over a HTTP/1.0 keep-alive connection left */
-		private int KeepAliveReqLeft;
-
 		/** hack to be able to disable pipelining */
 		private static boolean NeverPipeline = false;
 
+		/** the default maximum number of sockets per connection */
+		private static int DefaultMaxConnections = 1;
+
+		/** the maximum number of sockets this connection may use in parallel */
+		private int MaxConnections;
+
 		/** hack to disable Nagle */
 		private static boolean disable_nagle = false;
 
@@ -302,6 +326,9 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 
 		/** The list of modules (as a Vector of Class objects) */
 		private Vector ModuleList;
+
+		/** The modules to use, built from ModuleList; null if out of date */
+		private volatile ModuleChain ModChain = null;
 		
 		/*** The socket factory to be used to create sockets.*/
 		private HTTPClientSocketFactory m_socketFactory=null;
@@ -309,6 +336,57 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 		/*** The DNSResolve to be used to create connected sockets.*/
 		private IHTTPClientDNSResolver m_dnsResolver=null;
 
+		/** the default DNS resolver for new connections (if any) */
+		private static IHTTPClientDNSResolver DefaultDNSResolver = null;
+
+		/** the default connection pool for new connections (if any) */
+		private static ConnectionPool DefaultConnectionPool = null;
+
+		/** the connection pool used by this connection (if any) */
+		private ConnectionPool m_connectionPool = null;
+
+		/** the encoded Host header line; created when first needed */
+		private byte[] HostLine = null;
+
+		/** the last User-Agent header used and its encoded line */
+		private Object[] UserAgentLine = null;
+
+		/** the encoded default User-Agent line */
+		private static final byte[] DefaultUserAgentLine = new NVPair("User-Agent", version).getHeaderLine();
+
+		/** the encoded default TE line */
+		private static final byte[] DefaultTELine = new NVPair("TE", "trailers").getHeaderLine();
+
+		/** a buffer for assembling the request headers, per thread */
+		private static final ThreadLocal HeaderBuffer = new ThreadLocal();
+
+		/** the default delay between parallel connection attempts; 0 = off */
+		private static int DefaultConnectRaceDelay = 0;
+
+		/** the delay between parallel connection attempts; 0 = off */
+		private int ConnectRaceDelay;
+
+		/** the most hosts whose race winner is remembered */
+		private static final int MaxRaceWinners = 1024;
+
+		/**
+		 * the address which last won a connection race, per host; the least
+		 * recently used hosts are evicted
+		 */
+		private static final Map RaceWinners = new LinkedHashMap(16, 0.75f, true)
+			{
+				protected boolean removeEldestEntry(Map.Entry eldest)
+					{
+						return size() > MaxRaceWinners;
+					}
+			};
+
+		/** the timer used for timeouts; created lazily */
+		private static HTTPClientTimer TimeoutTimer = null;
+
+		/** the executor running the background requests; created lazily */
+		private static ExecutorService BackgroundExecutor = null;
+
 		static
 			{
 				/*
@@ -511,6 +589,80 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 					{
 					}
 
+				/*
+				 * Use multiple sockets per connection
+				 */
+				try
+					{
+						int max = Integer.getInteger("HTTPClient.maxConnections", 1).intValue();
+						if (max > 1)
+							{
+								DefaultMaxConnections = max;
+								if (DebugConn)
+									{
+										HttpClientUtil.logLine("Conn:  using up to " + max + " sockets per connection");
+									}
+							}
+					}
+				catch (Exception e)
+					{
+					}
+
+				/*
+				 * Race connection attempts to the addresses of a host
+				 */
+				try
+					{
+						DefaultConnectRaceDelay = Integer.getInteger("HTTPClient.connectRaceDelay", 0).intValue();
+						if (DebugConn)
+							{
+								if (DefaultConnectRaceDelay > 0)
+									{
+										HttpClientUtil.logLine("Conn:  racing connections with a delay of "
+												+ DefaultConnectRaceDelay + " ms");
+									}
+							}
+					}
+				catch (Exception e)
+					{
+					}
+
+				/*
+				 * Cache DNS lookups
+				 */
+				try
+					{
+						if (Boolean.getBoolean("HTTPClient.dnsCache"))
+							{
+								DefaultDNSResolver = new CachingDNSResolver();
+								if (DebugConn)
+									{
+										HttpClientUtil.logLine("Conn:  caching DNS lookups");
+									}
+							}
+					}
+				catch (Exception e)
+					{
+					}
+
+				/*
+				 * Share keep-alive connections between HTTPConnections
+				 */
+				try
+					{
+						if (Boolean.getBoolean("HTTPClient.useConnectionPool"))
+							{
+								DefaultConnectionPool = ConnectionPool.getDefault();
+								if (DebugConn)
+									{
+										HttpClientUtil.logLine("Conn:  using the shared connection pool");
+									}
+							}
+					}
+				catch (Exception e)
+					{
+					}
+
 				/*
 				 * Hack: force HTTP/1.0 requests
 				 */
@@ -671,6 +823,10 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 				Tunnel_Host = Default_Tunnel_Host;
 				Tunnel_Port = Default_Tunnel_Port;
 				Timeout = DefaultTimeout;
+				m_connectionPool = DefaultConnectionPool;
+				MaxConnections = DefaultMaxConnections;
+				ConnectRaceDelay = DefaultConnectRaceDelay;
+				m_dnsResolver = DefaultDNSResolver;
 				ModuleList = (Vector) DefaultModuleList.clone();
 			}
 
@@ -1170,6 +1326,82 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 				return setupRequest("POST", stripRef(file), headers, null, stream);
 			}
 
+		/**
+		 * POSTs the contents of the given file to the specified file using the
+		 * additional headers. The data is streamed from the file instead of
+		 * being read into memory first; see
+		 * {@link #Post(java.lang.String, java.nio.channels.ReadableByteChannel, long, HTTPClient.NVPair[])}.
+		 *
+		 * @param file
+		 *          the absolute path of the file
+		 * @param body
+		 *          the file containing the data
+		 * @param headers
+		 *          any additional headers
+		 * @return an HTTPResponse structure containing the response
+		 * @exception java.io.IOException
+		 *              when an exception is returned from the socket or when
+		 *              reading the file.
+		 * @exception ModuleException
+		 *              if an exception is encountered in any module.
+		 */
+		public HTTPResponse Post(String file, File body, NVPair[] headers) throws IOException, ModuleException
+			{
+				FileInputStream fis = new FileInputStream(body);
+				try
+					{
+						return sendEntity("POST", file, fis.getChannel(), body.length(), headers);
+					}
+				finally
+					{
+						fis.close();
+					}
+			}
+
+		/**
+		 * POSTs the data read from the given channel to the specified file
+		 * using the additional headers. If the length is known, or the channel
+		 * is a <var>FileChannel</var>, the data is sent with a Content-Length.
+		 * Else it's sent using the chunked transfer encoding, even if the
+		 * server's version is not known yet; the data is never buffered, so if
+		 * the server is known to only understand HTTP/1.0 an IOException is
+		 * thrown instead. The data is written through an
+		 * <var>HttpOutputStream</var>, so see
+		 * {@link HttpOutputStream#transferFrom(java.nio.channels.ReadableByteChannel, long)
+		 * HttpOutputStream.transferFrom()} for when it is sent directly from a
+		 * <var>FileChannel</var> to the socket.
+		 *
+		 * <P>
+		 * If the request needs to be retried (e.g. because of a redirect or an
+		 * authorization request) and the channel is a <var>FileChannel</var>,
+		 * then it is repositioned and the data is sent again. Otherwise the
+		 * response is returned and it's up to the application to check
+		 * <code>retryRequest()</code>.
+		 *
+		 * @param file
+		 *          the absolute path of the file
+		 * @param body
+		 *          the channel to read the data from
+		 * @param length
+		 *          the number of bytes to send, or -1 if unknown, in which case
+		 *          the channel is read till its end
+		 * @param headers
+		 *          any additional headers
+		 * @return an HTTPResponse structure containing the response
+		 * @exception java.io.IOException
+		 *              when an exception is returned from the socket or when
+		 *              reading the channel.
+		 * @exception ModuleException
+		 *              if an exception is encountered in any module.
+		 * @exception IllegalArgumentException
+		 *              if the channel is in non-blocking mode.
+		 */
+		public HTTPResponse Post(String file, ReadableByteChannel body, long length, NVPair[] headers) throws IOException,
+				ModuleException
+			{
+				return sendEntity("POST", file, body, length, headers);
+			}
+
 		/**
 		 * PUTs the data into the specified file. The data is converted to an array
 		 * of bytes using the lower byte of each character. The request ist sent
@@ -1302,6 +1534,127 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 				return setupRequest("PUT", stripRef(file), headers, null, stream);
 			}
 
+		/**
+		 * PUTs the contents of the given file into the specified file using the
+		 * additional headers. The data is streamed from the file instead of
+		 * being read into memory first; see
+		 * {@link #Put(java.lang.String, java.nio.channels.ReadableByteChannel, long, HTTPClient.NVPair[])}.
+		 *
+		 * @param file
+		 *          the absolute path of the file
+		 * @param body
+		 *          the file containing the data
+		 * @param headers
+		 *          any additional headers
+		 * @return an HTTPResponse structure containing the response
+		 * @exception java.io.IOException
+		 *              when an exception is returned from the socket or when
+		 *              reading the file.
+		 * @exception ModuleException
+		 *              if an exception is encountered in any module.
+		 */
+		public HTTPResponse Put(String file, File body, NVPair[] headers) throws IOException, ModuleException
+			{
+				FileInputStream fis = new FileInputStream(body);
+				try
+					{
+						return sendEntity("PUT", file, fis.getChannel(), body.length(), headers);
+					}
+				finally
+					{
+						fis.close();
+					}
+			}
+
+		/**
+		 * PUTs the data read from the given channel into the specified file
+		 * using the additional headers. If the length is known, or the channel
+		 * is a <var>FileChannel</var>, the data is sent with a Content-Length.
+		 * Else it's sent using the chunked transfer encoding, even if the
+		 * server's version is not known yet; the data is never buffered, so if
+		 * the server is known to only understand HTTP/1.0 an IOException is
+		 * thrown instead. The data is written through an
+		 * <var>HttpOutputStream</var>, so see
+		 * {@link HttpOutputStream#transferFrom(java.nio.channels.ReadableByteChannel, long)
+		 * HttpOutputStream.transferFrom()} for when it is sent directly from a
+		 * <var>FileChannel</var> to the socket.
+		 *
+		 * <P>
+		 * If the request needs to be retried (e.g. because of a redirect or an
+		 * authorization request) and the channel is a <var>FileChannel</var>,
+		 * then it is repositioned and the data is sent again. Otherwise the
+		 * response is returned and it's up to the application to check
+		 * <code>retryRequest()</code>.
+		 *
+		 * @param file
+		 *          the absolute path of the file
+		 * @param body
+		 *          the channel to read the data from
+		 * @param length
+		 *          the number of bytes to send, or -1 if unknown, in which case
+		 *          the channel is read till its end
+		 * @param headers
+		 *          any additional headers
+		 * @return an HTTPResponse structure containing the response
+		 * @exception java.io.IOException
+		 *              when an exception is returned from the socket or when
+		 *              reading the channel.
+		 * @exception ModuleException
+		 *              if an exception is encountered in any module.
+		 * @exception IllegalArgumentException
+		 *              if the channel is in non-blocking mode.
+		 */
+		public HTTPResponse Put(String file, ReadableByteChannel body, long length, NVPair[] headers) throws IOException,
+				ModuleException
+			{
+				return sendEntity("PUT", file, body, length, headers);
+			}
+
+		/**
+		 * Sends a request whose entity is read from the given channel.
+		 *
+		 * @see #Post(java.lang.String, java.nio.channels.ReadableByteChannel,
+		 *      long, HTTPClient.NVPair[])
+		 */
+		private HTTPResponse sendEntity(String method, String file, ReadableByteChannel body, long length,
+				NVPair[] headers) throws IOException, ModuleException
+			{
+				if (body instanceof SelectableChannel && !((SelectableChannel) body).isBlocking())
+					{
+						throw new IllegalArgumentException("Channel is in non-blocking mode");
+					}
+
+				long start = (body instanceof FileChannel) ? ((FileChannel) body).position() : -1;
+				if (length < 0 && start >= 0)
+					{
+						length = Math.max(((FileChannel) body).size() - start, 0L);
+					}
+
+				HttpOutputStream out;
+				if (length >= 0)
+					{
+						out = new HttpOutputStream(length);
+					}
+				else
+					{
+						out = new HttpOutputStream();
+						out.disallowBuffering();
+					}
+
+				while (true)
+					{
+						HTTPResponse rsp = setupRequest(method, stripRef(file), headers, null, out);
+						out.transferFrom(body, length);
+						out.close();
+
+						if (start < 0 || !rsp.retryRequest())
+							{
+								return rsp;
+							}
+						((FileChannel) body).position(start);
+					}
+			}
+
 		/**
 		 * Request OPTIONS from the server. If <var>file</var> is "*" then the
 		 * request applies to the server as a whole; otherwise it applies only to
@@ -1420,77 +1773,433 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 			}
 
 		/**
-		 * Requests a TRACE. Headers of particular interest here are "Via" and
-		 * "Max-Forwards".
+		 * GETs the file on a background thread.
 		 *
 		 * @param file
-		 *          the absolute path of the resource
+		 *          the absolute path of the file
+		 * @return a Future whose <code>get()</code> returns the HTTPResponse
+		 * @see #GetInBackground(String, String, NVPair[], HTTPResponseListener)
+		 */
+		public Future GetInBackground(String file)
+			{
+				return GetInBackground(file, (String) null, null, null);
+			}
+
+		/**
+		 * GETs the file with a query string on a background thread. This is
+		 * merely a convenience for not blocking the calling thread: the request
+		 * is executed with the ordinary blocking <code>Get()</code> by a thread
+		 * of the executor set with <code>setBackgroundExecutor()</code>, and
+		 * that thread is occupied until the response headers have been
+		 * received. So there is still one thread per request in flight; with
+		 * the default executor at most <var>HTTPClient.background.threads</var>
+		 * requests are in flight at once, and further ones wait in the
+		 * executor's queue.
+		 *
+		 * <P>
+		 * The returned Future completes once the response headers have been
+		 * received, at which point the listener (if any) is notified as well.
+		 * If the request fails then <code>get()</code> throws an
+		 * ExecutionException wrapping the IOException or ModuleException.
+		 *
+		 * @param file
+		 *          the absolute path of the file
+		 * @param query
+		 *          the query string; it will be urlencoded
 		 * @param headers
 		 *          additional headers
-		 * @return an HTTPResponse structure containing the response
-		 * @exception java.io.IOException
-		 *              when an exception is returned from the socket.
-		 * @exception ModuleException
-		 *              if an exception is encountered in any module.
+		 * @param listener
+		 *          the listener to notify, or null
+		 * @return a Future whose <code>get()</code> returns the HTTPResponse
+		 * @exception java.util.concurrent.RejectedExecutionException
+		 *              if the executor's queue is full
 		 */
-		public HTTPResponse Trace(String file, NVPair[] headers) throws IOException, ModuleException
+		public Future GetInBackground(final String file, final String query, final NVPair[] headers,
+				HTTPResponseListener listener)
 			{
-				return setupRequest("TRACE", stripRef(file), headers, null, null);
+				return submit(new Callable()
+					{
+						public Object call() throws Exception
+							{
+								return Get(file, query, headers);
+							}
+					}, listener);
 			}
 
 		/**
-		 * Requests a TRACE.
+		 * GETs the file with the form data on a background thread.
 		 *
 		 * @param file
-		 *          the absolute path of the resource
-		 * @return an HTTPResponse structure containing the response
-		 * @exception java.io.IOException
-		 *              when an exception is returned from the socket.
-		 * @exception ModuleException
-		 *              if an exception is encountered in any module.
+		 *          the absolute path of the file
+		 * @param form_data
+		 *          an array of Name/Value pairs
+		 * @param headers
+		 *          additional headers
+		 * @param listener
+		 *          the listener to notify, or null
+		 * @return a Future whose <code>get()</code> returns the HTTPResponse
+		 * @see #GetInBackground(String, String, NVPair[], HTTPResponseListener)
 		 */
-		public HTTPResponse Trace(String file) throws IOException, ModuleException
+		public Future GetInBackground(final String file, final NVPair[] form_data, final NVPair[] headers,
+				HTTPResponseListener listener)
 			{
-				return Trace(file, null);
+				return submit(new Callable()
+					{
+						public Object call() throws Exception
+							{
+								return Get(file, form_data, headers);
+							}
+					}, listener);
 			}
 
 		/**
-		 * Connects to the host/port specified in the constructor. If necessary,
-		 * proxies (HTTP or SOCKS) will be tunneled by this call. If no proxy has to
-		 * be used, this method connects directly to the specified server. A call of
-		 * this method is independent from all other method calls of this object.
-		 * Everytime this method is called, a new Socket is created.
-		 *
-		 * @return The Socket which is connected to the specified server/host
-		 *         (tunneled through a proxy, if necessary).
-		 * @exception java.io.IOException
-		 *              when an exception is returned from the socket.
-		 * @exception ModuleException
-		 *              if an exception is encountered in any module.
+		 * Requests the HEAD of the file on a background thread.
 		 *
-		 * @author added by Stefan Lieske, 2005/02/14
-		 * @throws ThreadInterruptedIOException
-		 *           if the current thread was interrupted
+		 * @param file
+		 *          the absolute path of the file
+		 * @param query
+		 *          the query string; it will be urlencoded
+		 * @param headers
+		 *          additional headers
+		 * @param listener
+		 *          the listener to notify, or null
+		 * @return a Future whose <code>get()</code> returns the HTTPResponse
+		 * @see #GetInBackground(String, String, NVPair[], HTTPResponseListener)
 		 */
-		public Socket Connect() throws IOException, ModuleException, ThreadInterruptedIOException
+		public Future HeadInBackground(final String file, final String query, final NVPair[] headers,
+				HTTPResponseListener listener)
 			{
-				Socket resultSocket = null;
-				synchronized (this)
+				return submit(new Callable()
 					{
-						if (Proxy_Host == null)
+						public Object call() throws Exception
 							{
-								/* we can use a direct connection or only a SOCKS proxy is used -> that's easy */
-								resultSocket = getSocket(Timeout);
+								return Head(file, query, headers);
 							}
-						else
-							{
-								/* we have to tunnel an HTTP proxy, ugh */
-								/* don't interfere with other calls and use an own StreamDemultiplexor -> we restore
-								 * the old one later -> no problem because of synchronization (there will be no other
-								 * calls while we are working)
-								 */
-								StreamDemultiplexor oldMultiplexor = input_demux;
-								input_demux = null;
+					}, listener);
+			}
+
+		/**
+		 * POSTs the data to the file on a background thread.
+		 *
+		 * @param file
+		 *          the absolute path of the file
+		 * @param data
+		 *          the data
+		 * @param headers
+		 *          additional headers
+		 * @param listener
+		 *          the listener to notify, or null
+		 * @return a Future whose <code>get()</code> returns the HTTPResponse
+		 * @see #GetInBackground(String, String, NVPair[], HTTPResponseListener)
+		 */
+		public Future PostInBackground(final String file, final byte[] data, final NVPair[] headers,
+				HTTPResponseListener listener)
+			{
+				return submit(new Callable()
+					{
+						public Object call() throws Exception
+							{
+								return Post(file, data, headers);
+							}
+					}, listener);
+			}
+
+		/**
+		 * POSTs the form data to the file on a background thread.
+		 *
+		 * @param file
+		 *          the absolute path of the file
+		 * @param form_data
+		 *          an array of Name/Value pairs
+		 * @param headers
+		 *          additional headers
+		 * @param listener
+		 *          the listener to notify, or null
+		 * @return a Future whose <code>get()</code> returns the HTTPResponse
+		 * @see #GetInBackground(String, String, NVPair[], HTTPResponseListener)
+		 */
+		public Future PostInBackground(final String file, final NVPair[] form_data, final NVPair[] headers,
+				HTTPResponseListener listener)
+			{
+				return submit(new Callable()
+					{
+						public Object call() throws Exception
+							{
+								return Post(file, form_data, headers);
+							}
+					}, listener);
+			}
+
+		/**
+		 * PUTs the data into the file on a background thread.
+		 *
+		 * @param file
+		 *          the absolute path of the file
+		 * @param data
+		 *          the data
+		 * @param headers
+		 *          additional headers
+		 * @param listener
+		 *          the listener to notify, or null
+		 * @return a Future whose <code>get()</code> returns the HTTPResponse
+		 * @see #GetInBackground(String, String, NVPair[], HTTPResponseListener)
+		 */
+		public Future PutInBackground(final String file, final byte[] data, final NVPair[] headers,
+				HTTPResponseListener listener)
+			{
+				return submit(new Callable()
+					{
+						public Object call() throws Exception
+							{
+								return Put(file, data, headers);
+							}
+					}, listener);
+			}
+
+		/**
+		 * DELETEs the file on a background thread.
+		 *
+		 * @param file
+		 *          the absolute path of the resource
+		 * @param headers
+		 *          additional headers
+		 * @param listener
+		 *          the listener to notify, or null
+		 * @return a Future whose <code>get()</code> returns the HTTPResponse
+		 * @see #GetInBackground(String, String, NVPair[], HTTPResponseListener)
+		 */
+		public Future DeleteInBackground(final String file, final NVPair[] headers, HTTPResponseListener listener)
+			{
+				return submit(new Callable()
+					{
+						public Object call() throws Exception
+							{
+								return Delete(file, headers);
+							}
+					}, listener);
+			}
+
+		/**
+		 * Submits a request to the background executor. The request is
+		 * considered done once the response headers have been received.
+		 */
+		private static Future submit(final Callable request, final HTTPResponseListener listener)
+			{
+				return getBackgroundExecutor().submit(new Callable()
+					{
+						public Object call() throws Exception
+							{
+								HTTPResponse resp;
+								try
+									{
+										resp = (HTTPResponse) request.call();
+										resp.getStatusCode(); // wait for the headers
+									}
+								catch (Exception e)
+									{
+										if (listener != null)
+											{
+												try
+													{
+														listener.requestFailed(e);
+													}
+												catch (RuntimeException re)
+													{
+														reportListenerException(re);
+													}
+											}
+										throw e;
+									}
+
+								if (listener != null)
+									{
+										try
+											{
+												listener.requestCompleted(resp);
+											}
+										catch (RuntimeException re)
+											{
+												reportListenerException(re);
+											}
+									}
+								return resp;
+							}
+					});
+			}
+
+		/**
+		 * Hands an exception thrown by an HTTPResponseListener to the current
+		 * thread's uncaught exception handler; it doesn't affect the request.
+		 */
+		private static void reportListenerException(RuntimeException re)
+			{
+				if (DebugConn)
+					{
+						HttpClientUtil.logLine("Conn:  HTTPResponseListener threw " + re);
+					}
+
+				Thread thread = Thread.currentThread();
+				thread.getUncaughtExceptionHandler().uncaughtException(thread, re);
+			}
+
+		/**
+		 * Sets the timer used to schedule timeouts, such as the closing of idle
+		 * connections. This only affects timeouts scheduled afterwards.
+		 *
+		 * @param timer
+		 *          the timer, or null to use the default one
+		 * @see #getTimer()
+		 */
+		public static synchronized void setTimer(HTTPClientTimer timer)
+			{
+				TimeoutTimer = timer;
+			}
+
+		/**
+		 * Gets the timer used to schedule timeouts. Unless one has been set, a
+		 * HashedWheelTimer is created on first use.
+		 *
+		 * @return the timer
+		 */
+		public static synchronized HTTPClientTimer getTimer()
+			{
+				if (TimeoutTimer == null)
+					{
+						TimeoutTimer = new HashedWheelTimer();
+					}
+
+				return TimeoutTimer;
+			}
+
+		/**
+		 * Sets the executor used to run the requests submitted via the
+		 * background request methods (<code>GetInBackground()</code> etc.).
+		 *
+		 * @param executor
+		 *          the executor, or null to use the default one
+		 * @see #getBackgroundExecutor()
+		 */
+		public static synchronized void setBackgroundExecutor(ExecutorService executor)
+			{
+				BackgroundExecutor = executor;
+			}
+
+		/**
+		 * Gets the executor used to run the background requests. Unless one has
+		 * been set the default executor is created on first use; it has a fixed
+		 * number of daemon threads (property
+		 * <var>HTTPClient.background.threads</var>, default 8) and a bounded
+		 * queue (property <var>HTTPClient.background.queueSize</var>, default
+		 * 256). As each request blocks a thread until its response headers
+		 * have arrived, the number of threads is the number of requests in
+		 * flight at once. When the queue is full further requests are rejected
+		 * with a RejectedExecutionException.
+		 *
+		 * @return the executor
+		 */
+		public static synchronized ExecutorService getBackgroundExecutor()
+			{
+				if (BackgroundExecutor == null)
+					{
+						int threads = 8, queue = 256;
+						try
+							{
+								threads = Integer.getInteger("HTTPClient.background.threads", threads).intValue();
+								queue = Integer.getInteger("HTTPClient.background.queueSize", queue).intValue();
+							}
+						catch (Exception e)
+							{
+							}
+
+						BackgroundExecutor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue(queue),
+								new ThreadFactory()
+									{
+										private int num = 0;
+
+										public synchronized Thread newThread(Runnable r)
+											{
+												Thread thread = new Thread(r, "HTTPClient-Background-" + (num++));
+												thread.setDaemon(true);
+												return thread;
+											}
+									});
+					}
+
+				return BackgroundExecutor;
+			}
+
+		/**
+		 * Requests a TRACE. Headers of particular interest here are "Via" and
+		 * "Max-Forwards".
+		 *
+		 * @param file
+		 *          the absolute path of the resource
+		 * @param headers
+		 *          additional headers
+		 * @return an HTTPResponse structure containing the response
+		 * @exception java.io.IOException
+		 *              when an exception is returned from the socket.
+		 * @exception ModuleException
+		 *              if an exception is encountered in any module.
+		 */
+		public HTTPResponse Trace(String file, NVPair[] headers) throws IOException, ModuleException
+			{
+				return setupRequest("TRACE", stripRef(file), headers, null, null);
+			}
+
+		/**
+		 * Requests a TRACE.
+		 *
+		 * @param file
+		 *          the absolute path of the resource
+		 * @return an HTTPResponse structure containing the response
+		 * @exception java.io.IOException
+		 *              when an exception is returned from the socket.
+		 * @exception ModuleException
+		 *              if an exception is encountered in any module.
+		 */
+		public HTTPResponse Trace(String file) throws IOException, ModuleException
+			{
+				return Trace(file, null);
+			}
+
+		/**
+		 * Connects to the host/port specified in the constructor. If necessary,
+		 * proxies (HTTP or SOCKS) will be tunneled by this call. If no proxy has to
+		 * be used, this method connects directly to the specified server. A call of
+		 * this method is independent from all other method calls of this object.
+		 * Everytime this method is called, a new Socket is created.
+		 *
+		 * @return The Socket which is connected to the specified server/host
+		 *         (tunneled through a proxy, if necessary).
+		 * @exception java.io.IOException
+		 *              when an exception is returned from the socket.
+		 * @exception ModuleException
+		 *              if an exception is encountered in any module.
+		 *
+		 * @author added by Stefan Lieske, 2005/02/14
+		 * @throws ThreadInterruptedIOException
+		 *           if the current thread was interrupted
+		 */
+		public Socket Connect() throws IOException, ModuleException, ThreadInterruptedIOException
+			{
+				Socket resultSocket = null;
+				synchronized (this)
+					{
+						if (Proxy_Host == null)
+							{
+								/* we can use a direct connection or only a SOCKS proxy is used -> that's easy */
+								resultSocket = getSocket(Timeout);
+							}
+						else
+							{
+								/* we have to tunnel an HTTP proxy, ugh */
+								/* don't interfere with other calls and use an own StreamDemultiplexor -> we restore
+								 * the old one later -> no problem because of synchronization (there will be no other
+								 * calls while we are working)
+								 */
+								StreamDemultiplexor oldMultiplexor = input_demux;
+								input_demux = null;
 								try
 									{
 										/* setup our request */
@@ -1868,52 +2577,237 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 			}
 
 		/**
-		 * Returns the default list of modules.
+		 * Sets the maximum number of sockets each new HTTPConnection may open
+		 * to its server in parallel. The default is 1, unless the property
+		 * <var>HTTPClient.maxConnections</var> is set.
 		 *
-		 * @return an array of classes
+		 * @param max
+		 *          the maximum number of sockets
+		 * @see #setMaxConnections(int)
 		 */
-		public static Class[] getDefaultModules()
+		public static void setDefaultMaxConnections(int max)
 			{
-				synchronized (DefaultModuleList)
+				if (max < 1)
 					{
-						Class[] modules = new Class[DefaultModuleList.size()];
-						DefaultModuleList.copyInto(modules);
-						return modules;
+						throw new IllegalArgumentException("Invalid maximum: " + max);
 					}
+				DefaultMaxConnections = max;
 			}
 
 		/**
-		 * Adds a module to the default list. It must implement the
-		 * <var>HTTPClientModule</var> interface. If the module is already in the
-		 * list then this method does nothing.
+		 * Gets the maximum number of sockets each new HTTPConnection may open.
 		 *
-		 * <P>
-		 * Example:
-		 * 
-		 * <PRE>
-		 * HTTPConnection.addDefaultModule(Class.forName("HTTPClient.CookieModule"), 1);
-		 * </PRE>
-		 * 
-		 * adds the cookie module as the second module in the list.
+		 * @return the maximum number of sockets
+		 * @see #setDefaultMaxConnections(int)
+		 */
+		public static int getDefaultMaxConnections()
+			{
+				return DefaultMaxConnections;
+			}
+
+		/**
+		 * Sets the maximum number of sockets this connection may open to its
+		 * server in parallel. Normally all requests are pipelined over a single
+		 * socket; this means a request must wait if the previous one was not
+		 * idempotent (e.g. a POST) or the server's response to it is slow, and
+		 * non-idempotent requests must wait for all previous responses. With a
+		 * maximum greater than 1 such requests are instead sent over an idle
+		 * or a new socket, while idempotent requests continue to be pipelined
+		 * over the main socket.
 		 *
 		 * <P>
-		 * The default list is created at class initialization time from the
-		 * property <var>HTTPClient.Modules</var>. This must contain a "|" separated
-		 * list of classes in the order they're to be invoked. If this property is
-		 * not set it defaults to:
+		 * Additional sockets are only used once the server's protocol version
+		 * and support for keep-alive are known.
 		 *
-		 * "HTTPClient.RetryModule | HTTPClient.CookieModule |
-		 * HTTPClient.RedirectionModule | HTTPClient.AuthorizationModule |
-		 * HTTPClient.DefaultModule | HTTPClient.TransferEncodingModule |
-		 * HTTPClient.ContentMD5Module | HTTPClient.ContentEncodingModule"
+		 * @param max
+		 *          the maximum number of sockets; the default is 1.
+		 */
+		public void setMaxConnections(int max)
+			{
+				if (max < 1)
+					{
+						throw new IllegalArgumentException("Invalid maximum: " + max);
+					}
+				MaxConnections = max;
+			}
+
+		/**
+		 * Gets the maximum number of sockets this connection may open to its
+		 * server in parallel.
 		 *
-		 * @see HTTPClientModule
-		 * @param module
-		 *          the module's Class object
-		 * @param pos
-		 *          the position of this module in the list; if <var>pos</var> >= 0
-		 *          then this is the absolute position in the list (0 is the first
-		 *          position); if <var>pos</var> < 0 then this is the position
+		 * @return the maximum number of sockets
+		 * @see #setMaxConnections(int)
+		 */
+		public int getMaxConnections()
+			{
+				return MaxConnections;
+			}
+
+		/**
+		 * Sets the delay between parallel connection attempts for each new
+		 * HTTPConnection. The default is 0 (no parallel attempts), unless the
+		 * property <var>HTTPClient.connectRaceDelay</var> is set.
+		 *
+		 * @param delay
+		 *          the delay in milliseconds, or 0 to disable
+		 * @see #setConnectRaceDelay(int)
+		 */
+		public static void setDefaultConnectRaceDelay(int delay)
+			{
+				DefaultConnectRaceDelay = Math.max(delay, 0);
+			}
+
+		/**
+		 * Gets the delay between parallel connection attempts used by each new
+		 * HTTPConnection.
+		 *
+		 * @return the delay in milliseconds; 0 means disabled
+		 * @see #setDefaultConnectRaceDelay(int)
+		 */
+		public static int getDefaultConnectRaceDelay()
+			{
+				return DefaultConnectRaceDelay;
+			}
+
+		/**
+		 * Enables racing connection attempts to the addresses of a host (in
+		 * the style of RFC 8305 "Happy Eyeballs"). Normally the addresses are
+		 * tried one after another, and the next one is only tried if
+		 * connecting to the previous one failed; a black-holed address thus
+		 * costs the whole connection timeout. With a delay set, a connection
+		 * attempt to the next address is started whenever the previous attempt
+		 * has not succeeded within the delay (or has failed); the first
+		 * connection established is used and the others are closed. IPv6 and
+		 * IPv4 addresses are tried alternately, starting with the address
+		 * which won the last race for this host.
+		 *
+		 * <P>
+		 * This is only used for plain HTTP connections which don't use a
+		 * socket factory or a socks server. The winning channel is switched
+		 * back to blocking mode and used like any other socket, so it may be
+		 * shared via a connection pool.
+		 *
+		 * @param delay
+		 *          the delay in milliseconds (e.g. 250), or 0 to disable
+		 */
+		public void setConnectRaceDelay(int delay)
+			{
+				ConnectRaceDelay = Math.max(delay, 0);
+			}
+
+		/**
+		 * Gets the delay between parallel connection attempts.
+		 *
+		 * @return the delay in milliseconds; 0 means disabled
+		 * @see #setConnectRaceDelay(int)
+		 */
+		public int getConnectRaceDelay()
+			{
+				return ConnectRaceDelay;
+			}
+
+
+		/**
+		 * Sets the connection pool to be used by each new HTTPConnection. The
+		 * default is no pool, unless the property
+		 * <var>HTTPClient.useConnectionPool</var> is set to <var>true</var>, in
+		 * which case the shared pool <code>ConnectionPool.getDefault()</code> is
+		 * used.
+		 *
+		 * @param pool
+		 *          the pool, or null to not use a pool
+		 * @see #setConnectionPool(ConnectionPool)
+		 */
+		public static void setDefaultConnectionPool(ConnectionPool pool)
+			{
+				DefaultConnectionPool = pool;
+			}
+
+		/**
+		 * Gets the connection pool used by each new HTTPConnection.
+		 *
+		 * @return the pool, or null if none is used
+		 * @see #setDefaultConnectionPool(ConnectionPool)
+		 */
+		public static ConnectionPool getDefaultConnectionPool()
+			{
+				return DefaultConnectionPool;
+			}
+
+		/**
+		 * Sets the connection pool for this connection. Sockets to the server
+		 * are then leased from the pool, and handed back to it once all
+		 * responses on it have been read, so that other HTTPConnections to the
+		 * same server (using the same proxy, socks server, socket factory and
+		 * context) can reuse them. Sockets for CONNECT requests and for SSL
+		 * tunnels are never pooled.
+		 *
+		 * @param pool
+		 *          the pool, or null to not use a pool
+		 */
+		public void setConnectionPool(ConnectionPool pool)
+			{
+				m_connectionPool = pool;
+			}
+
+		/**
+		 * Gets the connection pool used by this connection.
+		 *
+		 * @return the pool, or null if none is used
+		 * @see #setConnectionPool(ConnectionPool)
+		 */
+		public ConnectionPool getConnectionPool()
+			{
+				return m_connectionPool;
+			}
+
+		/**
+		 * Returns the default list of modules.
+		 *
+		 * @return an array of classes
+		 */
+		public static Class[] getDefaultModules()
+			{
+				synchronized (DefaultModuleList)
+					{
+						Class[] modules = new Class[DefaultModuleList.size()];
+						DefaultModuleList.copyInto(modules);
+						return modules;
+					}
+			}
+
+		/**
+		 * Adds a module to the default list. It must implement the
+		 * <var>HTTPClientModule</var> interface. If the module is already in the
+		 * list then this method does nothing.
+		 *
+		 * <P>
+		 * Example:
+		 * 
+		 * <PRE>
+		 * HTTPConnection.addDefaultModule(Class.forName("HTTPClient.CookieModule"), 1);
+		 * </PRE>
+		 * 
+		 * adds the cookie module as the second module in the list.
+		 *
+		 * <P>
+		 * The default list is created at class initialization time from the
+		 * property <var>HTTPClient.Modules</var>. This must contain a "|" separated
+		 * list of classes in the order they're to be invoked. If this property is
+		 * not set it defaults to:
+		 *
+		 * "HTTPClient.RetryModule | HTTPClient.CookieModule |
+		 * HTTPClient.RedirectionModule | HTTPClient.AuthorizationModule |
+		 * HTTPClient.DefaultModule | HTTPClient.TransferEncodingModule |
+		 * HTTPClient.ContentMD5Module | HTTPClient.ContentEncodingModule"
+		 *
+		 * @see HTTPClientModule
+		 * @param module
+		 *          the module's Class object
+		 * @param pos
+		 *          the position of this module in the list; if <var>pos</var> >= 0
+		 *          then this is the absolute position in the list (0 is the first
+		 *          position); if <var>pos</var> < 0 then this is the position
 		 *          relative to the end of the list (-1 means the last element, -2
 		 *          the second to last element, etc).
 		 * @return true if module was successfully added; false if the module is
@@ -2066,6 +2960,7 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 							{
 								ModuleList.insertElementAt(module, pos);
 							}
+						ModChain = null;
 					}
 
 				return true;
@@ -2085,7 +2980,17 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 					{
 						return false;
 					}
-				return ModuleList.removeElement(module);
+
+				synchronized (ModuleList)
+					{
+						if (!ModuleList.removeElement(module))
+							{
+								return false;
+							}
+						ModChain = null;
+					}
+
+				return true;
 			}
 
 		/**
@@ -2736,7 +3641,7 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 
 				try
 					{
-						HTTPResponse resp = new HTTPResponse(gen_mod_insts(), Timeout, req);
+						HTTPResponse resp = new HTTPResponse(getModuleChain(), Timeout, req);
 						handleRequest(req, resp, null, true);
 						return resp;
 					}
@@ -2802,27 +3707,23 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 			}
 
 		/**
-		 * Generate an array of instances of the current modules.
+		 * Returns the chain of the current modules, building it if the module
+		 * list has changed.
 		 */
-		private HTTPClientModule[] gen_mod_insts()
+		private ModuleChain getModuleChain()
 			{
-				HTTPClientModule[] mod_insts = new HTTPClientModule[ModuleList.size()];
-
-				for (int idx = 0; idx < ModuleList.size(); idx++)
+				ModuleChain chain = ModChain;
+				if (chain == null)
 					{
-						Class mod = (Class) ModuleList.elementAt(idx);
-						try
+						synchronized (ModuleList)
 							{
-								mod_insts[idx] = (HTTPClientModule) mod.newInstance();
-							}
-						catch (Exception e)
-							{
-								throw new Error(
-										"HTTPClient Internal Error: could not " + "create instance of " + mod.getName() + " -\n" + e);
+								Class[] modules = new Class[ModuleList.size()];
+								ModuleList.copyInto(modules);
+								chain = new ModuleChain(modules);
+								ModChain = chain;
 							}
 					}
-
-				return mod_insts;
+				return chain;
 			}
 
 		/**
@@ -2847,14 +3748,15 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 			{
 				Response[] rsp_arr = { resp };
 				HTTPClientModule[] modules = http_resp.getModules();
+				int[] order = http_resp.getPhase(ModuleChain.REQUEST);
 
 				// invoke requestHandler for each module
 
 				if (usemodules)
 					{
-						doModules: for (int idx = 0; idx < modules.length; idx++)
+						doModules: for (int idx = 0; idx < order.length; idx++)
 							{
-								int sts = modules[idx].requestHandler(req, rsp_arr);
+								int sts = modules[order[idx]].requestHandler(req, rsp_arr);
 								switch (sts)
 									{
 										case REQ_CONTINUE: // continue processing
@@ -2872,7 +3774,7 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 											if (rsp_arr[0] == null)
 												{
 													throw new Error("HTTPClient Internal Error: no " + "response returned by module "
-															+ modules[idx].getClass().getName());
+															+ modules[order[idx]].getClass().getName());
 												}
 											http_resp.set(req, rsp_arr[0]);
 											if (req.getStream() != null)
@@ -2911,7 +3813,7 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 
 										default: // not valid
 											throw new Error("HTTPClient Internal Error: invalid status" + " " + sts + " returned by module "
-													+ modules[idx].getClass().getName());
+													+ modules[order[idx]].getClass().getName());
 									}
 							}
 					}
@@ -2924,7 +3826,13 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 
 				if (req.getStream() != null && req.getStream().getLength() == -1)
 					{
-						if (!ServProtVersKnown || ServerProtocolVersion < HTTP_1_1)
+						boolean chunked = ServProtVersKnown ? ServerProtocolVersion >= HTTP_1_1 : !req.getStream().mayBuffer();
+						if (!chunked && !req.getStream().mayBuffer())
+							{
+								throw new IOException("Server doesn't understand HTTP/1.1; can't send an entity of unknown length");
+							}
+
+						if (!chunked)
 							{
 								req.getStream().goAhead(req, null, http_resp.getTimeout());
 								http_resp.set(req, req.getStream());
@@ -2979,7 +3887,18 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 		 */
 		Response sendRequest(Request req, int con_timeout) throws IOException, ModuleException
 			{
-				ExtByteArrayOutputStream hdr_buf = new ExtByteArrayOutputStream(600);
+				// reuse this thread's header buffer; if it's in use (e.g. because
+				// of a nested request) just create a new one
+				ExtByteArrayOutputStream hdr_buf = (ExtByteArrayOutputStream) HeaderBuffer.get();
+				if (hdr_buf != null)
+					{
+						HeaderBuffer.set(null);
+						hdr_buf.reset();
+					}
+				else
+					{
+						hdr_buf = new ExtByteArrayOutputStream(600);
+					}
 				Response resp = null;
 				boolean keep_alive;
 
@@ -3038,13 +3957,72 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 
 				synchronized (this)
 					{
-						// Sometimes we must stall the pipeline until the previous request
-						// has been answered. However, if we are going to open up a new
-						// connection anyway we don't really need to stall.
+						/* If this request would have to wait for a previous response
+						 * and we may use more than one socket, then send it over an idle
+						 * or a new socket instead. The stall state of the main socket is
+						 * left untouched.
+						 */
+						StreamDemultiplexor main_demux = input_demux;
+						Response main_early_stall = early_stall, main_late_stall = late_stall, main_prev_resp = prev_resp;
+						boolean side_socket = false;
 
-						if (late_stall != null)
+						if (MaxConnections > 1 && input_demux != null && ServProtVersKnown && !KeepAliveUnknown && DoesKeepAlive
+								&& !req.getMethod().equals("CONNECT")
+								&& (late_stall != null || (prev_resp != null && !IdempotentSequence.methodIsIdempotent(req.getMethod()))))
 							{
-								if (input_demux != null || KeepAliveUnknown)
+								StreamDemultiplexor idle = getIdleDemux(input_demux);
+								if (idle != null || countDemuxes() < MaxConnections)
+									{
+										if (DebugConn)
+											{
+												HttpClientUtil.logLine("Conn:  Sending Request on " + (idle != null ? "idle" : "new")
+														+ " socket: " + req.getMethod() + " " + req.getRequestURI());
+											}
+
+										side_socket = true;
+										input_demux = idle;
+										late_stall = null;
+										prev_resp = null;
+									}
+							}
+
+						try
+							{
+								// Sometimes we must stall the pipeline until the previous request
+								// has been answered. However, if we are going to open up a new
+								// connection anyway we don't really need to stall.
+
+								if (late_stall != null)
+									{
+										if (input_demux != null || KeepAliveUnknown)
+											{
+												if (DebugConn)
+													{
+														HttpClientUtil.logLine("Conn:  Stalling Request: " + req.getMethod() + " " + req.getRequestURI());
+													}
+
+												try
+													{ // wait till the response is received
+														late_stall.getVersion();
+														if (KeepAliveUnknown)
+															{
+																determineKeepAlive(late_stall);
+															}
+													}
+												catch (IOException ioe)
+													{
+													}
+											}
+
+										late_stall = null;
+									}
+
+								/* POSTs must not be pipelined because of problems if the connection
+								 * is aborted. Since it is generally impossible to know what urls
+								 * POST will influence it is impossible to determine if a sequence
+								 * of requests containing a POST is idempotent.
+								 */
+								if (req.getMethod().equals("POST") && prev_resp != null && input_demux != null)
 									{
 										if (DebugConn)
 											{
@@ -3053,490 +4031,910 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 
 										try
 											{ // wait till the response is received
-												late_stall.getVersion();
-												if (KeepAliveUnknown)
-													{
-														determineKeepAlive(late_stall);
-													}
+												prev_resp.getVersion();
 											}
 										catch (IOException ioe)
 											{
 											}
 									}
 
-								late_stall = null;
-							}
+								// If the previous request used an output stream, then wait till
+								// all the data has been written
 
-						/* POSTs must not be pipelined because of problems if the connection
-						 * is aborted. Since it is generally impossible to know what urls
-						 * POST will influence it is impossible to determine if a sequence
-						 * of requests containing a POST is idempotent.
-						 */
-						if (req.getMethod().equals("POST") && prev_resp != null && input_demux != null)
-							{
-								if (DebugConn)
+								if (!output_finished)
 									{
-										HttpClientUtil.logLine("Conn:  Stalling Request: " + req.getMethod() + " " + req.getRequestURI());
+										try
+											{
+												wait();
+											}
+										catch (InterruptedException ie)
+											{
+												throw new IOException(ie.toString());
+											}
 									}
 
-								try
-									{ // wait till the response is received
-										prev_resp.getVersion();
-									}
-								catch (IOException ioe)
+								if (req.aborted)
 									{
+										throw new IOException("Request aborted by user");
 									}
-							}
 
-						// If the previous request used an output stream, then wait till
-						// all the data has been written
+								int try_count = 3;
+								/* what a hack! This is to handle the case where the server closes
+								 * the connection but we don't realize it until we try to send
+								 * something. The problem is that we only get IOException, but
+								 * we need a finer specification (i.e. whether it's an EPIPE or
+								 * something else); I don't trust relying on the message part
+								 * of IOException (which on SunOS/Solaris gives 'Broken pipe',
+								 * but what on Windoze/Mac?).
+								 */
 
-						if (!output_finished)
-							{
-								try
+								while (try_count-- > 0)
 									{
-										wait();
-									}
-								catch (InterruptedException ie)
-									{
-										throw new IOException(ie.toString());
-									}
-							}
+										try
+											{
+												// get a client socket
 
-						if (req.aborted)
-							{
-								throw new IOException("Request aborted by user");
-							}
+												Socket sock;
+												if (input_demux == null || (sock = input_demux.getSocket()) == null)
+													{
+														ConnectionPool pool = m_connectionPool;
+														ConnectionPool.Route route = null;
+														if (pool != null && !req.getMethod().equals("CONNECT")
+																&& !(Protocol == HTTPS && (Proxy_Host != null || Tunnel_Host != null)))
+															{
+																route = new ConnectionPool.Route(Protocol, Host, Port, Proxy_Host, Proxy_Port,
+																		Socks_client, m_socketFactory, Context);
+																sock = getPooledSocket(pool, route, con_timeout);
+															}
+														else
+															{
+																pool = null;
+																sock = getSocket(con_timeout);
+															}
+														try
+															{
+																if (disable_nagle)
+																	{
+																		sock.setTcpNoDelay(true);
+																	}
+															}
+														catch (Throwable t)
+															{
+															}
 
-						int try_count = 3;
-						/* what a hack! This is to handle the case where the server closes
-						 * the connection but we don't realize it until we try to send
-						 * something. The problem is that we only get IOException, but
-						 * we need a finer specification (i.e. whether it's an EPIPE or
-						 * something else); I don't trust relying on the message part
-						 * of IOException (which on SunOS/Solaris gives 'Broken pipe',
-						 * but what on Windoze/Mac?).
-						 */
+														if (Protocol == HTTPS)
+															{
+																if (Default_Tunnel_Host == null && Tunnel_Host != null)
+																	{
+																		Proxy_Host = Tunnel_Host;
+																	}
 
-						while (try_count-- > 0)
-							{
-								try
-									{
-										// get a client socket
+																if (Proxy_Host != null)
+																	{
+																		Socket[] sarr = { sock };
+																		resp = enableSSLTunneling(sarr, req, con_timeout);
+																		if (resp != null)
+																			{
+																				resp.final_resp = true;
+																				return resp;
+																			}
+																		sock = sarr[0];
+																		Tunnel_Host = Proxy_Host;
+																		Tunnel_Port = Proxy_Port;
+																		Proxy_Host = null;
+																	}
 
-										Socket sock;
-										if (input_demux == null || (sock = input_demux.getSocket()) == null)
-											{
-												sock = getSocket(con_timeout);
-												try
-													{
-														if (disable_nagle)
+																//sock = new SSLSocket(sock);
+															}
+
+														/** @author added by Stefan Lieske, 2005/02/14 */
+														if (input_demux != null)
 															{
-																sock.setTcpNoDelay(true);
+																/* we don't need the HTTP CONNECT compatibility mode from the old
+																 * demultiplexor any more -> deactivate it and release compatibility
+																 * resources
+																 */
+																if (input_demux.isHttpConnectCompatibilityModeUsed())
+																	{
+																		input_demux.releaseHttpConnectResources();
+																	}
 															}
+
+														/** @author modified by Stefan Lieske, 2005/02/14 */
+														// input_demux = new StreamDemultiplexor(Protocol, sock, this);
+														/* if it is a CONNECT call, use the compatibility mode
+														 */
+														if (pool != null)
+															{
+																try
+																	{
+																		input_demux = new StreamDemultiplexor(Protocol, sock, this, false);
+																	}
+																catch (IOException ioe)
+																	{
+																		pool.release(route, sock, false);
+																		throw ioe;
+																	}
+																input_demux.setConnectionPool(pool, route);
+															}
+														else
+															{
+																input_demux = new StreamDemultiplexor(Protocol, sock, this, req.getMethod().equals("CONNECT"));
+															}
+														DemuxList.addToEnd(input_demux);
+														input_demux.setRequestsLeft(KeepAliveReqMax);
+													}
+
+												if (req.aborted)
+													{
+														throw new IOException("Request aborted by user");
+													}
+
+												if (DebugConn)
+													{
+														HttpClientUtil.logLine("Conn:  Sending Request: ");
+														HttpClientUtil.logLine();
+														hdr_buf.writeTo(System.err);
 													}
-												catch (Throwable t)
+
+												// Now send the stuff
+
+												OutputStream sock_out = input_demux.getOutputStream();
+												boolean wf_cont;
+												try
 													{
+														wf_cont = HttpClientUtil.hasToken(con_hdrs[1], "100-continue");
+													}
+												catch (ParseException pe)
+													{
+														throw new IOException(pe.toString());
 													}
 
-												if (Protocol == HTTPS)
+												/* We want to stick (the first part of) the data and the
+												 * headers into the same network packet. However, this is
+												 * only possible if the data doesn't need to be delayed and
+												 * we don't have to wait for a 100-Continue. Furthermore,
+												 * as the data size increases so does the overhead of copying,
+												 * but the relative gain in network performance decreases
+												 * (we're only saving 1 of N packets); therefore we only do
+												 * this for smallish (< 10K) data. (Unfortunately Java does
+												 * not provide scatter/gather io calls).
+												 * Actually, if Nagle is enabled then the combining is
+												 * done by the TCP stack and we needn't do this ourselves;
+												 * however, this still reduces the number of system calls.
+												 */
+												if (req.getData() != null && req.getData().length > 0 && req.getData().length < 10000
+														&& req.delay_entity == 0
+														&& !(ServProtVersKnown && ServerProtocolVersion >= HTTP_1_1 && wf_cont))
 													{
-														if (Default_Tunnel_Host == null && Tunnel_Host != null)
+														hdr_buf.write(req.getData());
+														hdr_buf.writeTo(sock_out);
+													}
+												else
+													{
+														// Send headers
+
+														hdr_buf.writeTo(sock_out);
+
+														// Wait for "100 Continue" status if necessary
+
+														try
 															{
-																Proxy_Host = Tunnel_Host;
+																if (ServProtVersKnown && ServerProtocolVersion >= HTTP_1_1 && wf_cont)
+																	{
+																		resp = new Response(req, (Proxy_Host != null && Protocol != HTTPS), input_demux);
+																		resp.timeout = 60;
+																		if (resp.getContinue() != 100)
+																			{
+																				break;
+																			}
+																	}
 															}
-
-														if (Proxy_Host != null)
+														catch (InterruptedIOException iioe)
+															{
+															}
+														finally
 															{
-																Socket[] sarr = { sock };
-																resp = enableSSLTunneling(sarr, req, con_timeout);
 																if (resp != null)
 																	{
-																		resp.final_resp = true;
-																		return resp;
+																		resp.timeout = 0;
 																	}
-																sock = sarr[0];
-																Tunnel_Host = Proxy_Host;
-																Tunnel_Port = Proxy_Port;
-																Proxy_Host = null;
 															}
 
-														//sock = new SSLSocket(sock);
-													}
+														// POST/PUT data
 
-												/** @author added by Stefan Lieske, 2005/02/14 */
-												if (input_demux != null)
-													{
-														/* we don't need the HTTP CONNECT compatibility mode from the old
-														 * demultiplexor any more -> deactivate it and release compatibility
-														 * resources
-														 */
-														if (input_demux.isHttpConnectCompatibilityModeUsed())
+														if (req.getData() != null && req.getData().length > 0)
 															{
-																input_demux.releaseHttpConnectResources();
+																if (req.delay_entity > 0)
+																	{
+																		// wait for something on the network; check
+																		// available() roughly every 100 ms
+
+																		long num_units = req.delay_entity / 100;
+																		long one_unit = req.delay_entity / num_units;
+
+																		for (int idx = 0; idx < num_units; idx++)
+																			{
+																				if (input_demux.available(null) != 0)
+																					{
+																						break;
+																					}
+																				try
+																					{
+																						Thread.sleep(one_unit);
+																					}
+																				catch (InterruptedException ie)
+																					{
+																					}
+																			}
+
+																		if (input_demux.available(null) == 0)
+																			{
+																				sock_out.write(req.getData()); // he's still waiting
+																			}
+																		else
+																			{
+																				keep_alive = false; // Uh oh!
+																			}
+																	}
+																else
+																	{
+																		sock_out.write(req.getData());
+																	}
 															}
 													}
 
-												/** @author modified by Stefan Lieske, 2005/02/14 */
-												// input_demux = new StreamDemultiplexor(Protocol, sock, this);
-												/* if it is a CONNECT call, use the compatibility mode
-												 */
-												input_demux = new StreamDemultiplexor(Protocol, sock, this, req.getMethod().equals("CONNECT"));
-												DemuxList.addToEnd(input_demux);
-												KeepAliveReqLeft = KeepAliveReqMax;
-											}
+												if (req.getStream() != null)
+													{
+														req.getStream().goAhead(req, sock_out, input_demux.getChannel(), 0);
+													}
+												else
+													{
+														sock_out.flush();
+													}
 
-										if (req.aborted)
-											{
-												throw new IOException("Request aborted by user");
-											}
+												// get a new response.
+												// Note: this does not do a read on the socket.
 
-										if (DebugConn)
+												if (resp == null)
+													{
+														resp = new Response(req, (Proxy_Host != null && Protocol != HTTPS), input_demux);
+													}
+												prev_resp = resp;
+											}
+										catch (IOException ioe)
 											{
-												HttpClientUtil.logLine("Conn:  Sending Request: ");
-												HttpClientUtil.logLine();
-												hdr_buf.writeTo(System.err);
+												if (DebugConn)
+													{
+														HttpClientUtil.logLine("Conn:  ");
+														HttpClientUtil.logStackTrace(ioe);
+													}
+
+												closeDemux(ioe);
+
+												if (try_count == 0 || ioe instanceof UnknownHostException || ioe instanceof InterruptedIOException
+														|| ioe instanceof ConnectException // this is needed for SOCKS!!
+														|| req.aborted)
+													{
+														throw ioe;
+													}
+
+												if (DebugConn)
+													{
+														HttpClientUtil.logLine("Conn:  Retrying request");
+													}
+												continue;
 											}
 
-										// Now send the stuff
+										break;
+									}
 
-										OutputStream sock_out = sock.getOutputStream();
-										boolean wf_cont;
-										try
+								// close the stream after this response if necessary
+								/** @author modified by Stefan Lieske, 2005/02/14 */
+								//if ((!KeepAliveUnknown && !DoesKeepAlive)  ||  !keep_alive  ||
+								//    (KeepAliveReqMax != -1  &&  KeepAliveReqLeft-- == 0))
+								int req_left = input_demux.getRequestsLeft();
+								if (side_socket)
+									{
+										if (!keep_alive || input_demux.countRequest())
 											{
-												wf_cont = HttpClientUtil.hasToken(con_hdrs[1], "100-continue");
+												input_demux.markForClose(resp);
 											}
-										catch (ParseException pe)
+										else
 											{
-												throw new IOException(pe.toString());
+												input_demux.restartTimer();
 											}
+									}
+								else if (((!KeepAliveUnknown && !DoesKeepAlive) || !keep_alive
+										|| input_demux.countRequest()) && !req.getMethod().equals("CONNECT"))
+									{
+										input_demux.markForClose(resp);
+										input_demux = null;
+									}
+								else
+									{
+										input_demux.restartTimer();
+									}
 
-										/* We want to stick (the first part of) the data and the
-										 * headers into the same network packet. However, this is
-										 * only possible if the data doesn't need to be delayed and
-										 * we don't have to wait for a 100-Continue. Furthermore,
-										 * as the data size increases so does the overhead of copying,
-										 * but the relative gain in network performance decreases
-										 * (we're only saving 1 of N packets); therefore we only do
-										 * this for smallish (< 10K) data. (Unfortunately Java does
-										 * not provide scatter/gather io calls).
-										 * Actually, if Nagle is enabled then the combining is
-										 * done by the TCP stack and we needn't do this ourselves;
-										 * however, this still reduces the number of system calls.
-										 */
-										if (req.getData() != null && req.getData().length > 0 && req.getData().length < 10000
-												&& req.delay_entity == 0
-												&& !(ServProtVersKnown && ServerProtocolVersion >= HTTP_1_1 && wf_cont))
+								if (DebugConn)
+									{
+										if (req_left != -1)
 											{
-												hdr_buf.write(req.getData());
-												hdr_buf.writeTo(sock_out);
+												HttpClientUtil.logLine("Conn:  Number of requests left: " + Math.max(req_left - 1, 0));
 											}
-										else
-											{
-												// Send headers
+									}
 
-												hdr_buf.writeTo(sock_out);
+								/* We don't pipeline the first request, as we need some info
+								 * about the server (such as which http version it complies with)
+								 */
+								if (!ServProtVersKnown)
+									{
+										early_stall = resp;
+										resp.markAsFirstResponse(req);
+									}
 
-												// Wait for "100 Continue" status if necessary
+								/* Also don't pipeline until we know if the server supports
+								 * keep-alive's or not.
+								 * Note: strictly speaking, HTTP/1.0 keep-alives don't mean we can
+								 *       pipeline requests. I seem to remember some (beta?) version
+								 *       of Netscape's Enterprise server which barfed if you tried
+								 *       push requests down it's throat w/o waiting for the previous
+								 *       response first. However, I've not been able to find such a
+								 *       server lately, and so I'm taking the risk and assuming we
+								 *       can in fact pipeline requests to HTTP/1.0 servers.
+								 */
+								if (KeepAliveUnknown ||
+								// We don't pipeline POST's ...
+										!IdempotentSequence.methodIsIdempotent(req.getMethod()) || req.dont_pipeline || // Retries disable pipelining too
+										NeverPipeline)
+									{ // Emergency measure: prevent all pipelining
+										late_stall = resp;
+									}
+							}
+						finally
+							{
+								if (side_socket)
+									{
+										// back to the main socket
+										input_demux = main_demux;
+										early_stall = main_early_stall;
+										late_stall = main_late_stall;
+										prev_resp = main_prev_resp;
+									}
+							}
 
-												try
-													{
-														if (ServProtVersKnown && ServerProtocolVersion >= HTTP_1_1 && wf_cont)
-															{
-																resp = new Response(req, (Proxy_Host != null && Protocol != HTTPS), input_demux);
-																resp.timeout = 60;
-																if (resp.getContinue() != 100)
-																	{
-																		break;
-																	}
-															}
-													}
-												catch (InterruptedIOException iioe)
-													{
-													}
-												finally
-													{
-														if (resp != null)
-															{
-																resp.timeout = 0;
-															}
-													}
+						/* If there is an output stream then just tell the other threads to
+						 * wait; the stream will notify() when it's done. If there isn't any
+						 * stream then wake up a waiting thread (if any).
+						 */
+						if (req.getStream() != null)
+							{
+								output_finished = false;
+							}
+						else
+							{
+								output_finished = true;
+								notify();
+							}
+
+						// Looks like were finally done
+
+						if (DebugConn)
+							{
+								HttpClientUtil.logLine("Conn:  Request sent");
+							}
+					}
+
+				if (hdr_buf.capacity() <= 16384)
+					{
+						HeaderBuffer.set(hdr_buf);
+					}
 
-												// POST/PUT data
+				return resp;
+			}
+
+		/**
+		 * Gets a socket. Creates a socket to the proxy if set, or else to the
+		 * actual destination. Uses a socket factory, if given.
+		 *
+		 * @param con_timeout
+		 *          if not 0 then this limits the time spent establishing the
+		 *          connection (including the host name lookup, as far as it can be
+		 *          accounted for). When it expires an InterruptedIOException is
+		 *          thrown. If a socket factory is set which does not implement
+		 *          HTTPClientTimeoutSocketFactory then a new thread is started to
+		 *          establish the connection and join(con_timeout)'d.
+		 * @param socketFactory
+		 *          socket factory to use, if given if null, the default socket
+		 *          factory (of the JRE) is used
+		 * @throws ThreadInterruptedIOException
+		 *           if the current thread was interrupted (Rolf Wendolsky 06/06/17)
+		 */
+		private Socket getSocket(int con_timeout)
+				throws IOException, ThreadInterruptedIOException
+			{
+				Socket sock = null;
+
+				String actual_host;
+				int actual_port;
+
+				if (Tunnel_Host != null)
+					{
+						actual_host = Tunnel_Host;
+						actual_port = Tunnel_Port;
+					}
+				else if (Proxy_Host != null)
+					{
+						actual_host = Proxy_Host;
+						actual_port = Proxy_Port;
+					}
+				else
+					{
+						actual_host = Host;
+						actual_port = Port;
+					}
+
+				if (DebugConn)
+					{
+						HttpClientUtil.logLine("Conn:  Creating Socket: " + actual_host + ":" + actual_port);
+					}
+
+				if (con_timeout != 0 && Socks_client == null && m_socketFactory != null
+						&& !(m_socketFactory instanceof HTTPClientTimeoutSocketFactory))
+					{
+						// this factory can't do timeouts - use a separate thread
+						EstablishConnection con = new EstablishConnection(actual_host, actual_port, Socks_client,m_socketFactory,m_dnsResolver);
+						con.start();
+						try
+							{
+								con.join((long) con_timeout);
+							}
+						catch (InterruptedException ie)
+							{
+								sock = con.getSocket();
+								con.forget();
+								throw new ThreadInterruptedIOException("Current thread was interrupted!");
+
+							}
+
+						if (con.getException() != null)
+							{
+								throw con.getException();
+							}
+						if ((sock = con.getSocket()) == null)
+							{
+								con.forget();
+								if ((sock = con.getSocket()) == null)
+									{
+										throw new InterruptedIOException("Connection establishment timed out");
+									}
+							}
+
+						return sock;
+					}
+
+				// the time by which the connection must be established
+				long end = (con_timeout != 0) ? System.currentTimeMillis() + con_timeout : 0;
+
+				if (Socks_client != null)
+					{
+						sock = Socks_client.getSocket(actual_host, actual_port, con_timeout);
+					}
+				else
+					{
+						// try all A records
+						InetAddress[] addr_list=null;
+						if(m_dnsResolver!=null)
+							{
+								addr_list=m_dnsResolver.getAllByName(actual_host);
+							}
+						else
+							{
+								addr_list = InetAddress.getAllByName(actual_host);
+							}
+						if (ConnectRaceDelay > 0 && addr_list.length > 1 && Protocol == HTTP && m_socketFactory == null)
+							{
+								return raceConnect(actual_host, addr_list, actual_port, end);
+							}
+
+						for (int idx = 0; idx < addr_list.length; idx++)
+							{
+								try
+									{
+										sock = connect(addr_list[idx], actual_port, remaining(end));
+										break; // success
+									}
+								catch (SocketException se)
+									{ // should be NoRouteToHostException
+										if (idx == addr_list.length - 1)
+											{
+												throw se; // we tried them all
+											}
+									}
+							}
+					}
+
+				return sock;
+			}
+
+		/**
+		 * Creates a socket connected to the given address, using the socket
+		 * factory if one has been set.
+		 *
+		 * @param addr
+		 *          the address
+		 * @param port
+		 *          the port
+		 * @param timeout
+		 *          the maximum time in milliseconds to spend connecting; 0
+		 *          means wait indefinitely
+		 * @exception java.net.SocketTimeoutException
+		 *              if the timeout expired
+		 */
+		private Socket connect(InetAddress addr, int port, int timeout) throws IOException
+			{
+				if (m_socketFactory instanceof HTTPClientTimeoutSocketFactory)
+					{
+						return ((HTTPClientTimeoutSocketFactory) m_socketFactory).connect(addr, port, timeout);
+					}
+				if (m_socketFactory != null)
+					{
+						return m_socketFactory.connect(addr, port);
+					}
+
+				Socket sock = new Socket();
+				try
+					{
+						sock.connect(new InetSocketAddress(addr, port), timeout);
+					}
+				catch (IOException ioe)
+					{
+						sock.close();
+						throw ioe;
+					}
+				return sock;
+			}
 
-												if (req.getData() != null && req.getData().length > 0)
-													{
-														if (req.delay_entity > 0)
-															{
-																// wait for something on the network; check
-																// available() roughly every 100 ms
+		/**
+		 * Races connection attempts to the given addresses, starting a new
+		 * attempt every ConnectRaceDelay milliseconds or as soon as an attempt
+		 * fails, and returns the first socket connected. The winning address is
+		 * remembered for the host and tried first next time.
+		 *
+		 * @param host
+		 *          the host name
+		 * @param addr_list
+		 *          the host's addresses
+		 * @param port
+		 *          the port
+		 * @param end
+		 *          the time by which the connection must be established, or 0
+		 * @return the connected socket; its channel is in blocking mode
+		 */
+		private Socket raceConnect(String host, InetAddress[] addr_list, int port, long end) throws IOException
+			{
+				InetAddress last_winner;
+				synchronized (RaceWinners)
+					{
+						last_winner = (InetAddress) RaceWinners.get(host);
+					}
+				InetAddress[] addrs = raceOrder(addr_list, last_winner);
+				SocketChannel[] channels = new SocketChannel[addrs.length];
+				SocketChannel winner = null;
+				IOException last_exc = null;
+				int started = 0, failed = 0;
+				long next_start = 0;
 
-																long num_units = req.delay_entity / 100;
-																long one_unit = req.delay_entity / num_units;
+				Selector selector = Selector.open();
+				try
+					{
+						while (winner == null)
+							{
+								long now = System.currentTimeMillis();
 
-																for (int idx = 0; idx < num_units; idx++)
-																	{
-																		if (input_demux.available(null) != 0)
-																			{
-																				break;
-																			}
-																		try
-																			{
-																				Thread.sleep(one_unit);
-																			}
-																		catch (InterruptedException ie)
-																			{
-																			}
-																	}
+								// start the next attempt if it's due
+								if (started < addrs.length && (now >= next_start || failed == started))
+									{
+										int idx = started++;
+										next_start = now + ConnectRaceDelay;
 
-																if (input_demux.available(null) == 0)
-																	{
-																		sock_out.write(req.getData()); // he's still waiting
-																	}
-																else
-																	{
-																		keep_alive = false; // Uh oh!
-																	}
-															}
-														else
-															{
-																sock_out.write(req.getData());
-															}
-													}
+										if (DebugConn)
+											{
+												HttpClientUtil.logLine("Conn:  Racing connect to " + addrs[idx] + ":" + port);
 											}
 
-										if (req.getStream() != null)
+										try
 											{
-												req.getStream().goAhead(req, sock_out, 0);
+												channels[idx] = SocketChannel.open();
+												channels[idx].configureBlocking(false);
+												if (channels[idx].connect(new InetSocketAddress(addrs[idx], port)))
+													{
+														winner = channels[idx];
+														setRaceWinner(host, addrs[idx]);
+														break;
+													}
+												channels[idx].register(selector, SelectionKey.OP_CONNECT, Integer.valueOf(idx));
 											}
-										else
+										catch (IOException ioe)
 											{
-												sock_out.flush();
+												last_exc = ioe;
+												closeChannel(channels[idx]);
+												channels[idx] = null;
+												failed++;
 											}
+										continue;
+									}
 
-										// get a new response.
-										// Note: this does not do a read on the socket.
-
-										if (resp == null)
-											{
-												resp = new Response(req, (Proxy_Host != null && Protocol != HTTPS), input_demux);
-											}
-										prev_resp = resp;
+								if (failed == addrs.length)
+									{
+										throw last_exc; // we tried them all
 									}
-								catch (IOException ioe)
+
+								long wait = (started < addrs.length) ? next_start - now : 0;
+								if (end != 0)
 									{
-										if (DebugConn)
+										long left = remaining(end);
+										if (wait == 0 || left < wait)
 											{
-												HttpClientUtil.logLine("Conn:  ");
-												HttpClientUtil.logStackTrace(ioe);
+												wait = left;
 											}
+									}
+								selector.select(wait);
 
-										closeDemux(ioe);
-
-										if (try_count == 0 || ioe instanceof UnknownHostException || ioe instanceof InterruptedIOException
-												|| ioe instanceof ConnectException // this is needed for SOCKS!!
-												|| req.aborted)
+								for (Iterator iter = selector.selectedKeys().iterator(); iter.hasNext();)
+									{
+										SelectionKey key = (SelectionKey) iter.next();
+										iter.remove();
+										int idx = ((Integer) key.attachment()).intValue();
+										try
 											{
-												throw ioe;
+												if (channels[idx].finishConnect())
+													{
+														key.cancel();
+														if (winner == null)
+															{
+																winner = channels[idx];
+																setRaceWinner(host, addrs[idx]);
+															}
+													}
 											}
-
-										if (DebugConn)
+										catch (IOException ioe)
 											{
-												HttpClientUtil.logLine("Conn:  Retrying request");
+												if (DebugConn)
+													{
+														HttpClientUtil.logLine("Conn:  Connect to " + addrs[idx] + " failed: " + ioe);
+													}
+												last_exc = ioe;
+												key.cancel();
+												closeChannel(channels[idx]);
+												channels[idx] = null;
+												failed++;
 											}
-										continue;
 									}
 
-								break;
+								if (end != 0 && winner == null)
+									{
+										remaining(end);
+									}
 							}
-
-						// close the stream after this response if necessary
-						/** @author modified by Stefan Lieske, 2005/02/14 */
-						//if ((!KeepAliveUnknown && !DoesKeepAlive)  ||  !keep_alive  ||
-						//    (KeepAliveReqMax != -1  &&  KeepAliveReqLeft-- == 0))
-						if (((!KeepAliveUnknown && !DoesKeepAlive) || !keep_alive
-								|| (KeepAliveReqMax != -1 && KeepAliveReqLeft-- == 0)) && !req.getMethod().equals("CONNECT"))
+					}
+				finally
+					{
+						for (int idx = 0; idx < channels.length; idx++)
 							{
-								input_demux.markForClose(resp);
-								input_demux = null;
+								if (channels[idx] != null && channels[idx] != winner)
+									{
+										closeChannel(channels[idx]);
+									}
 							}
-						else
+						try
 							{
-								input_demux.restartTimer();
+								selector.close();
 							}
-
-						if (DebugConn)
+						catch (IOException ioe)
 							{
-								if (KeepAliveReqMax != -1)
-									{
-										HttpClientUtil.logLine("Conn:  Number of requests left: " + KeepAliveReqLeft);
-									}
 							}
+					}
 
-						/* We don't pipeline the first request, as we need some info
-						 * about the server (such as which http version it complies with)
-						 */
-						if (!ServProtVersKnown)
-							{
-								early_stall = resp;
-								resp.markAsFirstResponse(req);
-							}
+				try
+					{
+						winner.configureBlocking(true);
+					}
+				catch (IOException ioe)
+					{
+						closeChannel(winner);
+						throw ioe;
+					}
+				return winner.socket();
+			}
 
-						/* Also don't pipeline until we know if the server supports
-						 * keep-alive's or not.
-						 * Note: strictly speaking, HTTP/1.0 keep-alives don't mean we can
-						 *       pipeline requests. I seem to remember some (beta?) version
-						 *       of Netscape's Enterprise server which barfed if you tried
-						 *       push requests down it's throat w/o waiting for the previous
-						 *       response first. However, I've not been able to find such a
-						 *       server lately, and so I'm taking the risk and assuming we
-						 *       can in fact pipeline requests to HTTP/1.0 servers.
-						 */
-						if (KeepAliveUnknown ||
-						// We don't pipeline POST's ...
-								!IdempotentSequence.methodIsIdempotent(req.getMethod()) || req.dont_pipeline || // Retries disable pipelining too
-								NeverPipeline)
-							{ // Emergency measure: prevent all pipelining
-								late_stall = resp;
-							}
+		/**
+		 * Remembers the address which won a connection race to the host.
+		 */
+		private static void setRaceWinner(String host, InetAddress addr)
+			{
+				synchronized (RaceWinners)
+					{
+						RaceWinners.put(host, addr);
+					}
+			}
 
-						/* If there is an output stream then just tell the other threads to
-						 * wait; the stream will notify() when it's done. If there isn't any
-						 * stream then wake up a waiting thread (if any).
-						 */
-						if (req.getStream() != null)
+		/**
+		 * Orders the addresses for racing: the last winner first, and then
+		 * alternating between IPv6 and IPv4 addresses, starting with the family
+		 * of the first address.
+		 */
+		private static InetAddress[] raceOrder(InetAddress[] addr_list, InetAddress last_winner)
+			{
+				Vector v6 = new Vector(), v4 = new Vector();
+				InetAddress first = null;
+				for (int idx = 0; idx < addr_list.length; idx++)
+					{
+						if (addr_list[idx].equals(last_winner))
 							{
-								output_finished = false;
+								first = addr_list[idx];
+							}
+						else if (addr_list[idx] instanceof Inet6Address)
+							{
+								v6.addElement(addr_list[idx]);
 							}
 						else
 							{
-								output_finished = true;
-								notify();
+								v4.addElement(addr_list[idx]);
 							}
+					}
 
-						// Looks like were finally done
-
-						if (DebugConn)
+				boolean six = (first != null) ? !(first instanceof Inet6Address) : addr_list[0] instanceof Inet6Address;
+				InetAddress[] order = new InetAddress[addr_list.length];
+				int pos = 0;
+				if (first != null)
+					{
+						order[pos++] = first;
+					}
+				int i6 = 0, i4 = 0;
+				while (pos < order.length)
+					{
+						if ((six && i6 < v6.size()) || i4 >= v4.size())
 							{
-								HttpClientUtil.logLine("Conn:  Request sent");
+								order[pos++] = (InetAddress) v6.elementAt(i6++);
+							}
+						else
+							{
+								order[pos++] = (InetAddress) v4.elementAt(i4++);
 							}
+						six = !six;
 					}
 
-				return resp;
+				return order;
 			}
 
-		/**
-		 * Gets a socket. Creates a socket to the proxy if set, or else to the
-		 * actual destination. Uses a socket factory, if given.
-		 *
-		 * @param con_timeout
-		 *          if not 0 then start a new thread to establish the the connection
-		 *          and join(con_timeout) it. If the join() times out an
-		 *          InteruptedIOException is thrown.
-		 * @param socketFactory
-		 *          socket factory to use, if given if null, the default socket
-		 *          factory (of the JRE) is used
-		 * @throws ThreadInterruptedIOException
-		 *           if the current thread was interrupted (Rolf Wendolsky 06/06/17)
-		 */
-		private Socket getSocket(int con_timeout)
-				throws IOException, ThreadInterruptedIOException
+		private static void closeChannel(SocketChannel channel)
 			{
-				Socket sock = null;
-
-				String actual_host;
-				int actual_port;
-
-				if (Tunnel_Host != null)
+				try
 					{
-						actual_host = Tunnel_Host;
-						actual_port = Tunnel_Port;
+						channel.close();
 					}
-				else if (Proxy_Host != null)
+				catch (IOException ioe)
 					{
-						actual_host = Proxy_Host;
-						actual_port = Proxy_Port;
 					}
-				else
+			}
+
+		/**
+		 * @param end
+		 *          the time by which the connection must be established, or 0
+		 * @return the number of milliseconds left until <var>end</var>, or 0 if
+		 *         there is no limit
+		 * @exception InterruptedIOException
+		 *              if there is no time left
+		 */
+		private static int remaining(long end) throws InterruptedIOException
+			{
+				if (end == 0)
 					{
-						actual_host = Host;
-						actual_port = Port;
+						return 0;
 					}
 
-				if (DebugConn)
+				long left = end - System.currentTimeMillis();
+				if (left <= 0)
 					{
-						HttpClientUtil.logLine("Conn:  Creating Socket: " + actual_host + ":" + actual_port);
+						throw new InterruptedIOException("Connection establishment timed out");
 					}
+				return (int) Math.min(left, Integer.MAX_VALUE);
+			}
 
-				if (con_timeout == 0)
-					{ // normal connection establishment
-						if (Socks_client != null)
-							{
-								sock = Socks_client.getSocket(actual_host, actual_port);
-							}
-						else
+		/**
+		 * Looks for a socket, other than <var>current</var>, on which no
+		 * responses are outstanding.
+		 *
+		 * @param current
+		 *          the main socket's demultiplexor
+		 * @return the idle demultiplexor, or null if there is none
+		 */
+		private StreamDemultiplexor getIdleDemux(StreamDemultiplexor current)
+			{
+				// a closing demux locks itself and then the list, so isIdle()
+				// (which locks the demux) must not be called under the list lock
+				StreamDemultiplexor[] demuxes = new StreamDemultiplexor[Math.max(MaxConnections, 4)];
+				int cnt = 0;
+				synchronized (DemuxList)
+					{
+						for (StreamDemultiplexor demux = (StreamDemultiplexor) DemuxList.enumerate(); demux != null; demux = (StreamDemultiplexor) DemuxList
+								.next())
 							{
-								// try all A records
-								InetAddress[] addr_list=null;
-								if(m_dnsResolver!=null)
-									{
-										addr_list=m_dnsResolver.getAllByName(actual_host);
-									}
-								else
-									{
-										addr_list = InetAddress.getAllByName(actual_host);
-									}
-								for (int idx = 0; idx < addr_list.length; idx++)
+								if (cnt == demuxes.length)
 									{
-										try
-											{
-												if(m_socketFactory==null)
-													sock = new Socket(addr_list[idx], actual_port);
-												else
-													sock = m_socketFactory.connect(addr_list[idx], actual_port);											
-												break; // success
-											}
-										catch (SocketException se)
-											{ // should be NoRouteToHostException
-												if (idx == addr_list.length - 1)
-													{
-														throw se; // we tried them all
-													}
-											}
+										StreamDemultiplexor[] tmp = new StreamDemultiplexor[cnt * 2];
+										System.arraycopy(demuxes, 0, tmp, 0, cnt);
+										demuxes = tmp;
 									}
+								demuxes[cnt++] = demux;
 							}
 					}
-				else
+
+				for (int idx = 0; idx < cnt; idx++)
 					{
-						EstablishConnection con = new EstablishConnection(actual_host, actual_port, Socks_client,m_socketFactory,m_dnsResolver);
-						con.start();
-						try
+						if (demuxes[idx] != current && demuxes[idx].isIdle())
 							{
-								con.join((long) con_timeout);
+								return demuxes[idx];
 							}
-						catch (InterruptedException ie)
-							{
-								sock = con.getSocket();
-								con.forget();
-								throw new ThreadInterruptedIOException("Current thread was interrupted!");
+					}
 
-							}
+				return null;
+			}
 
-						if (con.getException() != null)
+		/**
+		 * @return the number of sockets currently open by this connection
+		 */
+		private int countDemuxes()
+			{
+				int cnt = 0;
+				synchronized (DemuxList)
+					{
+						for (Object demux = DemuxList.enumerate(); demux != null; demux = DemuxList.next())
 							{
-								throw con.getException();
+								cnt++;
 							}
-						if ((sock = con.getSocket()) == null)
+					}
+
+				return cnt;
+			}
+
+		/**
+		 * Gets a socket from the connection pool, or creates a new one if the
+		 * pool has no idle socket for this route. If the socket cannot be
+		 * created the reserved slot is given back to the pool.
+		 *
+		 * @param pool
+		 *          the pool to use
+		 * @param route
+		 *          the route of this connection
+		 * @param con_timeout
+		 *          the connection timeout; also limits the time spent waiting for
+		 *          a free slot in the pool
+		 */
+		private Socket getPooledSocket(ConnectionPool pool, ConnectionPool.Route route, int con_timeout)
+				throws IOException, ThreadInterruptedIOException
+			{
+				Socket sock = pool.lease(route, con_timeout);
+				if (sock != null)
+					{
+						return sock;
+					}
+
+				boolean ok = false;
+				try
+					{
+						sock = getSocket(con_timeout);
+						ok = true;
+						return sock;
+					}
+				finally
+					{
+						if (!ok)
 							{
-								con.forget();
-								if ((sock = con.getSocket()) == null)
-									{
-										throw new InterruptedIOException("Connection establishment timed out");
-									}
+								pool.release(route, null, false);
 							}
 					}
-
-				return sock;
 			}
 
 		/**
@@ -3576,7 +4974,7 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 				connect.internal_subrequest = true;
 
 				ExtByteArrayOutputStream hdr_buf = new ExtByteArrayOutputStream(600);
-				HTTPResponse r = new HTTPResponse(gen_mod_insts(), timeout, connect);
+				HTTPResponse r = new HTTPResponse(getModuleChain(), timeout, connect);
 
 				// send and handle CONNECT request until successful or tired
 
@@ -3712,14 +5110,27 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 
 				/** @author modified by Stefan Lieske 2005/02/14 */
 				// if (Port != 80)
-				if ((Port != 80) || req.getMethod().equals("CONNECT"))
+				if (Port == 80 && req.getMethod().equals("CONNECT"))
 					{
 						hdr_buf.write("Host: ", Host, ":");
 						hdr_buf.write(Integer.toString(Port), "\r\n");
 					}
 				else
-					{ // Netscape-Enterprise has some bugs...
-						hdr_buf.write("Host: ", Host, "\r\n");
+					{
+						byte[] host_line = HostLine;
+						if (host_line == null)
+							{
+								if (Port != 80)
+									{
+										host_line = new NVPair("Host", Host + ":" + Port).getHeaderLine();
+									}
+								else
+									{ // Netscape-Enterprise has some bugs...
+										host_line = new NVPair("Host", Host).getHeaderLine();
+									}
+								HostLine = host_line;
+							}
+						hdr_buf.write(host_line);
 					}
 
 				// remember various headers
@@ -3875,19 +5286,26 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 					}
 				else
 					{
-						hdr_buf.write("TE: trailers\r\n");
+						hdr_buf.write(DefaultTELine);
 					}
 
-				// User-Agent
+				// User-Agent; usually the same pair (from the default headers)
+				// is sent every time, so keep its encoded line
 
 				if (ua_idx != -1)
 					{
-						hdr_buf.write("User-Agent: ", hdrs[ua_idx].getValue().trim(), " ");
-						hdr_buf.write(version, "\r\n");
+						Object[] ua_line = UserAgentLine;
+						if (ua_line == null || ua_line[0] != hdrs[ua_idx])
+							{
+								String ua = hdrs[ua_idx].getValue().trim() + " " + version;
+								ua_line = new Object[] { hdrs[ua_idx], new NVPair("User-Agent", ua).getHeaderLine() };
+								UserAgentLine = ua_line;
+							}
+						hdr_buf.write((byte[]) ua_line[1]);
 					}
 				else
 					{
-						hdr_buf.write("User-Agent: ", version, "\r\n");
+						hdr_buf.write(DefaultUserAgentLine);
 					}
 
 				// Write out any headers left
@@ -3897,8 +5315,7 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 						if (idx != ct_idx && idx != ua_idx && idx != co_idx && idx != pc_idx && idx != ka_idx && idx != ex_idx
 								&& idx != te_idx)
 							{
-								hdr_buf.write(hdrs[idx].getName().trim(), ": ");
-								hdr_buf.write(hdrs[idx].getValue().trim(), "\r\n");
+								hdr_buf.write(hdrs[idx].getHeaderLine());
 							}
 					}
 
@@ -3921,7 +5338,7 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 							}
 						else if (req.getStream().getLength() != -1 && tc_idx == -1)
 							{
-								hdr_buf.write("Content-length: ", Integer.toString(req.getStream().getLength()), "\r\n");
+								hdr_buf.write("Content-length: ", Long.toString(req.getStream().getLongLength()), "\r\n");
 							}
 
 						if (ex_idx != -1)
@@ -4062,7 +5479,11 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 								if (max != null && max.getValue() != null)
 									{
 										KeepAliveReqMax = Integer.parseInt(max.getValue());
-										KeepAliveReqLeft = KeepAliveReqMax;
+										// the request whose response this is has been sent already
+										if (input_demux != null)
+											{
+												input_demux.setRequestsLeft(KeepAliveReqMax - 1);
+											}
 
 										if (DebugConn)
 											{
@@ -4138,4 +5559,31 @@ public class HTTPConnection implements GlobalConstants, HTTPClientModuleConstant
 			m_dnsResolver=a_dnsResolver;
 		}
 
+		/**
+		 * Sets the DNS resolver used by each new HTTPConnection. The default is
+		 * none, i.e. the Java default DNS resolver, unless the property
+		 * <var>HTTPClient.dnsCache</var> is set to true, in which case a
+		 * <code>CachingDNSResolver</code> is used.
+		 *
+		 * @param a_dnsResolver
+		 *          the resolver, or null to use the Java default DNS resolver
+		 * @see CachingDNSResolver
+		 * @see #setDNSResolver(IHTTPClientDNSResolver)
+		 */
+		public static void setDefaultDNSResolver(IHTTPClientDNSResolver a_dnsResolver)
+			{
+				DefaultDNSResolver = a_dnsResolver;
+			}
+
+		/**
+		 * Gets the DNS resolver used by each new HTTPConnection.
+		 *
+		 * @return the resolver, or null if the Java default DNS resolver is used
+		 * @see #setDefaultDNSResolver(IHTTPClientDNSResolver)
+		 */
+		public static IHTTPClientDNSResolver getDefaultDNSResolver()
+			{
+				return DefaultDNSResolver;
+			}
+
 	}
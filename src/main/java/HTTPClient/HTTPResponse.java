@@ -33,6 +33,10 @@ import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.io.InputStream;
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.net.URL;
 import java.net.MalformedURLException;
 import java.util.Date;
@@ -56,6 +60,9 @@ public class HTTPResponse implements GlobalConstants, HTTPClientModuleConstants
     /** the list of modules */
     private HTTPClientModule[]  modules;
 
+    /** the chain the modules come from */
+    private ModuleChain         chain;
+
     /** the timeout for reads */
     private int          timeout;
 
@@ -87,10 +94,10 @@ public class HTTPResponse implements GlobalConstants, HTTPClientModuleConstants
     private HttpClientURI          EffectiveURI = null;
 
     /** any headers which were received and do not fit in the above list. */
-    private CIHashtable  Headers = null;
+    private HeaderMap    Headers = null;
 
     /** any trailers which were received and do not fit in the above list. */
-    private CIHashtable  Trailers = null;
+    private HeaderMap    Trailers = null;
 
     /** the ContentLength of the data. */
     private int          ContentLength = -1;
@@ -122,12 +129,13 @@ public class HTTPResponse implements GlobalConstants, HTTPClientModuleConstants
     /**
      * Creates a new HTTPResponse.
      *
-     * @param modules the list of modules handling this response
+     * @param chain   the chain of modules handling this response
      * @param timeout the timeout to be used on stream read()'s
      */
-    HTTPResponse(HTTPClientModule[] modules, int timeout, Request orig)
+    HTTPResponse(ModuleChain chain, int timeout, Request orig)
     {
-	this.modules = modules;
+	this.chain   = chain;
+	this.modules = chain.instantiate();
 	this.timeout = timeout;
 	try
 	{
@@ -272,7 +280,7 @@ public class HTTPResponse implements GlobalConstants, HTTPClientModuleConstants
     public String getHeader(String hdr)  throws IOException, ModuleException
     {
 	if (!initialized)  handleResponse();
-	return (String) Headers.get(hdr.trim());
+	return Headers.get(hdr.trim());
     }
 
     /**
@@ -362,7 +370,7 @@ public class HTTPResponse implements GlobalConstants, HTTPClientModuleConstants
     public String getTrailer(String trailer) throws IOException, ModuleException
     {
 	if (!got_trailers)  getTrailers();
-	return (String) Trailers.get(trailer.trim());
+	return Trailers.get(trailer.trim());
     }
 
     /**
@@ -546,6 +554,116 @@ public class HTTPResponse implements GlobalConstants, HTTPClientModuleConstants
     }
 
 
+    /**
+     * Writes the returned data to the given channel. The data is read
+     * straight into a single buffer which is handed to the channel, without
+     * first being collected in memory as with <code>getData()</code>. When
+     * the body has no content or transfer coding and is large, the reads
+     * bypass the buffer of the connection's stream so the data is only
+     * copied once between socket and channel. Afterwards the response
+     * stream is closed and <code>getData()</code> returns a zero-length
+     * array. If <code>getData()</code> had been previously invoked then that
+     * data is written.
+     *
+     * <P>The channel is not closed.
+     *
+     * @param channel the channel to write the data to
+     * @return the number of bytes written
+     * @exception IOException If any exception occurs on the socket or the
+     *                        channel.
+     * @exception ModuleException if any module encounters an exception.
+     * @see #transferTo(java.io.File)
+     */
+    public synchronized long transferTo(WritableByteChannel channel)
+	    throws IOException, ModuleException
+    {
+	if (!initialized)  handleResponse();
+
+	if (Data != null)
+	{
+	    getData();		// ensure complete data is read
+	    ByteBuffer src = ByteBuffer.wrap(Data);
+	    while (src.hasRemaining())
+		channel.write(src);
+	    return Data.length;
+	}
+
+	/* For an unencoded body inp_stream is the RespInputStream itself; a
+	 * buffer larger than the ExtBufferedInputStream's makes its reads go
+	 * directly to the socket. A known length saves allocating more than
+	 * is needed.
+	 */
+	int size = 65536;
+	if (ContentLength >= 0  &&  ContentLength < size  &&
+	    getHeader("Transfer-Encoding") == null  &&
+	    getHeader("Content-Encoding") == null)
+	    size = Math.max(ContentLength, 1);
+
+	byte[] buf = BufferPool.borrow(size);
+	ByteBuffer src = ByteBuffer.wrap(buf);
+	long total = 0;
+	int  rcvd;
+
+	try
+	{
+	    while ((rcvd = inp_stream.read(buf, 0, buf.length)) != -1)
+	    {
+		src.clear();
+		src.limit(rcvd);
+		while (src.hasRemaining())
+		    channel.write(src);
+		total += rcvd;
+	    }
+	}
+	catch (InterruptedIOException ie)		// don't intercept
+	{
+	    throw ie;
+	}
+	catch (IOException ioe)
+	{
+	    if (DebugResp)
+	    {
+		HttpClientUtil.logLine("HResp: (\"" + method + " " +
+			     OriginalURI.getPath() + "\")");
+		HttpClientUtil.logMessage("       ");
+		HttpClientUtil.logStackTrace(ioe);
+	    }
+	    try { inp_stream.close(); } catch (Exception e) { }
+	    throw ioe;
+	}
+	finally
+	    { BufferPool.release(buf); }
+
+	inp_stream.close();
+	Data = new byte[0];
+
+	return total;
+    }
+
+
+    /**
+     * Writes the returned data to the given file, replacing any previous
+     * contents. See {@link #transferTo(java.nio.channels.WritableByteChannel)
+     * transferTo(WritableByteChannel)} for details.
+     *
+     * @param file the file to write the data to
+     * @return the number of bytes written
+     * @exception IOException If any exception occurs on the socket or while
+     *                        writing the file.
+     * @exception ModuleException if any module encounters an exception.
+     */
+    public long transferTo(File file)  throws IOException, ModuleException
+    {
+	FileOutputStream fos = new FileOutputStream(file);
+	try
+	{
+	    return transferTo(fos.getChannel());
+	}
+	finally
+	    { fos.close(); }
+    }
+
+
     /**
      * Should the request be retried by the application? If the application
      * used an <var>HttpOutputStream</var> in the request then various
@@ -652,6 +770,16 @@ public class HTTPResponse implements GlobalConstants, HTTPClientModuleConstants
     }
 
 
+    /**
+     * @param phase the phase, as defined in ModuleChain
+     * @return the positions of the modules to invoke in the given phase
+     */
+    int[] getPhase(int phase)
+    {
+	return chain.getPhase(phase);
+    }
+
+
     /**
      * Processes a Response. This is done by calling the response handler
      * in each module. When all is done, the various fields of this instance
@@ -682,10 +810,11 @@ public class HTTPResponse implements GlobalConstants, HTTPClientModuleConstants
 	doModules: while (true)
 	{
 
-	Phase1: for (int idx=0; idx<modules.length && !aborted; idx++)
+	int[] order = chain.getPhase(ModuleChain.RESPONSE_1);
+	Phase1: for (int idx=0; idx<order.length && !aborted; idx++)
 	{
 	    try
-		{ modules[idx].responsePhase1Handler(response, request); }
+		{ modules[order[idx]].responsePhase1Handler(response, request); }
 	    catch (RetryException re)
 	    {
 		if (re.restart)
@@ -695,9 +824,10 @@ public class HTTPResponse implements GlobalConstants, HTTPClientModuleConstants
 	    }
 	}
 
-	Phase2: for (int idx=0; idx<modules.length && !aborted; idx++)
+	order = chain.getPhase(ModuleChain.RESPONSE_2);
+	Phase2: for (int idx=0; idx<order.length && !aborted; idx++)
 	{
-            int sts = modules[idx].responsePhase2Handler(response, request);
+            int sts = modules[order[idx]].responsePhase2Handler(response, request);
             switch (sts)
             {
                 case RSP_CONTINUE:	// continue processing
@@ -735,13 +865,14 @@ public class HTTPResponse implements GlobalConstants, HTTPClientModuleConstants
                 default:                // not valid
                     throw new Error("HTTPClient Internal Error: invalid status"+
                                     " " + sts + " returned by module " +
-                                    modules[idx].getClass().getName());
+                                    modules[order[idx]].getClass().getName());
 	    }
 	}
 
-	Phase3: for (int idx=0; idx<modules.length && !aborted; idx++)
+	order = chain.getPhase(ModuleChain.RESPONSE_3);
+	Phase3: for (int idx=0; idx<order.length && !aborted; idx++)
 	{
-            modules[idx].responsePhase3Handler(response, request);
+            modules[order[idx]].responsePhase3Handler(response, request);
 	}
 
 	break doModules;
@@ -805,9 +936,10 @@ public class HTTPResponse implements GlobalConstants, HTTPClientModuleConstants
 	    return;
 	}
 
-	for (int idx=0; idx<modules.length && !aborted; idx++)
+	int[] order = chain.getPhase(ModuleChain.TRAILER);
+	for (int idx=0; idx<order.length && !aborted; idx++)
 	{
-            modules[idx].trailerHandler(response, request);
+            modules[order[idx]].trailerHandler(response, request);
 	}
 
 	trailers_handled = true;
@@ -889,30 +1021,34 @@ public class HTTPResponse implements GlobalConstants, HTTPClientModuleConstants
 		*/
 		if (rcvd == -1)
 		    Data = HttpClientUtil.resizeArray(Data, off);
+		else
+		    inp.read();	// hit the EOF, so that hash-check-streams verify
 	    }
 	    else
 	    {
-		int inc  = 100000,
-		    rcvd = 0;
+		// collect the data in segments and copy it only once at the end
+		SegmentedBuffer buf = new SegmentedBuffer(Data);
 
-		do
+		try
+		    { while (buf.readFrom(inp) != -1) ; }
+		finally
 		{
-		    off  += rcvd;
-		    Data  = HttpClientUtil.resizeArray(Data, off+inc);
-		} while ((rcvd = inp.read(Data, off, inc)) != -1);
-
-		Data = HttpClientUtil.resizeArray(Data, off);
+		    Data = buf.toByteArray();
+		    off  = Data.length;
+		}
 	    }
 	}
 	catch (InterruptedIOException iioe)
 	{
-	    Data = HttpClientUtil.resizeArray(Data, off);
+	    if (off != Data.length)
+		Data = HttpClientUtil.resizeArray(Data, off);
 	    interrupted = true;
 	    throw iioe;
 	}
 	catch (IOException ioe)
 	{
-	    Data = HttpClientUtil.resizeArray(Data, off);
+	    if (off != Data.length)
+		Data = HttpClientUtil.resizeArray(Data, off);
 	    throw ioe;
 	}
 	finally
@@ -0,0 +1,31 @@
+package HTTPClient;
+
+/**
+ * A listener which is notified when a request submitted via one of the
+ * background request methods of HTTPConnection (e.g.
+ * <code>GetInBackground()</code>) has completed. The methods are invoked by
+ * the background thread which executed the request, after the response
+ * headers have been received. A RuntimeException thrown by a listener is handed to that
+ * thread's uncaught exception handler; it doesn't change the outcome of the
+ * request.
+ *
+ * @see HTTPConnection#GetInBackground(String, String, NVPair[], HTTPResponseListener)
+ */
+public interface HTTPResponseListener
+	{
+		/**
+		 * Invoked when the response headers have been received.
+		 *
+		 * @param response
+		 *          the response
+		 */
+		void requestCompleted(HTTPResponse response);
+
+		/**
+		 * Invoked when the request failed.
+		 *
+		 * @param exception
+		 *          the IOException or ModuleException which caused the failure
+		 */
+		void requestFailed(Exception exception);
+	}
@@ -0,0 +1,371 @@
+package HTTPClient;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Hashtable;
+
+/**
+ * A running message digest. Instances are got from {@link #getInstance},
+ * which uses the JCA's {@link MessageDigest} (whose MD5 and SHA
+ * implementations are compiled to intrinsics by current JVMs) and falls back
+ * to the package's own {@link MD5} and {@link MD4} classes for algorithms
+ * which no installed provider implements, e.g. MD4.
+ *
+ * <P>The JCA provider may be chosen with the property
+ * <var>HTTPClient.digest.provider</var>, which must contain the name of an
+ * installed provider; by default the first provider implementing the
+ * algorithm is used. Setting the property to "builtin" uses the package's
+ * own classes for MD5 and MD4.
+ *
+ * <P>A hash may be copied with {@link #copy()}, so that data common to
+ * several hashes (such as "HA1:nonce:" in Digest authentication) is only
+ * hashed once. Not all JCA providers support this, in which case the
+ * common data must be hashed again.
+ *
+ * <P>Instances are not thread-safe.
+ */
+abstract class Hash implements GlobalConstants
+	{
+		/** the provider, null for the default, "builtin" for MD5/MD4 */
+		private static String Provider = null;
+
+		/** a fresh MessageDigest per algorithm, cloned for new instances */
+		private static final Hashtable Prototypes = new Hashtable();
+
+		private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+		static
+			{
+				try
+					{
+						Provider = System.getProperty("HTTPClient.digest.provider");
+						if (Provider != null && Provider.trim().length() == 0)
+							{
+								Provider = null;
+							}
+						if (DebugAuth && Provider != null)
+							{
+								HttpClientUtil.logLine("Auth:  using digest provider " + Provider);
+							}
+					}
+				catch (Exception e)
+					{
+					}
+			}
+
+		/**
+		 * Starts a new hash with the given algorithm.
+		 *
+		 * @param algorithm
+		 *          the standard name of the algorithm, e.g. "MD5" or "SHA-256"
+		 * @return the hash
+		 * @exception NoSuchAlgorithmException
+		 *              if neither the JCA nor this package implement the
+		 *              algorithm
+		 */
+		static Hash getInstance(String algorithm) throws NoSuchAlgorithmException
+			{
+				if (!"builtin".equalsIgnoreCase(Provider))
+					{
+						MessageDigest md = newDigest(algorithm);
+						if (md != null)
+							{
+								return new JcaHash(md);
+							}
+					}
+
+				if (algorithm.equalsIgnoreCase("MD5"))
+					{
+						return new BuiltinMD5(new MD5());
+					}
+				if (algorithm.equalsIgnoreCase("MD4"))
+					{
+						return new BuiltinMD4(new MD4());
+					}
+				throw new NoSuchAlgorithmException(algorithm);
+			}
+
+		/**
+		 * @return a new MessageDigest for the given algorithm, or null if
+		 *         no (or not the selected) provider implements it
+		 */
+		private static MessageDigest newDigest(String algorithm)
+			{
+				String key = algorithm.toUpperCase();
+				Object proto = Prototypes.get(key);
+				if (proto == null)
+					{
+						try
+							{
+								proto = (Provider == null) ? MessageDigest.getInstance(algorithm) : MessageDigest.getInstance(
+										algorithm, Provider);
+							}
+						catch (Exception e)
+							{
+								// NoSuchAlgorithmException or NoSuchProviderException
+								proto = Boolean.FALSE;
+							}
+						Prototypes.put(key, proto);
+					}
+
+				if (proto == Boolean.FALSE)
+					{
+						return null;
+					}
+
+				MessageDigest md = (MessageDigest) proto;
+				try
+					{
+						return (MessageDigest) md.clone();
+					}
+				catch (CloneNotSupportedException cnse)
+					{
+						try
+							{
+								return MessageDigest.getInstance(algorithm, md.getProvider());
+							}
+						catch (NoSuchAlgorithmException nsae)
+							{
+								return null;
+							}
+					}
+			}
+
+		/**
+		 * @return a new MD5 hash
+		 */
+		static Hash md5()
+			{
+				try
+					{
+						return getInstance("MD5");
+					}
+				catch (NoSuchAlgorithmException nsae)
+					{
+						throw new Error("HTTPClient Internal Error: no MD5 - " + nsae);
+					}
+			}
+
+		/**
+		 * @return a new MD4 hash
+		 */
+		static Hash md4()
+			{
+				try
+					{
+						return getInstance("MD4");
+					}
+				catch (NoSuchAlgorithmException nsae)
+					{
+						throw new Error("HTTPClient Internal Error: no MD4 - " + nsae);
+					}
+			}
+
+		/**
+		 * Hashes the given string with MD5. The string is converted to bytes
+		 * with the platform's default encoding, as the MD5 class always did.
+		 *
+		 * @param str
+		 *          the string
+		 * @return the hash as lowercase hex
+		 */
+		static String md5Hex(String str)
+			{
+				return toHex(md5Digest(str));
+			}
+
+		/**
+		 * Hashes the given string with MD5, like {@link #md5Hex(String)}.
+		 *
+		 * @param str
+		 *          the string
+		 * @return the hash
+		 */
+		static byte[] md5Digest(String str)
+			{
+				Hash hash = md5();
+				hash.update(str);
+				return hash.digest();
+			}
+
+		/**
+		 * @return the name of the algorithm
+		 */
+		abstract String getAlgorithm();
+
+		/**
+		 * Adds the given bytes to the hash.
+		 */
+		abstract void update(byte[] buf, int off, int len);
+
+		/**
+		 * Adds the given bytes to the hash.
+		 */
+		final void update(byte[] buf)
+			{
+				update(buf, 0, buf.length);
+			}
+
+		/**
+		 * Adds the given string to the hash, converted to bytes with the
+		 * platform's default encoding.
+		 */
+		final void update(String str)
+			{
+				update(str.getBytes());
+			}
+
+		/**
+		 * Adds the given string to the hash, converted to bytes with the
+		 * given encoding.
+		 */
+		final void update(String str, String enc) throws UnsupportedEncodingException
+			{
+				update(str.getBytes(enc));
+			}
+
+		/**
+		 * Ends the hash calculation. The hash must not be used afterwards;
+		 * {@link #copy()} it first to continue.
+		 *
+		 * @return the hash
+		 */
+		abstract byte[] digest();
+
+		/**
+		 * Ends the hash calculation.
+		 *
+		 * @return the hash as lowercase hex
+		 */
+		final String digestHex()
+			{
+				return toHex(digest());
+			}
+
+		/**
+		 * @return an independent hash with the same state, or null if the
+		 *         provider's digest can't be copied
+		 */
+		abstract Hash copy();
+
+		/**
+		 * @return the given bytes as lowercase hex
+		 */
+		static String toHex(byte[] buf)
+			{
+				char[] hex = new char[buf.length * 2];
+				for (int idx = 0; idx < buf.length; idx++)
+					{
+						hex[2 * idx] = HEX[(buf[idx] >> 4) & 0xF];
+						hex[2 * idx + 1] = HEX[buf[idx] & 0xF];
+					}
+				return new String(hex);
+			}
+
+		/**
+		 * A hash computed by a JCA provider.
+		 */
+		private static final class JcaHash extends Hash
+			{
+				private final MessageDigest md;
+
+				JcaHash(MessageDigest md)
+					{
+						this.md = md;
+					}
+
+				String getAlgorithm()
+					{
+						return md.getAlgorithm();
+					}
+
+				void update(byte[] buf, int off, int len)
+					{
+						md.update(buf, off, len);
+					}
+
+				byte[] digest()
+					{
+						return md.digest();
+					}
+
+				Hash copy()
+					{
+						try
+							{
+								return new JcaHash((MessageDigest) md.clone());
+							}
+						catch (CloneNotSupportedException cnse)
+							{
+								return null;
+							}
+					}
+			}
+
+		/**
+		 * The package's own MD5.
+		 */
+		private static final class BuiltinMD5 extends Hash
+			{
+				private final MD5 md5;
+
+				BuiltinMD5(MD5 md5)
+					{
+						this.md5 = md5;
+					}
+
+				String getAlgorithm()
+					{
+						return "MD5";
+					}
+
+				void update(byte[] buf, int off, int len)
+					{
+						md5.Update(buf, off, len);
+					}
+
+				byte[] digest()
+					{
+						return md5.Final();
+					}
+
+				Hash copy()
+					{
+						return new BuiltinMD5(new MD5(md5));
+					}
+			}
+
+		/**
+		 * The package's own MD4.
+		 */
+		private static final class BuiltinMD4 extends Hash
+			{
+				private final MD4 md4;
+
+				BuiltinMD4(MD4 md4)
+					{
+						this.md4 = md4;
+					}
+
+				String getAlgorithm()
+					{
+						return "MD4";
+					}
+
+				void update(byte[] buf, int off, int len)
+					{
+						md4.update(buf, off, len);
+					}
+
+				byte[] digest()
+					{
+						return md4.getHash();
+					}
+
+				Hash copy()
+					{
+						return new BuiltinMD4(new MD4(md4));
+					}
+			}
+	}
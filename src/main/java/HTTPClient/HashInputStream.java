@@ -0,0 +1,135 @@
+package HTTPClient;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Calculates running digests of the data read, like {@link MD5InputStream}
+ * but with any number of {@link Hash}es. The data is hashed in the reader's
+ * own buffer as it passes through, so it isn't copied or read twice. When
+ * the end of the stream is reached (or the stream is closed) each hash is
+ * handed to its {@link HashVerifier}.
+ */
+class HashInputStream extends FilterInputStream
+	{
+		/** the most bytes skipped at once, and so the size of the skip buffer */
+		private static final int SKIP_SIZE = 8192;
+
+		private final Hash[] hashes;
+
+		private final HashVerifier[] verifiers;
+
+		private final byte[] one = new byte[1];
+
+		private byte[] skip_buf = null;
+
+		private long rcvd = 0;
+
+		private boolean closed = false;
+
+		/**
+		 * @param is
+		 *          the input stream whose data is to be hashed
+		 * @param hashes
+		 *          the hashes to update
+		 * @param verifiers
+		 *          the verifier for each hash, invoked when the stream has been
+		 *          read or closed
+		 */
+		HashInputStream(InputStream is, Hash[] hashes, HashVerifier[] verifiers)
+			{
+				super(is);
+				this.hashes = hashes;
+				this.verifiers = verifiers;
+			}
+
+		public synchronized int read() throws IOException
+			{
+				int b = in.read();
+				if (b == -1)
+					{
+						real_close();
+						return -1;
+					}
+
+				one[0] = (byte) b;
+				update(one, 0, 1);
+				return b;
+			}
+
+		public synchronized int read(byte[] buf, int off, int len) throws IOException
+			{
+				int num = in.read(buf, off, len);
+				if (num > 0)
+					{
+						update(buf, off, num);
+					}
+				else if (num == -1)
+					{
+						real_close();
+					}
+				return num;
+			}
+
+		private void update(byte[] buf, int off, int len)
+			{
+				for (int idx = 0; idx < hashes.length; idx++)
+					{
+						hashes[idx].update(buf, off, len);
+					}
+				rcvd += len;
+			}
+
+		public synchronized long skip(long num) throws IOException
+			{
+				if (num <= 0)
+					{
+						return 0L;
+					}
+				if (skip_buf == null)
+					{
+						skip_buf = new byte[SKIP_SIZE];
+					}
+
+				int got = read(skip_buf, 0, (int) Math.min(num, skip_buf.length));
+				return (got > 0) ? got : 0L;
+			}
+
+		public boolean markSupported()
+			{
+				return false;
+			}
+
+		/**
+		 * Close the stream and check the digests. If the stream has not been
+		 * fully read then the rest of the data will first be read (and
+		 * discarded) to complete the digest calculation.
+		 *
+		 * @exception IOException
+		 *              if the close()'ing the underlying stream throws an
+		 *              IOException, or if a verifier fails
+		 */
+		public synchronized void close() throws IOException
+			{
+				while (skip(SKIP_SIZE) > 0)
+					{
+					}
+				real_close();
+			}
+
+		private void real_close() throws IOException
+			{
+				if (closed)
+					{
+						return;
+					}
+				closed = true;
+
+				in.close();
+				for (int idx = 0; idx < hashes.length; idx++)
+					{
+						verifiers[idx].verifyHash(hashes[idx].digest(), rcvd);
+					}
+			}
+	}
@@ -0,0 +1,262 @@
+package HTTPClient;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A timer based on a hashed timing wheel. The wheel is an array of buckets,
+ * each covering one tick; a timeout is put into the bucket of its deadline
+ * together with the number of full wheel rotations remaining, so that
+ * scheduling and cancelling are O(1) independent of the number of pending
+ * timeouts. A single worker thread advances the wheel once per tick and
+ * runs the expired tasks.
+ *
+ * <P>New timeouts are handed to the worker via a lock-free queue, and
+ * cancelling only flips the timeout's state; the worker drops cancelled
+ * timeouts when it next visits their bucket. Hence callers never contend on
+ * a lock. The precision is that of the tick duration, 10 ms by default.
+ * Times are measured with <code>System.nanoTime()</code>, so changes to the
+ * wall clock don't affect the timeouts.
+ *
+ * @see HTTPClientTimer
+ */
+public class HashedWheelTimer implements HTTPClientTimer, GlobalConstants
+	{
+		private static final int ST_PENDING = 0, ST_CANCELLED = 1, ST_EXPIRED = 2;
+
+		/** the duration of a tick in nanoseconds */
+		private final long tick_duration;
+
+		private final Bucket[] wheel;
+
+		private final int mask;
+
+		/** timeouts not yet put in the wheel */
+		private final ConcurrentLinkedQueue new_timeouts = new ConcurrentLinkedQueue();
+
+		/**
+		 * the time the worker started, as in System.nanoTime(); deadlines are
+		 * in nanoseconds relative to this
+		 */
+		private final long start_time;
+
+		/**
+		 * Creates a timer with a tick duration of 10 ms and 512 buckets.
+		 */
+		public HashedWheelTimer()
+			{
+				this(10L, 512);
+			}
+
+		/**
+		 * Creates a new timer and starts its worker thread.
+		 *
+		 * @param tickDuration
+		 *          the duration of a tick in milliseconds
+		 * @param wheelSize
+		 *          the number of buckets; rounded up to a power of two
+		 */
+		public HashedWheelTimer(long tickDuration, int wheelSize)
+			{
+				if (tickDuration <= 0 || wheelSize <= 0)
+					{
+						throw new IllegalArgumentException("Invalid tick duration or wheel size: " + tickDuration + "/"
+								+ wheelSize);
+					}
+
+				int size = 1;
+				while (size < wheelSize)
+					{
+						size <<= 1;
+					}
+
+				tick_duration = tickDuration * 1000000L;
+				wheel = new Bucket[size];
+				for (int idx = 0; idx < size; idx++)
+					{
+						wheel[idx] = new Bucket();
+					}
+				mask = size - 1;
+				start_time = System.nanoTime();
+
+				Thread worker = new Thread(new Worker(), "HashedWheelTimer");
+				try
+					{
+						worker.setDaemon(true);
+					}
+				catch (SecurityException se)
+					{
+					} // Oh well...
+				worker.start();
+			}
+
+		public HTTPClientTimer.Timeout schedule(Runnable task, long delay)
+			{
+				// capped so the deadline in nanoseconds can't overflow
+				delay = Math.min(Math.max(delay, 0L), Long.MAX_VALUE / 4000000L);
+				WheelTimeout timeout = new WheelTimeout(task, System.nanoTime() - start_time + delay * 1000000L);
+				new_timeouts.add(timeout);
+				return timeout;
+			}
+
+		/**
+		 * The worker thread: advances the wheel every tick.
+		 */
+		private final class Worker implements Runnable
+			{
+				private long tick = 0;
+
+				public void run()
+					{
+						while (true)
+							{
+								long deadline = (tick + 1) * tick_duration;
+								long now;
+								while ((now = System.nanoTime() - start_time) < deadline)
+									{
+										try
+											{
+												Thread.sleep((deadline - now + 999999L) / 1000000L);
+											}
+										catch (InterruptedException ie)
+											{
+											}
+									}
+
+								transferNewTimeouts();
+								wheel[(int) (tick & mask)].expire(now);
+								tick++;
+							}
+					}
+
+				/** puts the new timeouts into their buckets */
+				private void transferNewTimeouts()
+					{
+						WheelTimeout timeout;
+						while ((timeout = (WheelTimeout) new_timeouts.poll()) != null)
+							{
+								if (timeout.state.get() == ST_CANCELLED)
+									{
+										continue;
+									}
+
+								long ticks = timeout.deadline / tick_duration;
+								if (ticks < tick)
+									{
+										ticks = tick; // already due: run in this tick
+									}
+								timeout.rounds = (ticks - tick) / wheel.length;
+								wheel[(int) (ticks & mask)].add(timeout);
+							}
+					}
+			}
+
+		/**
+		 * A bucket of the wheel; a doubly linked list of timeouts. Only ever
+		 * accessed by the worker thread.
+		 */
+		private static final class Bucket
+			{
+				private WheelTimeout head = null;
+
+				void add(WheelTimeout timeout)
+					{
+						timeout.next = head;
+						timeout.prev = null;
+						if (head != null)
+							{
+								head.prev = timeout;
+							}
+						head = timeout;
+					}
+
+				void remove(WheelTimeout timeout)
+					{
+						if (timeout.prev != null)
+							{
+								timeout.prev.next = timeout.next;
+							}
+						else
+							{
+								head = timeout.next;
+							}
+						if (timeout.next != null)
+							{
+								timeout.next.prev = timeout.prev;
+							}
+						timeout.next = timeout.prev = null;
+					}
+
+				void expire(long now)
+					{
+						WheelTimeout timeout = head;
+						while (timeout != null)
+							{
+								WheelTimeout next = timeout.next;
+
+								if (timeout.state.get() == ST_CANCELLED)
+									{
+										remove(timeout);
+									}
+								else if (timeout.rounds <= 0)
+									{
+										remove(timeout);
+										timeout.expire();
+									}
+								else
+									{
+										timeout.rounds--;
+									}
+
+								timeout = next;
+							}
+					}
+			}
+
+		private static final class WheelTimeout implements HTTPClientTimer.Timeout
+			{
+				final Runnable task;
+
+				/** in nanoseconds since the timer's start_time */
+				final long deadline;
+
+				final AtomicInteger state = new AtomicInteger(ST_PENDING);
+
+				/** remaining wheel rotations; only accessed by the worker */
+				long rounds;
+
+				WheelTimeout next, prev;
+
+				WheelTimeout(Runnable task, long deadline)
+					{
+						this.task = task;
+						this.deadline = deadline;
+					}
+
+				public boolean cancel()
+					{
+						return state.compareAndSet(ST_PENDING, ST_CANCELLED);
+					}
+
+				void expire()
+					{
+						if (!state.compareAndSet(ST_PENDING, ST_EXPIRED))
+							{
+								return;
+							}
+
+						try
+							{
+								task.run();
+							}
+						catch (Throwable t)
+							{
+								if (DebugDemux)
+									{
+										HttpClientUtil.logLine("Timer: task " + task + " failed: ");
+										HttpClientUtil.logStackTrace(t);
+									}
+							}
+					}
+			}
+	}
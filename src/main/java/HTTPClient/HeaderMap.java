@@ -0,0 +1,359 @@
+package HTTPClient;
+
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+
+/**
+ * A map from header names to header values with case-insensitive lookup of
+ * the names, used for the headers and trailers of responses. It replaces
+ * CIHashtable there: it is not synchronized, and lookups don't create any
+ * objects. The entries are kept in a single open-addressing table (linear
+ * probing) together with the precomputed case-folded hash of each name.
+ *
+ * <P>The names are kept with their original case. Values may be Strings or
+ * {@link HeaderParser.Value}s; the latter are turned into Strings when first
+ * retrieved via {@link #get(String)}.
+ *
+ * <P>This class is not thread-safe. A response's headers are filled in by
+ * the thread reading the response and the modules, before the response is
+ * handed to the application.
+ */
+final class HeaderMap implements Cloneable
+	{
+		/** the names; null marks an empty slot */
+		private String[] names;
+
+		/** the case-folded hashes of the names */
+		private int[] hashes;
+
+		/** the values */
+		private Object[] values;
+
+		/** the number of entries */
+		private int size = 0;
+
+		/**
+		 * Creates a new empty map.
+		 */
+		HeaderMap()
+			{
+				this(32);
+			}
+
+		/**
+		 * Creates a new empty map.
+		 *
+		 * @param capacity
+		 *          the initial capacity; rounded up to a power of 2
+		 */
+		HeaderMap(int capacity)
+			{
+				int cap = 4;
+				while (cap < capacity)
+					{
+						cap <<= 1;
+					}
+
+				names = new String[cap];
+				hashes = new int[cap];
+				values = new Object[cap];
+			}
+
+		/**
+		 * Calculates the hash code of a name in a way that's consistent with
+		 * <code>String.equalsIgnoreCase()</code>.
+		 */
+		static int hash(String name)
+			{
+				int h = 0, len = name.length();
+				for (int idx = 0; idx < len; idx++)
+					{
+						char c = name.charAt(idx);
+						if (c < 128)
+							{
+								if (c >= 'A' && c <= 'Z')
+									{
+										c += 'a' - 'A';
+									}
+							}
+						else
+							{
+								c = Character.toLowerCase(Character.toUpperCase(c));
+							}
+						h = 31 * h + c;
+					}
+
+				return h ^ (h >>> 16);
+			}
+
+		/**
+		 * @return the slot containing the given name, or the empty slot where
+		 *         it would go
+		 */
+		private int find(String name, int h)
+			{
+				int mask = names.length - 1;
+				int idx = h & mask;
+				while (names[idx] != null)
+					{
+						if (hashes[idx] == h && (names[idx] == name || names[idx].equalsIgnoreCase(name)))
+							{
+								return idx;
+							}
+						idx = (idx + 1) & mask;
+					}
+				return idx;
+			}
+
+		/**
+		 * Retrieves the value for the given name. The lookup is
+		 * case-insensitive.
+		 *
+		 * @param name
+		 *          the header name
+		 * @return the value, or null if none found
+		 */
+		String get(String name)
+			{
+				int idx = find(name, hash(name));
+				Object val = values[idx];
+				if (val == null)
+					{
+						return null;
+					}
+				if (val instanceof String)
+					{
+						return (String) val;
+					}
+
+				String str = val.toString();
+				values[idx] = str;
+				return str;
+			}
+
+		/**
+		 * Looks whether there is a value for the given name. The lookup is
+		 * case-insensitive.
+		 *
+		 * @param name
+		 *          the header name
+		 * @return true if there is a value for the name
+		 */
+		boolean containsKey(String name)
+			{
+				return names[find(name, hash(name))] != null;
+			}
+
+		/**
+		 * Stores the value for the given name. If there already is a value for
+		 * the name it is replaced, but the name keeps its original case.
+		 *
+		 * @param name
+		 *          the header name
+		 * @param value
+		 *          the value; a String or a HeaderParser.Value
+		 * @return the previous value, or null
+		 */
+		Object put(String name, Object value)
+			{
+				if (value == null)
+					{
+						throw new NullPointerException("value");
+					}
+
+				int h = hash(name);
+				int idx = find(name, h);
+				if (names[idx] != null)
+					{
+						Object old = values[idx];
+						values[idx] = value;
+						return old;
+					}
+
+				if ((size + 1) * 3 > names.length * 2)
+					{
+						rehash(names.length * 2);
+						idx = find(name, h);
+					}
+
+				names[idx] = name;
+				hashes[idx] = h;
+				values[idx] = value;
+				size++;
+				return null;
+			}
+
+		/**
+		 * Removes the value for the given name. The lookup is case-insensitive.
+		 *
+		 * @param name
+		 *          the header name
+		 * @return the removed value, or null if there was none
+		 */
+		Object remove(String name)
+			{
+				int idx = find(name, hash(name));
+				if (names[idx] == null)
+					{
+						return null;
+					}
+
+				Object old = values[idx];
+				size--;
+
+				// shift back any following entries which would not be found anymore
+				int mask = names.length - 1;
+				int gap = idx;
+				idx = (idx + 1) & mask;
+				while (names[idx] != null)
+					{
+						int home = hashes[idx] & mask;
+						if (((idx - home) & mask) >= ((idx - gap) & mask))
+							{
+								names[gap] = names[idx];
+								hashes[gap] = hashes[idx];
+								values[gap] = values[idx];
+								gap = idx;
+							}
+						idx = (idx + 1) & mask;
+					}
+				names[gap] = null;
+				values[gap] = null;
+
+				return old;
+			}
+
+		private void rehash(int cap)
+			{
+				String[] old_names = names;
+				int[] old_hashes = hashes;
+				Object[] old_values = values;
+
+				names = new String[cap];
+				hashes = new int[cap];
+				values = new Object[cap];
+
+				int mask = cap - 1;
+				for (int src = 0; src < old_names.length; src++)
+					{
+						if (old_names[src] != null)
+							{
+								int idx = old_hashes[src] & mask;
+								while (names[idx] != null)
+									{
+										idx = (idx + 1) & mask;
+									}
+								names[idx] = old_names[src];
+								hashes[idx] = old_hashes[src];
+								values[idx] = old_values[src];
+							}
+					}
+			}
+
+		/**
+		 * Removes all entries.
+		 */
+		void clear()
+			{
+				if (size == 0)
+					{
+						return;
+					}
+
+				for (int idx = 0; idx < names.length; idx++)
+					{
+						names[idx] = null;
+						values[idx] = null;
+					}
+				size = 0;
+			}
+
+		/**
+		 * @return the number of entries
+		 */
+		int size()
+			{
+				return size;
+			}
+
+		/**
+		 * Returns the names of all entries, with their original case. The
+		 * enumeration works on a snapshot of the names, so the map may be
+		 * modified while enumerating.
+		 *
+		 * @return an Enumeration of Strings
+		 */
+		Enumeration keys()
+			{
+				final String[] list = new String[size];
+				int cnt = 0;
+				for (int idx = 0; idx < names.length; idx++)
+					{
+						if (names[idx] != null)
+							{
+								list[cnt++] = names[idx];
+							}
+					}
+
+				return new Enumeration()
+					{
+						private int pos = 0;
+
+						public boolean hasMoreElements()
+							{
+								return pos < list.length;
+							}
+
+						public Object nextElement()
+							{
+								if (pos >= list.length)
+									{
+										throw new NoSuchElementException();
+									}
+								return list[pos++];
+							}
+					};
+			}
+
+		/**
+		 * @return a copy of this map
+		 */
+		public Object clone()
+			{
+				HeaderMap cl;
+				try
+					{
+						cl = (HeaderMap) super.clone();
+					}
+				catch (CloneNotSupportedException cnse)
+					{
+						throw new InternalError(cnse.toString()); /* shouldn't happen */
+					}
+
+				cl.names = (String[]) names.clone();
+				cl.hashes = (int[]) hashes.clone();
+				cl.values = (Object[]) values.clone();
+
+				return cl;
+			}
+
+		/**
+		 * @return the entries as "{name=value, ...}"
+		 */
+		public String toString()
+			{
+				StringBuffer buf = new StringBuffer("{");
+				for (int idx = 0; idx < names.length; idx++)
+					{
+						if (names[idx] != null)
+							{
+								if (buf.length() > 1)
+									{
+										buf.append(", ");
+									}
+								buf.append(names[idx]).append('=').append(values[idx]);
+							}
+					}
+				return buf.append('}').toString();
+			}
+	}
@@ -0,0 +1,300 @@
+package HTTPClient;
+
+/**
+ * Parses response header and trailer blocks directly from the received
+ * bytes. Instead of widening the block to chars and building a String for
+ * every field, only the offsets of each value are recorded; the value
+ * String is created when it's first asked for. Header names which are
+ * commonly received are mapped to shared String constants.
+ *
+ * <P>The bytes are interpreted as ISO-8859-1, as before.
+ *
+ * @see Response
+ */
+final class HeaderParser
+	{
+		/** the well-known header names, indexed by their length */
+		private static final String[][] KnownNames;
+
+		static
+			{
+				String[] names = { "Accept-Ranges", "Age", "Allow", "Authentication-Info", "Cache-Control", "Connection",
+						"Content-Disposition", "Content-Encoding", "Content-Language", "Content-Length", "Content-Location",
+						"Content-MD5", "Content-Range", "Content-Type", "Date", "ETag", "Expires", "Keep-Alive", "Last-Modified",
+						"Link", "Location", "Pragma", "Proxy-Authenticate", "Proxy-Authentication-Info", "Proxy-Connection",
+						"Retry-After", "Server", "Set-Cookie", "Set-Cookie2", "Trailer", "Transfer-Encoding", "Upgrade", "Vary",
+						"Via", "WWW-Authenticate", "Warning", "X-Powered-By" };
+
+				int max = 0;
+				for (int idx = 0; idx < names.length; idx++)
+					{
+						max = Math.max(max, names[idx].length());
+					}
+
+				KnownNames = new String[max + 1][];
+				for (int idx = 0; idx < names.length; idx++)
+					{
+						int len = names[idx].length();
+						String[] list = KnownNames[len];
+						if (list == null)
+							{
+								list = new String[] { names[idx] };
+							}
+						else
+							{
+								list = HttpClientUtil.resizeArray(list, list.length + 1);
+								list[list.length - 1] = names[idx];
+							}
+						KnownNames[len] = list;
+					}
+			}
+
+		private HeaderParser()
+			{
+			}
+
+		/**
+		 * A header value which has not been turned into a String yet. It keeps
+		 * a reference to the received header block.
+		 */
+		static final class Value
+			{
+				private final byte[] block;
+
+				private final int beg;
+
+				private final int end;
+
+				private String str = null;
+
+				Value(byte[] block, int beg, int end)
+					{
+						this.block = block;
+						this.beg = beg;
+						this.end = end;
+					}
+
+				/**
+				 * @return the value as a String
+				 */
+				public String toString()
+					{
+						String s = str;
+						if (s == null)
+							{
+								str = s = string(block, beg, end);
+							}
+						return s;
+					}
+			}
+
+		/**
+		 * Creates a String from the given bytes, interpreting them as
+		 * ISO-8859-1.
+		 */
+		static String string(byte[] buf, int beg, int end)
+			{
+				char[] chars = new char[end - beg];
+				for (int idx = 0; idx < chars.length; idx++)
+					{
+						chars[idx] = (char) (buf[beg + idx] & 0xFF);
+					}
+				return new String(chars);
+			}
+
+		/**
+		 * Returns the header name for the given bytes. For well-known names this
+		 * is a shared String constant; otherwise a new String is created.
+		 *
+		 * @param buf
+		 *          the buffer holding the name
+		 * @param beg
+		 *          the start of the name
+		 * @param end
+		 *          the end of the name
+		 * @return the name
+		 */
+		static String name(byte[] buf, int beg, int end)
+			{
+				int len = end - beg;
+				if (len < KnownNames.length && KnownNames[len] != null)
+					{
+						String[] list = KnownNames[len];
+						for (int idx = 0; idx < list.length; idx++)
+							{
+								if (equalsIgnoreCase(buf, beg, list[idx]))
+									{
+										return list[idx];
+									}
+							}
+					}
+
+				return string(buf, beg, end);
+			}
+
+		/**
+		 * Compares the bytes starting at <var>beg</var> to the given name, which
+		 * consists only of letters, digits and '-', ignoring case.
+		 */
+		private static boolean equalsIgnoreCase(byte[] buf, int beg, String name)
+			{
+				for (int idx = 0; idx < name.length(); idx++)
+					{
+						int c = name.charAt(idx), b = buf[beg + idx] & 0xFF;
+						if (b != c && !(((c | 0x20) >= 'a' && (c | 0x20) <= 'z') && (b ^ 0x20) == c))
+							{
+								return false;
+							}
+					}
+				return true;
+			}
+
+		/**
+		 * Same as <code>Character.isWhitespace()</code> for ISO-8859-1 chars.
+		 */
+		static boolean isWhitespace(byte b)
+			{
+				return b == ' ' || (b >= '\t' && b <= '\r') || (b >= '\u001C' && b <= '\u001F');
+			}
+
+		/**
+		 * @return the position of the first non-whitespace byte at or after
+		 *         <var>pos</var>, or <var>len</var>
+		 */
+		static int skipSpace(byte[] buf, int pos, int len)
+			{
+				while (pos < len && isWhitespace(buf[pos]))
+					{
+						pos++;
+					}
+				return pos;
+			}
+
+		/**
+		 * @return the position of the first whitespace byte at or after
+		 *         <var>pos</var>, or <var>len</var>
+		 */
+		static int findSpace(byte[] buf, int pos, int len)
+			{
+				while (pos < len && !isWhitespace(buf[pos]))
+					{
+						pos++;
+					}
+				return pos;
+			}
+
+		/**
+		 * Parses the given header block as fields of the form "<name>: <value>"
+		 * into the given list. Continuation lines are honored. Multiple headers
+		 * with the same name are stored as one header with the values joined by
+		 * a ","; for Content-Length the last one wins. The values are stored as
+		 * {@link Value}s where possible.
+		 *
+		 * @param hdrs
+		 *          the header or trailer block; it must not be modified
+		 *          afterwards
+		 * @param beg
+		 *          the position in hdrs where parsing is to begin
+		 * @param list
+		 *          the map to store the parsed fields in
+		 * @return the Content-Length value, or null if there was none
+		 */
+		static Object parseFields(byte[] hdrs, int beg, HeaderMap list)
+			{
+				int end = beg, len = hdrs.length;
+				Object cont_len = null;
+
+				while (end < len)
+					{
+						// get name
+
+						while (end < len && !isWhitespace(hdrs[end]) && hdrs[end] != ':')
+							{
+								end++;
+							}
+						String hdr_name = name(hdrs, beg, end);
+
+						// skip spaces
+
+						end = skipSpace(hdrs, end, len);
+
+						// skip ':' (broken servers may omit it)
+
+						if (end < len && hdrs[end] == ':' && hdrs[end - 1] != '\n')
+							{
+								beg = end + 1;
+							}
+						else
+							{
+								beg = end;
+							}
+
+						// find value
+
+						Object hdr_value = "";
+						if (hdrs[end - 1] != '\n')
+							{
+								beg = skipSpace(hdrs, beg, len);
+
+								end = beg;
+								while (end < len && hdrs[end] != '\n')
+									{
+										end++;
+									}
+								int vend = (hdrs[end - 1] == '\r') ? end - 1 : end;
+								end++;
+
+								if (end < len && (hdrs[end] == ' ' || hdrs[end] == '\t'))
+									{
+										// continuation lines; rare enough to do it the simple way
+										StringBuffer val = new StringBuffer(string(hdrs, beg, vend));
+										while (end < len && (hdrs[end] == ' ' || hdrs[end] == '\t'))
+											{
+												beg = end + 1;
+												while (beg < len && (hdrs[beg] == ' ' || hdrs[beg] == '\t'))
+													{
+														beg++;
+													}
+												end = beg;
+												while (end < len && hdrs[end] != '\n')
+													{
+														end++;
+													}
+												val.append(' ');
+												val.append(string(hdrs, beg, (hdrs[end - 1] == '\r') ? end - 1 : end));
+												end++;
+											}
+										hdr_value = val.toString();
+									}
+								else if (vend > beg)
+									{
+										hdr_value = new Value(hdrs, beg, vend);
+									}
+
+								beg = end;
+							}
+
+						// add header to hashtable
+
+						if (hdr_name == "Content-Length" || hdr_name.equalsIgnoreCase("Content-Length"))
+							{
+								cont_len = hdr_value;
+								list.put(hdr_name, hdr_value);
+							}
+						else
+							{
+								String old_value = list.get(hdr_name);
+								if (old_value == null)
+									{
+										list.put(hdr_name, hdr_value);
+									}
+								else
+									{
+										list.put(hdr_name, old_value + ", " + hdr_value);
+									}
+							}
+					}
+
+				return cont_len;
+			}
+	}
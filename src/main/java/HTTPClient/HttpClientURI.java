@@ -847,6 +847,39 @@ public class HttpClientURI
     }
 
 
+    /**
+     * @return a hash code consistent with <code>equals()</code> for URIs
+     */
+    public int hashCode()
+    {
+	int hash = hashIgnoreCase(scheme);
+	if (!is_generic)
+	    return (opaque != null) ? 31*hash + opaque.hashCode() : hash;
+
+	if (host != null)
+	    hash = 31*hash + hashIgnoreCase(host);
+	hash = 31*hash + port;
+	if (path != null)
+	    hash = 31*hash + unescapeNoPE(path).hashCode();
+
+	return hash;
+    }
+
+
+    /**
+     * A hash of the string which is the same for strings which are
+     * equalsIgnoreCase().
+     */
+    private static final int hashIgnoreCase(String str)
+    {
+	int hash = 0;
+	for (int idx=0; idx<str.length(); idx++)
+	    hash = 31*hash +
+		   Character.toLowerCase(Character.toUpperCase(str.charAt(idx)));
+	return hash;
+    }
+
+
     /**
      * Escape any character not in the given character class.
      *
@@ -35,10 +35,10 @@ import java.util.Date;
 import java.util.BitSet;
 import java.util.Vector;
 import java.util.Hashtable;
-import java.util.SimpleTimeZone;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.StringTokenizer;
-import java.text.SimpleDateFormat;
-import java.util.Locale;
 
 
 /**
@@ -54,7 +54,16 @@ public class HttpClientUtil
     private static final BitSet Separators;
     private static final BitSet TokenChar;
     private static final BitSet UnsafeChar;
-    private static SimpleDateFormat http_format;
+
+    /** parsed header values, dequoted and raw: String -> ParsedHeader */
+    private static final ConcurrentHashMap ParsedHeaders    = new ConcurrentHashMap(),
+					   ParsedHeadersRaw = new ConcurrentHashMap();
+
+    /** the maximum number of header values cached (each, dequoted and raw) */
+    private static final int MaxParsedHeaders = 1024;
+
+    /** longer header values are not cached */
+    private static final int MaxParsedHeaderLength = 64;
 
     static
     {
@@ -103,15 +112,6 @@ public class HttpClientUtil
 	UnsafeChar.set(']');
 	UnsafeChar.set('`');
 	UnsafeChar.set(127);
-
-	// rfc-1123 date format (restricted to GMT, as per rfc-2068)
-	/* This initialization has been moved to httpDate() because it
-	 * takes an awfully long time and is often not needed
-	 *
-	http_format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'",
-					   Locale.US);
-	http_format.setTimeZone(new SimpleTimeZone(0, "GMT"));
-	*/
     }
 
 
@@ -499,6 +499,12 @@ public class HttpClientUtil
      * param will be stored as the empty string; if the "=" is also missing
      * <var>null</var> will be stored instead.
      *
+     * <P>The results for short values consisting of tokens only are
+     * cached, as the same values (such as "keep-alive" or "chunked") are
+     * parsed over and over again. The Vector returned is a new one each
+     * time and may be modified; the elements in it may be shared, which is
+     * safe as HttpHeaderElements are immutable.
+     *
      * @param header  the value part of the header.
      * @param dequote if true all quoted strings are dequoted.
      * @return a Vector containing all the elements; each entry is an
@@ -511,6 +517,111 @@ public class HttpClientUtil
     {
 	if (header == null)  return null;
 
+	ConcurrentHashMap cache = dequote ? ParsedHeaders : ParsedHeadersRaw;
+	ParsedHeader cached = (ParsedHeader) cache.get(header);
+	if (cached != null)
+	{
+	    cached.referenced = true;
+	    Vector elems = new Vector(Math.max(cached.elems.length, 1));
+	    for (int idx=0; idx<cached.elems.length; idx++)
+		elems.addElement(cached.elems[idx]);
+	    return elems;
+	}
+
+	Vector elems = parseHeaderElements(header, dequote);
+
+	if (isCacheable(header))
+	{
+	    if (cache.size() >= MaxParsedHeaders)	// make room
+		evictParsedHeader(cache);
+
+	    HttpHeaderElement[] parsed = new HttpHeaderElement[elems.size()];
+	    elems.copyInto(parsed);
+	    cache.put(header, new ParsedHeader(parsed));
+	}
+
+	return elems;
+    }
+
+
+    /**
+     * Only short values made up of tokens are cached: these are the ones
+     * which keep recurring, whereas values with quoted-strings (such as
+     * filenames or auth parameters) are mostly unique.
+     */
+    private static boolean isCacheable(String header)
+    {
+	int len = header.length();
+	if (len > MaxParsedHeaderLength)  return false;
+
+	for (int idx=0; idx<len; idx++)
+	{
+	    char ch = header.charAt(idx);
+	    if (ch >= 128  ||  !TokenChar.get(ch)  &&
+		ch != ' '  &&  ch != ','  &&  ch != ';'  &&  ch != '=')
+		return false;
+	}
+
+	return true;
+    }
+
+
+    /**
+     * Removes one value from the cache, giving a second chance to the ones
+     * which have been looked up since the eviction last came by. This keeps
+     * the frequently seen values from being pushed out by a stream of
+     * values which are seen only once.
+     */
+    private static void evictParsedHeader(ConcurrentHashMap cache)
+    {
+	synchronized (cache)
+	{
+	    if (cache.size() < MaxParsedHeaders)  return;	// someone else made room
+
+	    Object first = null;
+	    for (Iterator iter = cache.entrySet().iterator(); iter.hasNext(); )
+	    {
+		Map.Entry    entry  = (Map.Entry) iter.next();
+		ParsedHeader parsed = (ParsedHeader) entry.getValue();
+		if (first == null)
+		    first = entry.getKey();
+		if (!parsed.referenced)
+		{
+		    cache.remove(entry.getKey(), parsed);
+		    return;
+		}
+		parsed.referenced = false;
+	    }
+
+	    if (first != null)			// all were referenced
+		cache.remove(first);
+	}
+    }
+
+
+    /**
+     * A cached parseHeader() result.
+     */
+    private static final class ParsedHeader
+    {
+	final HttpHeaderElement[] elems;
+
+	/** looked up since the eviction last came by */
+	volatile boolean referenced = false;
+
+	ParsedHeader(HttpHeaderElement[] elems)
+	{
+	    this.elems = elems;
+	}
+    }
+
+
+    /**
+     * Does the actual parsing for parseHeader().
+     */
+    private static Vector parseHeaderElements(String header, boolean dequote)
+	    throws ParseException
+    {
 	Vector  elems  = new Vector();
 	boolean first  = true;
 	int     beg = -1, end = 0, len = header.length(), abeg[] = new int[1];
@@ -660,7 +771,7 @@ public class HttpClientUtil
 
 		end++;
 	    }
-	    if (end == len)
+	    if (end >= len)
 		throw new ParseException("Bad header format: '" + header +
 					 "'\nClosing <\"> for quoted-string"+
 					 " starting at position " +
@@ -728,7 +839,7 @@ public class HttpClientUtil
 
 		end++;
 	    }
-	    if (end == len)
+	    if (end >= len)
 		throw new ParseException("Bad header format: '" + header +
 					 "'\nClosing <\"> for quoted-string"+
 					 " starting at position " +
@@ -773,8 +884,145 @@ public class HttpClientUtil
     {
 	if (header == null)
 	    return false;
-	else
-	    return parseHeader(header).contains(new HttpHeaderElement(token));
+
+	/* Scan the header following the same rules as parseHeader(), but
+	 * without creating any objects. If the header turns out not to
+	 * conform then let parseHeader() produce the exception.
+	 */
+	boolean found = false, first = true;
+	int     beg = -1, end = 0, len = header.length(), tlen = token.length();
+	char    ch;
+
+	elements: while (true)
+	{
+	    if (!first)				// find required ","
+	    {
+		beg = skipSpace(header, end);
+		if (beg == len)  break;
+		if (header.charAt(beg) != ',')
+		    return slowHasToken(header, token);
+	    }
+	    first = false;
+
+	    beg = skipSpace(header, beg+1);
+	    if (beg == len)  break elements;
+	    if ((ch = header.charAt(beg)) == ',')	// skip empty elements
+	    {
+		end = beg;
+		continue elements;
+	    }
+
+	    if (ch == '='  ||  ch == ';'  ||  ch == '"')
+		return slowHasToken(header, token);
+
+	    end = skipName(header, beg);
+	    if (end-beg == tlen  &&  header.regionMatches(true, beg, token, 0, tlen))
+		found = true;
+
+	    beg = skipSpace(header, end);
+	    if (beg < len  &&  header.charAt(beg) == '=')  // element value
+	    {
+		if ((end = skipValue(header, beg+1)) == -1)
+		    return slowHasToken(header, token);
+	    }
+	    else
+		end = beg;
+
+	    params: while (true)
+	    {
+		beg = skipSpace(header, end);	// expect ";"
+		if (beg == len  ||  header.charAt(beg) != ';')
+		    break params;
+
+		beg = skipSpace(header, beg+1);
+		if (beg == len  ||  (ch = header.charAt(beg)) == ',')
+		{
+		    end = beg;
+		    break params;
+		}
+		if (ch == ';')	// skip empty parameters
+		{
+		    end = beg;
+		    continue params;
+		}
+
+		if (ch == '='  ||  ch == '"')
+		    return slowHasToken(header, token);
+
+		end = skipName(header, beg);
+
+		beg = skipSpace(header, end);
+		if (beg < len  &&  header.charAt(beg) == '=')	// param value
+		{
+		    if ((end = skipValue(header, beg+1)) == -1)
+			return slowHasToken(header, token);
+		}
+		else
+		    end = beg;
+	    }
+	}
+
+	return found;
+    }
+
+
+    /**
+     * hasToken() the slow way; used for headers which don't conform.
+     */
+    private static boolean slowHasToken(String header, String token)
+	    throws ParseException
+    {
+	return parseHeader(header).contains(new HttpHeaderElement(token));
+    }
+
+
+    /**
+     * @return the position after the element or parameter name starting at
+     *         <var>beg</var>
+     */
+    private static int skipName(String header, int beg)
+    {
+	int  end = beg+1, len = header.length();
+	char ch;
+	while (end < len  &&  !Character.isWhitespace(ch = header.charAt(end)) &&
+	       ch != '='  &&  ch != ','  &&  ch != ';')
+	    end++;
+	return end;
+    }
+
+
+    /**
+     * Skips a value as parsed by parseValue().
+     *
+     * @return the position after the value, or -1 if a quoted-string is
+     *         not closed
+     */
+    private static int skipValue(String header, int beg)
+    {
+	int  end, len = header.length();
+	char ch;
+
+	beg = skipSpace(header, beg);
+
+	if (beg < len  &&  header.charAt(beg) == '"')	// it's a quoted-string
+	{
+	    end = beg+1;
+	    while (end < len  &&  (ch = header.charAt(end)) != '"')
+	    {
+		if (ch == '\\')
+		    end++;		// skip quoted char
+		end++;
+	    }
+	    if (end >= len)
+		return -1;
+	    return end+1;
+	}
+
+	end = beg;				// it's a simple token value
+	while (end < len  &&  !Character.isWhitespace(ch = header.charAt(end)) &&
+	       ch != ','  &&  ch != ';')
+	    end++;
+	return end;
     }
 
 
@@ -1199,7 +1447,8 @@ public class HttpClientUtil
      * the HTTP/1.0 spec (RFC-1945), section 3.3, and the HTTP/1.1 spec
      * (RFC-2068), section 3.3.1. Note that Date.toGMTString() is close, but
      * is missing the weekday and supresses the leading zero if the day is
-     * less than the 10th. Instead we use the SimpleDateFormat class.
+     * less than the 10th. Instead we use our own formatter, which unlike
+     * SimpleDateFormat is thread-safe and caches the last formatted second.
      *
      * <P>Some versions of JDK 1.1.x are bugged in that their GMT uses
      * daylight savings time... Therefore we use our own timezone
@@ -1210,21 +1459,7 @@ public class HttpClientUtil
      */
     public final static String httpDate(Date date)
     {
-	if (http_format == null)
-	{
-	    synchronized(HTTPClient.HttpClientUtil.class)
-	    {
-		if (http_format == null)
-		{
-		    http_format =
-			new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'",
-					     Locale.US);
-		    http_format.setTimeZone(new SimpleTimeZone(0, "GMT"));
-		}
-	    }
-	}
-
-	return http_format.format(date);
+	return HttpDateFormat.format(date.getTime());
     }
 
 
@@ -1370,7 +1605,20 @@ public class HttpClientUtil
         System.arraycopy(tmp,0,to,toOffset,len);
    }
 
+    /**
+     * Parses an HTTP date in any of the formats allowed by RFC-2616 (rfc-1123,
+     * rfc-850 and asctime()). Anything else is handed to the default
+     * DateFormat.
+     *
+     * @param raw_date the date string
+     * @return the date
+     * @exception IllegalArgumentException if the string can't be parsed
+     */
     public static Date parseDate(String raw_date) throws IllegalArgumentException{
+        long time = HttpDateFormat.parse(raw_date);
+        if (time != HttpDateFormat.INVALID)
+            return new Date(time);
+
         try {
             return DateFormat.getDateTimeInstance().parse(raw_date);
         } catch (java.text.ParseException ex) {
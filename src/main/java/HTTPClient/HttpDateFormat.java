@@ -0,0 +1,451 @@
+package HTTPClient;
+
+/**
+ * Parses and formats the date formats used by HTTP. Dates are always
+ * formatted as RFC-1123 dates in GMT, e.g. "Sun, 06 Nov 1994 08:49:37 GMT".
+ * The parser accepts the three formats allowed by the HTTP spec (RFC-2616,
+ * section 3.3.1):
+ *
+ * <PRE>
+ * Sun, 06 Nov 1994 08:49:37 GMT    ; RFC 822, updated by RFC 1123
+ * Sunday, 06-Nov-94 08:49:37 GMT   ; RFC 850, obsoleted by RFC 1036
+ * Sun Nov  6 08:49:37 1994         ; ANSI C's asctime() format
+ * </PRE>
+ *
+ * as well as the usual variations found in the wild: a missing weekday, a
+ * four digit year in the RFC-850 format (as used by Netscape cookies), a
+ * trailing "GMT" after an asctime() date, and "UTC" or a numeric offset
+ * instead of "GMT". Two digit years from 70 on are taken as 19xx, the others
+ * as 20xx.
+ *
+ * <P>Unlike SimpleDateFormat this class has no state and is thread-safe.
+ * The conversions are done arithmetically, without any Calendar or
+ * TimeZone. Since the current date is usually formatted many times in a row,
+ * the last formatted second is cached.
+ */
+final class HttpDateFormat
+	{
+		/** returned by parse() if the string is not a valid date */
+		static final long INVALID = Long.MIN_VALUE;
+
+		private static final String Days = "ThuFriSatSunMonTueWed";
+
+		private static final String Months = "JanFebMarAprMayJunJulAugSepOctNovDec";
+
+		private static final int NO_ZONE = Integer.MIN_VALUE;
+
+		/** the last formatted second */
+		private static volatile Formatted last_formatted = null;
+
+		private HttpDateFormat()
+			{
+			}
+
+		/**
+		 * A formatted date; immutable, so it may be shared between threads.
+		 */
+		private static final class Formatted
+			{
+				final long secs;
+
+				final String str;
+
+				Formatted(long secs, String str)
+					{
+						this.secs = secs;
+						this.str = str;
+					}
+			}
+
+		/**
+		 * Formats the given time as an RFC-1123 date.
+		 *
+		 * @param time
+		 *          the time in milliseconds since the epoch
+		 * @return the date, e.g. "Sun, 06 Nov 1994 08:49:37 GMT"
+		 */
+		static String format(long time)
+			{
+				long secs = floorDiv(time, 1000);
+
+				Formatted last = last_formatted;
+				if (last != null && last.secs == secs)
+					{
+						return last.str;
+					}
+
+				String str = format0(secs);
+				last_formatted = new Formatted(secs, str);
+				return str;
+			}
+
+		/**
+		 * @return the current time as an RFC-1123 date
+		 */
+		static String now()
+			{
+				return format(System.currentTimeMillis());
+			}
+
+		private static String format0(long secs)
+			{
+				long days = floorDiv(secs, 86400);
+				int sod = (int) (secs - days * 86400);
+
+				// civil from days, see H. Hinnant, "chrono-Compatible Low-Level
+				// Date Algorithms"
+				long z = days + 719468;
+				long era = floorDiv(z, 146097);
+				int doe = (int) (z - era * 146097);
+				int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+				int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+				int mp = (5 * doy + 2) / 153;
+				int day = doy - (153 * mp + 2) / 5 + 1;
+				int mon = (mp < 10) ? mp + 2 : mp - 10;
+				long year = yoe + era * 400 + ((mon <= 1) ? 1 : 0);
+				int wday = (int) (days - floorDiv(days, 7) * 7);
+
+				if (year < 0 || year > 9999)
+					{
+						StringBuffer buf = new StringBuffer(32);
+						buf.append(Days.substring(wday * 3, wday * 3 + 3)).append(", ");
+						buf.append((char) ('0' + day / 10)).append((char) ('0' + day % 10)).append(' ');
+						buf.append(Months.substring(mon * 3, mon * 3 + 3)).append(' ').append(year).append(' ');
+						appendTime(buf, sod);
+						return buf.append(" GMT").toString();
+					}
+
+				char[] buf = new char[29];
+				Days.getChars(wday * 3, wday * 3 + 3, buf, 0);
+				buf[3] = ',';
+				buf[4] = ' ';
+				buf[5] = (char) ('0' + day / 10);
+				buf[6] = (char) ('0' + day % 10);
+				buf[7] = ' ';
+				Months.getChars(mon * 3, mon * 3 + 3, buf, 8);
+				buf[11] = ' ';
+				int y = (int) year;
+				buf[12] = (char) ('0' + y / 1000);
+				buf[13] = (char) ('0' + (y / 100) % 10);
+				buf[14] = (char) ('0' + (y / 10) % 10);
+				buf[15] = (char) ('0' + y % 10);
+				buf[16] = ' ';
+				buf[17] = (char) ('0' + sod / 36000);
+				buf[18] = (char) ('0' + (sod / 3600) % 10);
+				buf[19] = ':';
+				buf[20] = (char) ('0' + (sod / 600) % 6);
+				buf[21] = (char) ('0' + (sod / 60) % 10);
+				buf[22] = ':';
+				buf[23] = (char) ('0' + (sod / 10) % 6);
+				buf[24] = (char) ('0' + sod % 10);
+				buf[25] = ' ';
+				buf[26] = 'G';
+				buf[27] = 'M';
+				buf[28] = 'T';
+
+				return new String(buf);
+			}
+
+		private static void appendTime(StringBuffer buf, int sod)
+			{
+				buf.append((char) ('0' + sod / 36000)).append((char) ('0' + (sod / 3600) % 10)).append(':');
+				buf.append((char) ('0' + (sod / 600) % 6)).append((char) ('0' + (sod / 60) % 10)).append(':');
+				buf.append((char) ('0' + (sod / 10) % 6)).append((char) ('0' + sod % 10));
+			}
+
+		/**
+		 * Parses an HTTP date. No objects are created while parsing.
+		 *
+		 * @param str
+		 *          the date in one of the formats listed above
+		 * @return the time in milliseconds since the epoch, or {@link #INVALID}
+		 *         if the string isn't a date in one of these formats
+		 */
+		static long parse(String str)
+			{
+				int len = str.length();
+				int pos = skipSpace(str, 0, len), end;
+				int day, mon, year, secs;
+
+				// weekday, if present; its value isn't checked
+
+				if (pos < len && isAlpha(str.charAt(pos)))
+					{
+						end = skipAlpha(str, pos, len);
+						if (end < len && str.charAt(end) == ',')
+							{
+								end++;
+							}
+						pos = skipSpace(str, end, len);
+					}
+
+				if (pos >= len)
+					{
+						return INVALID;
+					}
+
+				if (isDigit(str.charAt(pos)))
+					{
+						// rfc-1123 and rfc-850: day month year time
+
+						end = skipDigits(str, pos, len);
+						day = (end - pos <= 2) ? number(str, pos, end) : -1;
+						pos = skipSeparator(str, end, len);
+
+						end = skipAlpha(str, pos, len);
+						mon = month(str, pos, end);
+						pos = skipSeparator(str, end, len);
+
+						end = skipDigits(str, pos, len);
+						year = year(str, pos, end);
+						pos = skipSpace(str, end, len);
+
+						end = findSpace(str, pos, len);
+						secs = time(str, pos, end);
+						pos = end;
+					}
+				else
+					{
+						// asctime: month day time year
+
+						end = skipAlpha(str, pos, len);
+						mon = month(str, pos, end);
+						pos = skipSpace(str, end, len);
+
+						end = skipDigits(str, pos, len);
+						day = (end - pos <= 2) ? number(str, pos, end) : -1;
+						pos = skipSpace(str, end, len);
+
+						end = findSpace(str, pos, len);
+						secs = time(str, pos, end);
+						pos = skipSpace(str, end, len);
+
+						end = skipDigits(str, pos, len);
+						year = (end - pos == 4) ? number(str, pos, end) : -1;
+						pos = end;
+					}
+
+				if (mon < 0 || year < 0 || secs < 0 || day < 1 || day > monthLength(year, mon))
+					{
+						return INVALID;
+					}
+
+				// time zone; GMT if missing
+
+				int offset = 0;
+				pos = skipSpace(str, pos, len);
+				if (pos < len)
+					{
+						end = findSpace(str, pos, len);
+						offset = zone(str, pos, end);
+						if (offset == NO_ZONE || skipSpace(str, end, len) != len)
+							{
+								return INVALID;
+							}
+					}
+
+				return (daysFromCivil(year, mon, day) * 86400L + secs - offset) * 1000L;
+			}
+
+		/**
+		 * @return the number of days since 1970-01-01 of the given date; see
+		 *         H. Hinnant, "chrono-Compatible Low-Level Date Algorithms"
+		 */
+		private static long daysFromCivil(int year, int mon, int day)
+			{
+				int y = (mon <= 1) ? year - 1 : year;
+				int era = (y >= 0 ? y : y - 399) / 400;
+				int yoe = y - era * 400;
+				int mp = (mon >= 2) ? mon - 2 : mon + 10;
+				int doy = (153 * mp + 2) / 5 + day - 1;
+				int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+				return era * 146097L + doe - 719468;
+			}
+
+		private static int monthLength(int year, int mon)
+			{
+				switch (mon)
+					{
+						case 1:
+							return ((year % 4 == 0 && year % 100 != 0) || year % 400 == 0) ? 29 : 28;
+						case 3:
+						case 5:
+						case 8:
+						case 10:
+							return 30;
+						default:
+							return 31;
+					}
+			}
+
+		/**
+		 * @return the month (0 - 11) named by the given chars, or -1
+		 */
+		private static int month(String str, int beg, int end)
+			{
+				if (end - beg < 3)
+					{
+						return -1;
+					}
+
+				for (int mon = 0; mon < 12; mon++)
+					{
+						if (str.regionMatches(true, beg, Months, mon * 3, 3))
+							{
+								return mon;
+							}
+					}
+				return -1;
+			}
+
+		/**
+		 * @return the year given by 2 or 4 digits, or -1
+		 */
+		private static int year(String str, int beg, int end)
+			{
+				if (end - beg == 4)
+					{
+						return number(str, beg, end);
+					}
+				if (end - beg == 2)
+					{
+						int year = number(str, beg, end);
+						return (year >= 70) ? 1900 + year : 2000 + year;
+					}
+				return -1;
+			}
+
+		/**
+		 * @return the seconds since midnight given by "hh:mm:ss", or -1
+		 */
+		private static int time(String str, int beg, int end)
+			{
+				int pos = skipDigits(str, beg, end);
+				if (pos - beg < 1 || pos - beg > 2 || end - pos != 6 || str.charAt(pos) != ':' || str.charAt(pos + 3) != ':'
+						|| skipDigits(str, pos + 1, end) != pos + 3 || skipDigits(str, pos + 4, end) != end)
+					{
+						return -1;
+					}
+
+				int hour = number(str, beg, pos);
+				int min = number(str, pos + 1, pos + 3);
+				int sec = number(str, pos + 4, end);
+				if (hour > 23 || min > 59 || sec > 60)
+					{
+						return -1;
+					}
+
+				return hour * 3600 + min * 60 + sec;
+			}
+
+		/**
+		 * @return the offset from GMT in seconds of the given zone, or NO_ZONE
+		 *         if it's not understood
+		 */
+		private static int zone(String str, int beg, int end)
+			{
+				int len = end - beg;
+				if ((len == 3 && (str.regionMatches(true, beg, "GMT", 0, 3) || str.regionMatches(true, beg, "UTC", 0, 3)))
+						|| (len == 2 && str.regionMatches(true, beg, "UT", 0, 2))
+						|| (len == 1 && (str.charAt(beg) == 'Z' || str.charAt(beg) == 'z')))
+					{
+						return 0;
+					}
+
+				if (len == 5 && (str.charAt(beg) == '+' || str.charAt(beg) == '-') && skipDigits(str, beg + 1, end) == end)
+					{
+						int offset = number(str, beg + 1, beg + 3) * 3600 + number(str, beg + 3, end) * 60;
+						return (str.charAt(beg) == '-') ? -offset : offset;
+					}
+
+				return NO_ZONE;
+			}
+
+		/**
+		 * @return the value of the given digits, or -1 if there are none
+		 */
+		private static int number(String str, int beg, int end)
+			{
+				if (beg == end)
+					{
+						return -1;
+					}
+
+				int val = 0;
+				for (int pos = beg; pos < end; pos++)
+					{
+						val = val * 10 + (str.charAt(pos) - '0');
+					}
+				return val;
+			}
+
+		private static boolean isDigit(char c)
+			{
+				return c >= '0' && c <= '9';
+			}
+
+		private static boolean isAlpha(char c)
+			{
+				return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+			}
+
+		private static int skipDigits(String str, int pos, int len)
+			{
+				while (pos < len && isDigit(str.charAt(pos)))
+					{
+						pos++;
+					}
+				return pos;
+			}
+
+		private static int skipAlpha(String str, int pos, int len)
+			{
+				while (pos < len && isAlpha(str.charAt(pos)))
+					{
+						pos++;
+					}
+				return pos;
+			}
+
+		private static int skipSpace(String str, int pos, int len)
+			{
+				while (pos < len && (str.charAt(pos) == ' ' || str.charAt(pos) == '\t'))
+					{
+						pos++;
+					}
+				return pos;
+			}
+
+		private static int findSpace(String str, int pos, int len)
+			{
+				while (pos < len && str.charAt(pos) != ' ' && str.charAt(pos) != '\t')
+					{
+						pos++;
+					}
+				return pos;
+			}
+
+		/**
+		 * Skips the spaces or the '-' between the parts of an rfc-1123 or rfc-850
+		 * date.
+		 */
+		private static int skipSeparator(String str, int pos, int len)
+			{
+				pos = skipSpace(str, pos, len);
+				if (pos < len && str.charAt(pos) == '-')
+					{
+						pos = skipSpace(str, pos + 1, len);
+					}
+				return pos;
+			}
+
+		private static long floorDiv(long x, long y)
+			{
+				long q = x / y;
+				if ((x % y) != 0 && ((x ^ y) < 0))
+					{
+						q--;
+					}
+				return q;
+			}
+	}
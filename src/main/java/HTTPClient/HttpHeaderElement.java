@@ -32,7 +32,7 @@ package HTTPClient;
 
 /**
  * This class holds a description of an http header element. It is used
- * by <code>HTTPClient.Util.parseHeader()</code>.
+ * by <code>HTTPClient.Util.parseHeader()</code>. Instances are immutable.
  *
  * @see HttpClientUtil#parseHeader(java.lang.String)
  * @see HttpClientUtil#getElement(java.util.Vector, java.lang.String)
@@ -44,13 +44,13 @@ package HTTPClient;
 public class HttpHeaderElement
 {
     /** element name */
-    private String name;
+    private final String name;
 
     /** element value */
-    private String value;
+    private final String value;
 
     /** element parameters */
-    private NVPair[] parameters;
+    private final NVPair[] parameters;
 
 
     // Constructors
@@ -110,11 +110,13 @@ public class HttpHeaderElement
 
 
     /**
-     * @return the parameters
+     * @return a copy of the parameters
      */
     public NVPair[] getParams()
     {
-	return parameters;
+	if (parameters.length == 0)
+	    return parameters;
+	return (NVPair[]) parameters.clone();
     }
 
 
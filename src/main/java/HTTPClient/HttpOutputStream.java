@@ -34,6 +34,11 @@ import java.io.OutputStream;
 import java.io.FilterOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Vector;
 
 
@@ -86,10 +91,10 @@ import java.util.Vector;
 public class HttpOutputStream extends OutputStream implements GlobalConstants
 {
     /** the length of the data to be sent */
-    private int length;
+    private long length;
 
     /** the length of the data received so far */
-    private int rcvd = 0;
+    private long rcvd = 0;
 
     /** the request this stream is associated with */
     private Request req = null;
@@ -100,6 +105,9 @@ public class HttpOutputStream extends OutputStream implements GlobalConstants
     /** the socket output stream */
     private OutputStream os = null;
 
+    /** the socket's channel, if it has one */
+    private SocketChannel channel = null;
+
     /** the buffer to be used if needed */
     private ByteArrayOutputStream bos = null;
 
@@ -115,6 +123,9 @@ public class HttpOutputStream extends OutputStream implements GlobalConstants
     /** the trailers to send if using chunked encoding. */
     private NVPair[] trailers = null;
 
+    /** false if the data of unknown length may not be buffered */
+    private boolean may_buffer = true;
+
 
     // Constructors
 
@@ -138,6 +149,19 @@ public class HttpOutputStream extends OutputStream implements GlobalConstants
      * @param length the number of bytes which will be sent over this stream
      */
     public HttpOutputStream(int length)
+    {
+	this((long) length);
+    }
+
+
+    /**
+     * This creates an output stream which will take <var>length</var> bytes
+     * of data. Unlike <code>HttpOutputStream(int)</code> this allows for
+     * entities of 2 GB and more.
+     *
+     * @param length the number of bytes which will be sent over this stream
+     */
+    public HttpOutputStream(long length)
     {
 	if (length < 0)
 	   throw new IllegalArgumentException("Length must be greater equal 0");
@@ -160,8 +184,28 @@ public class HttpOutputStream extends OutputStream implements GlobalConstants
      */
     void goAhead(Request req, OutputStream os, int con_to)
     {
-	this.req    = req;
-	this.con_to = con_to;
+	goAhead(req, os, null, con_to);
+    }
+
+
+    /**
+     * Associates this stream with a request and the actual output stream,
+     * like <var>goAhead(Request, OutputStream, int)</var>.
+     *
+     * @param req     the request this stream is to be associated with
+     * @param os      the underlying output stream to write our data to, or
+     *                null if we should write to a ByteArrayOutputStream
+     *                instead.
+     * @param channel the channel of the socket <var>os</var> writes to, or
+     *                null if the socket has none
+     * @param con_to  connection timeout to use in sendRequest()
+     */
+    void goAhead(Request req, OutputStream os, SocketChannel channel,
+		 int con_to)
+    {
+	this.req     = req;
+	this.channel = (os != null) ? channel : null;
+	this.con_to  = con_to;
 
 	if (os == null)
 	    os = bos = new ByteArrayOutputStream();
@@ -211,16 +255,52 @@ public class HttpOutputStream extends OutputStream implements GlobalConstants
 
     /**
      * Returns the number of bytes this stream is willing to accept, or -1
-     * if it is unbounded.
+     * if it is unbounded. Lengths which don't fit into an int are returned
+     * as <code>Integer.MAX_VALUE</code>; use <code>getLongLength()</code>
+     * for those.
      *
      * @return the number of bytes
      */
     public int getLength()
+    {
+	return (int) Math.min(length, Integer.MAX_VALUE);
+    }
+
+
+    /**
+     * Returns the number of bytes this stream is willing to accept, or -1
+     * if it is unbounded. Unlike <code>getLength()</code> this is never
+     * truncated.
+     *
+     * @return the number of bytes
+     */
+    public long getLongLength()
     {
 	return length;
     }
 
 
+    /**
+     * Forbids the data to be buffered if the length of this stream is
+     * unknown. The request is then sent using the chunked encoding even if
+     * the server's version is not known yet, and fails if the server is
+     * known to only understand HTTP/1.0.
+     */
+    void disallowBuffering()
+    {
+	may_buffer = false;
+    }
+
+
+    /**
+     * @return false if <code>disallowBuffering()</code> was invoked
+     */
+    boolean mayBuffer()
+    {
+	return may_buffer;
+    }
+
+
     /**
      * Writes a single byte on the stream. It is subject to the same rules
      * as <code>write(byte[], int, int)</code>.
@@ -280,6 +360,103 @@ public class HttpOutputStream extends OutputStream implements GlobalConstants
     }
 
 
+    /**
+     * Writes all the data from the given channel to this stream. If the
+     * channel is a <var>FileChannel</var>, the length of this stream is
+     * known, and the socket was connected as a channel (as are the ones
+     * which won a connection race, see
+     * <code>HTTPConnection.setConnectRaceDelay()</code>), then the data is
+     * sent directly from the file to the socket using
+     * <code>FileChannel.transferTo()</code>; in all other cases it's copied
+     * through a single buffer. A <var>FileChannel</var> is read from its
+     * current position on, and its position is advanced accordingly. A
+     * selectable channel must be in blocking mode.
+     *
+     * @param src   the channel to read the data from
+     * @param count the number of bytes to write, or -1 to write everything
+     *              till the end of the channel
+     * @return the number of bytes written
+     * @exception IOException if an error occured reading the channel or
+     *                        writing the socket, or if more bytes are written
+     *                        than were declared.
+     * @exception IllegalArgumentException if <var>src</var> is in
+     *                                     non-blocking mode
+     * @exception IllegalAccessError if this stream has not been associated
+     *                               with a request yet.
+     */
+    public synchronized long transferFrom(ReadableByteChannel src, long count)
+	    throws IOException, IllegalAccessError
+    {
+	if (req == null)
+	    throw new IllegalAccessError("Stream not associated with a request");
+	if (src instanceof SelectableChannel  &&
+	    !((SelectableChannel) src).isBlocking())
+	    throw new IllegalArgumentException("Channel is in non-blocking mode");
+
+	if (ignore) return 0;
+
+	if (src instanceof FileChannel  &&  count >= 0  &&  length != -1  &&
+	    bos == null  &&  filters.size() == 0  &&
+	    channel != null  &&  channel.isBlocking())
+	{
+	    if (rcvd+count > length)
+		throw new IOException("Tried to write too many bytes (" +
+				      (rcvd+count) + " > " + length + ")");
+
+	    FileChannel fc = (FileChannel) src;
+	    try
+	    {
+		os.flush();
+		long pos = fc.position(), end = pos + count;
+		while (pos < end)
+		{
+		    long num = fc.transferTo(pos, end-pos, channel);
+		    if (num == 0  &&  pos >= fc.size())
+			throw new IOException("Premature end of file: " +
+					      (end-pos) + " bytes missing");
+		    pos += num;
+		}
+		fc.position(end);
+	    }
+	    catch (IOException ioe)
+	    {
+		req.getConnection().closeDemux(ioe);
+		req.getConnection().outputFinished();
+		throw ioe;
+	    }
+
+	    rcvd += count;
+	    return count;
+	}
+
+	byte[] buf = BufferPool.borrow((count >= 0  &&  count < 65536) ?
+				       (int) Math.max(count, 1) : 65536);
+	ByteBuffer dst = ByteBuffer.wrap(buf);
+	long total = 0;
+
+	try
+	{
+	    while (count < 0  ||  total < count)
+	    {
+		dst.clear();
+		if (count >= 0  &&  count-total < buf.length)
+		    dst.limit((int) (count-total));
+
+		int num = src.read(dst);
+		if (num == -1)
+		    break;
+
+		write(buf, 0, num);
+		total += num;
+	    }
+	}
+	finally
+	    { BufferPool.release(buf); }
+
+	return total;
+    }
+
+
     /**
      * Closes the stream and causes the data to be sent if it has not already
      * been done so. This method <strong>must</strong> be invoked when all
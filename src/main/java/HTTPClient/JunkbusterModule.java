@@ -62,7 +62,7 @@ import java.util.Date;
  * @author	Ronald Tschal&auml;r
  */
 
-public class JunkbusterModule implements HTTPClientModule, GlobalConstants
+public class JunkbusterModule implements StatelessModule, GlobalConstants
 {
     /** the blocklist */
     private static String    bl_file;
@@ -115,6 +115,15 @@ public class JunkbusterModule implements HTTPClientModule, GlobalConstants
 
     // Methods
 
+    /**
+     * Invoked by the HTTPClient. Only the request handler does any work.
+     */
+    public int getPhases()
+    {
+	return PHASE_REQUEST;
+    }
+
+
     /**
      * Invoked by the HTTPClient.
      */
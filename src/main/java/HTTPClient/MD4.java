@@ -83,6 +83,26 @@ class MD4
     }
 
 
+    /**
+     * Start a new MD4 hash as a copy of the given one. The copy and the
+     * original may be updated independently.
+     *
+     * @param from the hash to copy
+     * @exception IllegalStateException if <code>getHash()</code> has
+     *                                  already been invoked on it
+     */
+    MD4(MD4 from)
+    {
+	if (from.final_hash != null)
+	    throw new IllegalStateException("Hash already terminated");
+
+	state        = new MD4State();
+	state.count  = from.state.count;
+	System.arraycopy(from.state.state, 0, state.state, 0, 4);
+	System.arraycopy(from.state.buffer, 0, state.buffer, 0, 64);
+    }
+
+
     // Methods
 
     /**
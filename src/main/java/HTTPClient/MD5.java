@@ -116,6 +116,17 @@ class MD5 {
     Update(ob.toString());
   }
 
+  /**
+   * Initialize class as a copy of another hash, which is not affected by
+   * updates of the copy
+   *
+   * @param	from	the hash to copy
+   */
+  MD5 (MD5 from) {
+    state = new MD5State(from.state);
+    finals = null;
+  }
+
   private static final int rotate_left (int x, int n) {
     return (x << n) | (x >>> (32 - n));
   }
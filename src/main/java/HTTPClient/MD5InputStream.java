@@ -46,7 +46,8 @@ import java.net.ProtocolException;
 class MD5InputStream extends FilterInputStream
 {
     private HashVerifier verifier;
-    private MD5 md5;
+    private Hash md5;
+    private byte[] one = new byte[1];
     private long rcvd = 0;
     private boolean closed = false;
 
@@ -59,7 +60,7 @@ class MD5InputStream extends FilterInputStream
     {
 	super(is);
 	this.verifier = verifier;
-	md5 = new MD5();
+	md5 = Hash.md5();
     }
 
 
@@ -67,7 +68,10 @@ class MD5InputStream extends FilterInputStream
     {
 	int b = in.read();
 	if (b != -1)
-	    md5.Update((byte) b);
+	{
+	    one[0] = (byte) b;
+	    md5.update(one, 0, 1);
+	}
 	else
 	    real_close();
 
@@ -81,7 +85,7 @@ class MD5InputStream extends FilterInputStream
     {
 	int num = in.read(buf, off, len);
 	if (num > 0)
-	    md5.Update(buf, off, num);
+	    md5.update(buf, off, num);
 	else
 	    real_close();
 
@@ -131,7 +135,7 @@ class MD5InputStream extends FilterInputStream
 	closed = true;
 
 	in.close();
-	verifier.verifyHash(md5.Final(), rcvd);
+	verifier.verifyHash(md5.digest(), rcvd);
     }
 }
 
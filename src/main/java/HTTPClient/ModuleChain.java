@@ -0,0 +1,150 @@
+package HTTPClient;
+
+import java.util.Hashtable;
+
+/**
+ * The modules to use for a request, worked out once from a connection's
+ * module list. Modules implementing {@link StatelessModule} are instantiated
+ * only once and shared; all other modules get a new instance for every
+ * request. For each phase the chain holds the positions of the modules
+ * whose handler needs to be invoked, so that handlers which are declared to
+ * do nothing are skipped.
+ *
+ * <P>A chain is immutable; the connection builds a new one when its module
+ * list changes.
+ *
+ * @see HTTPConnection
+ * @see HTTPResponse
+ */
+final class ModuleChain
+	{
+		/** the phases, used as index for getPhase() */
+		static final int REQUEST = 0, RESPONSE_1 = 1, RESPONSE_2 = 2, RESPONSE_3 = 3, TRAILER = 4;
+
+		/** the shared instances of the stateless modules: Class -> StatelessModule */
+		private static final Hashtable SharedModules = new Hashtable();
+
+		/** the module classes */
+		private final Class[] classes;
+
+		/** the shared instances; null for modules instantiated per request */
+		private final HTTPClientModule[] shared;
+
+		/** all modules are stateless, so shared can be handed out as is */
+		private final boolean all_shared;
+
+		/** the positions of the modules to invoke, per phase */
+		private final int[][] phases;
+
+		/**
+		 * Builds the chain for the given modules.
+		 *
+		 * @param classes
+		 *          the module classes, in order
+		 */
+		ModuleChain(Class[] classes)
+			{
+				this.classes = classes;
+				this.shared = new HTTPClientModule[classes.length];
+				this.phases = new int[TRAILER + 1][];
+
+				int[] flags = new int[classes.length];
+				boolean all = true;
+				for (int idx = 0; idx < classes.length; idx++)
+					{
+						if (StatelessModule.class.isAssignableFrom(classes[idx]))
+							{
+								StatelessModule mod = getShared(classes[idx]);
+								shared[idx] = mod;
+								flags[idx] = mod.getPhases();
+							}
+						else
+							{
+								flags[idx] = StatelessModule.PHASE_ALL;
+								all = false;
+							}
+					}
+				all_shared = all;
+
+				for (int phase = REQUEST; phase <= TRAILER; phase++)
+					{
+						int cnt = 0;
+						int[] list = new int[classes.length];
+						for (int idx = 0; idx < classes.length; idx++)
+							{
+								if ((flags[idx] & (1 << phase)) != 0)
+									{
+										list[cnt++] = idx;
+									}
+							}
+						phases[phase] = (cnt == list.length) ? list : HttpClientUtil.resizeArray(list, cnt);
+					}
+			}
+
+		/**
+		 * @return the shared instance of the given module, creating it if
+		 *         necessary
+		 */
+		private static StatelessModule getShared(Class cls)
+			{
+				synchronized (SharedModules)
+					{
+						StatelessModule mod = (StatelessModule) SharedModules.get(cls);
+						if (mod == null)
+							{
+								mod = (StatelessModule) newInstance(cls);
+								SharedModules.put(cls, mod);
+							}
+						return mod;
+					}
+			}
+
+		private static HTTPClientModule newInstance(Class cls)
+			{
+				try
+					{
+						return (HTTPClientModule) cls.newInstance();
+					}
+				catch (Exception e)
+					{
+						throw new Error("HTTPClient Internal Error: could not " + "create instance of " + cls.getName() + " -\n"
+								+ e);
+					}
+			}
+
+		/**
+		 * Returns the module instances for a new request: the shared instances
+		 * of the stateless modules and new instances of the others. The array
+		 * must not be modified.
+		 *
+		 * @return the modules, in order
+		 */
+		HTTPClientModule[] instantiate()
+			{
+				if (all_shared)
+					{
+						return shared;
+					}
+
+				HTTPClientModule[] mod_insts = new HTTPClientModule[classes.length];
+				for (int idx = 0; idx < classes.length; idx++)
+					{
+						mod_insts[idx] = (shared[idx] != null) ? shared[idx] : newInstance(classes[idx]);
+					}
+				return mod_insts;
+			}
+
+		/**
+		 * Returns the positions (in the array returned by instantiate()) of the
+		 * modules whose handler for the given phase is to be invoked, in order.
+		 * The array must not be modified.
+		 *
+		 * @param phase
+		 *          one of REQUEST, RESPONSE_1, RESPONSE_2, RESPONSE_3 or TRAILER
+		 * @return the positions of the modules
+		 */
+		int[] getPhase(int phase)
+			{
+				return phases[phase];
+			}
+	}
@@ -55,6 +55,9 @@ public final class NVPair
      */
     private boolean m_quoteValue;
 
+    /** the pair encoded as a header line; created when first needed */
+    private byte[] header_line = null;
+
 
     // Constructors
 
@@ -140,6 +143,39 @@ public final class NVPair
     }
     
 
+    /**
+     * Returns the pair as a header line, i.e. the trimmed name, ": ", the
+     * trimmed value and CRLF, encoded using the lower byte of each char.
+     * The line is cached, so pairs which are sent with every request (such
+     * as the default headers) are only encoded once.
+     *
+     * @return the header line; must not be modified
+     */
+    final byte[] getHeaderLine()
+    {
+	byte[] line = header_line;
+	if (line == null)
+	{
+	    String n = name.trim(), v = value.trim();
+	    int nlen = n.length(), vlen = v.length();
+
+	    line = new byte[nlen + vlen + 4];
+	    for (int idx=0; idx<nlen; idx++)
+		line[idx] = (byte) n.charAt(idx);
+	    line[nlen]   = (byte) ':';
+	    line[nlen+1] = (byte) ' ';
+	    for (int idx=0; idx<vlen; idx++)
+		line[nlen+2+idx] = (byte) v.charAt(idx);
+	    line[nlen+vlen+2] = (byte) '\r';
+	    line[nlen+vlen+3] = (byte) '\n';
+
+	    header_line = line;
+	}
+
+	return line;
+    }
+
+
     /**
      * produces a string containing the name and value of this instance.
      * @return a string containing the class name and the name and value
@@ -0,0 +1,166 @@
+package HTTPClient;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The permanent redirections (301 and 308) of one context, as kept by the
+ * {@link RedirectionModule}. Each redirection expires at the time worked out
+ * from the response's <var>Cache-Control</var> or <var>Expires</var> header,
+ * and the number of redirections is bounded: when it's exceeded the least
+ * recently used ones are evicted.
+ *
+ * <P>Lookups don't lock. Recency is approximated with the "clock" algorithm:
+ * a lookup only marks the entry as referenced, and the eviction goes round
+ * the entries in insertion order, giving referenced ones a second chance
+ * and evicting the first unreferenced (or expired) one. Evictions are
+ * serialized on the cache.
+ */
+final class RedirectCache
+	{
+		/** the most redirections kept */
+		private final int max_size;
+
+		/** the redirections: HttpClientURI -> Entry */
+		private final ConcurrentHashMap entries = new ConcurrentHashMap();
+
+		/** the entries, in the order the eviction visits them */
+		private final ConcurrentLinkedQueue clock = new ConcurrentLinkedQueue();
+
+		/**
+		 * @param max_size
+		 *          the most redirections to keep
+		 */
+		RedirectCache(int max_size)
+			{
+				this.max_size = Math.max(max_size, 1);
+			}
+
+		/**
+		 * @param uri
+		 *          the requested uri
+		 * @return the uri the request is permanently redirected to, or null if
+		 *         there's no redirection or it has expired
+		 */
+		HttpClientURI get(HttpClientURI uri)
+			{
+				Entry entry = (Entry) entries.get(uri);
+				if (entry == null)
+					{
+						return null;
+					}
+
+				Target target = entry.target;
+				if (target.expires <= System.currentTimeMillis())
+					{
+						return null;
+					}
+				entry.referenced = true;
+				return target.location;
+			}
+
+		/**
+		 * Adds a redirection, replacing any for the same uri.
+		 *
+		 * @param uri
+		 *          the requested uri
+		 * @param location
+		 *          the uri the request is redirected to
+		 * @param expires
+		 *          the time (as in System.currentTimeMillis()) the redirection
+		 *          expires
+		 */
+		void put(HttpClientURI uri, HttpClientURI location, long expires)
+			{
+				Target target = new Target(location, expires);
+
+				// expired entries are replaced in place, so the clock holds each entry once
+				Entry entry = new Entry(uri, target);
+				Entry old = (Entry) entries.putIfAbsent(uri, entry);
+				if (old != null)
+					{
+						old.target = target;
+						old.referenced = true;
+						return;
+					}
+
+				clock.add(entry);
+				if (entries.size() > max_size)
+					{
+						evict();
+					}
+			}
+
+		/**
+		 * Evicts entries until there are no more than max_size.
+		 */
+		private synchronized void evict()
+			{
+				long now = System.currentTimeMillis();
+
+				// after two rounds the referenced flags are ignored, in case
+				// lookups keep setting them
+				int second_chances = 2 * (max_size + 1);
+				while (entries.size() > max_size)
+					{
+						Entry entry = (Entry) clock.poll();
+						if (entry == null)
+							{
+								break;
+							}
+
+						if (entry.referenced && entry.target.expires > now && second_chances-- > 0)
+							{
+								entry.referenced = false;
+								clock.add(entry);
+							}
+						else
+							{
+								entries.remove(entry.uri, entry);
+							}
+					}
+			}
+
+		/**
+		 * @return the number of redirections kept, including expired ones
+		 */
+		int size()
+			{
+				return entries.size();
+			}
+
+		/**
+		 * A redirection.
+		 */
+		private static final class Entry
+			{
+				final HttpClientURI uri;
+
+				volatile Target target;
+
+				/** looked up since the eviction last came by */
+				volatile boolean referenced = false;
+
+				Entry(HttpClientURI uri, Target target)
+					{
+						this.uri = uri;
+						this.target = target;
+					}
+			}
+
+		/**
+		 * Where a redirection goes, and until when.
+		 */
+		private static final class Target
+			{
+				final HttpClientURI location;
+
+				final long expires;
+
+				Target(HttpClientURI location, long expires)
+					{
+						this.location = location;
+						this.expires = expires;
+					}
+			}
+	}
@@ -33,12 +33,24 @@ import java.net.InetAddress;
 import java.net.ProtocolException;
 import java.net.UnknownHostException;
 import java.io.IOException;
+import java.util.Date;
 import java.util.Hashtable;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
- * This module handles the redirection status codes 301, 302, 303, 305, 306
- * and 307.
+ * This module handles the redirection status codes 301, 302, 303, 305, 306,
+ * 307 and 308.
+ *
+ * <P>Permanent redirections (301 and 308) are remembered, so that later
+ * requests for the same uri go to the new location straight away. They're
+ * remembered for as long as the response's <var>Cache-Control</var> max-age
+ * or <var>Expires</var> header allows, else for the number of seconds in the
+ * property <var>HTTPClient.redirect.permanent.ttl</var> (default one day);
+ * responses with "no-store" or "no-cache" aren't remembered. At most
+ * <var>HTTPClient.redirect.permanent.size</var> (default 1000) redirections
+ * are remembered per context, the least recently used ones being dropped.
  *
  * @version	0.3  30/01/1998
  * @author	Ronald Tschal&auml;r
@@ -46,8 +58,15 @@ import java.util.Hashtable;
 
 class RedirectionModule implements HTTPClientModule, GlobalConstants
 {
-    /** a list of permanent redirections (301) */
-    private static Hashtable perm_redir_cntxt_list = new Hashtable();
+    /** the permanent redirections (301, 308) per context: Object -> RedirectCache */
+    private static ConcurrentHashMap perm_redir_cntxt_list =
+						    new ConcurrentHashMap();
+
+    /** the most permanent redirections kept per context */
+    private static int perm_redir_size = 1000;
+
+    /** how long a permanent redirection is kept by default, in ms */
+    private static long perm_redir_ttl = 24 * 60 * 60 * 1000L;
 
     /** a list of deferred redirections (used with Response.retryRequest()) */
     private static Hashtable deferred_redir_list = new Hashtable();
@@ -65,6 +84,24 @@ class RedirectionModule implements HTTPClientModule, GlobalConstants
     private Request saved_req;
 
 
+    static
+    {
+	try
+	{
+	    perm_redir_size = Integer.getInteger(
+			"HTTPClient.redirect.permanent.size", perm_redir_size).intValue();
+	    perm_redir_ttl = 1000L * Long.getLong(
+			"HTTPClient.redirect.permanent.ttl", perm_redir_ttl/1000).longValue();
+	    if (DebugMods)
+		HttpClientUtil.logLine("RdirM: keeping up to " + perm_redir_size +
+			     " permanent redirections for " +
+			     (perm_redir_ttl/1000) + "s by default");
+	}
+	catch (Exception e)
+	    { }
+    }
+
+
     // Constructors
 
     /**
@@ -116,9 +153,9 @@ class RedirectionModule implements HTTPClientModule, GlobalConstants
 	catch (ParseException pe)
 	    { cur_loc = null; }
 
-	Hashtable perm_redir_list = HttpClientUtil.getList(perm_redir_cntxt_list,
-					    req.getConnection().getContext());
-	if ((new_loc = (HttpClientURI) perm_redir_list.get(cur_loc)) != null)
+	RedirectCache perm_redir_list =
+			get_perm_redir_list(req.getConnection().getContext());
+	if (cur_loc != null  &&  (new_loc = perm_redir_list.get(cur_loc)) != null)
 	{
 	    /* copy query if present in old url but not in new url. This
 	     * isn't strictly conforming, but some scripts fail to properly
@@ -179,7 +216,7 @@ class RedirectionModule implements HTTPClientModule, GlobalConstants
 	    throws IOException
     {
 	int sts  = resp.getStatusCode();
-	if (sts < 301  ||  sts > 307  ||  sts == 304)
+	if (sts < 301  ||  sts > 308  ||  sts == 304)
 	{
 	    if (lastURI != null)		// it's been redirected
 		resp.setEffectiveURI(lastURI);
@@ -209,6 +246,7 @@ class RedirectionModule implements HTTPClientModule, GlobalConstants
 	    case 301: // Moved Permanently
 	    case 303: // See Other (use GET)
 	    case 307: // Moved Temporarily (we mean it!)
+	    case 308: // Permanent Redirect (and keep the method)
 
 		if (DebugMods)
 		    HttpClientUtil.logLine("RdirM: Handling status: " + sts + " " +
@@ -224,8 +262,9 @@ class RedirectionModule implements HTTPClientModule, GlobalConstants
 			HttpClientUtil.logLine("RdirM: not redirected because method " +
 				     "is neither HEAD nor GET");
 
-		    if (sts == 301  &&  resp.getHeader("Location") != null)
-			update_perm_redir_list(req, 
+		    if ((sts == 301  ||  sts == 308)  &&
+			resp.getHeader("Location") != null)
+			update_perm_redir_list(req, resp,
 				    resLocHdr(resp.getHeader("Location"), req));
 
 		    resp.setEffectiveURI(lastURI);
@@ -376,10 +415,11 @@ class RedirectionModule implements HTTPClientModule, GlobalConstants
 			    resp.setRetryRequest(true);
 			}
 
-			if (sts == 301)
+			if (sts == 301  ||  sts == 308)
 			    try
 			    {
-				update_perm_redir_list(req, new HttpClientURI(loc, nres));
+				update_perm_redir_list(req, resp,
+						new HttpClientURI(loc, nres));
 			    }
 			    catch (ParseException pe)
 				{ /* ??? */ }
@@ -448,10 +488,13 @@ class RedirectionModule implements HTTPClientModule, GlobalConstants
     /**
      * Update the permanent redirection list.
      *
-     * @param the original request
-     8 @param the new location
+     * @param req     the original request
+     * @param resp    the redirection response
+     * @param new_loc the new location
      */
-    private static void update_perm_redir_list(RoRequest req, HttpClientURI new_loc)
+    private static void update_perm_redir_list(RoRequest req, Response resp,
+					       HttpClientURI new_loc)
+	    throws IOException
     {
 	HTTPConnection con = req.getConnection();
 	HttpClientURI cur_loc = null;
@@ -465,12 +508,88 @@ class RedirectionModule implements HTTPClientModule, GlobalConstants
 	catch (ParseException pe)
 	    { }
 
-	if (!cur_loc.equals(new_loc))
+	if (cur_loc == null  ||  cur_loc.equals(new_loc))
+	    return;
+
+	long expires = perm_redir_expires(resp);
+	if (expires <= System.currentTimeMillis())
+	{
+	    if (DebugMods)
+		HttpClientUtil.logLine("RdirM: permanent redirection of " + cur_loc +
+			     " not remembered because it may not be cached");
+	    return;
+	}
+
+	get_perm_redir_list(con.getContext()).put(cur_loc, new_loc, expires);
+    }
+
+
+    /**
+     * @return the permanent redirections of the given context
+     */
+    private static RedirectCache get_perm_redir_list(Object context)
+    {
+	RedirectCache list = (RedirectCache) perm_redir_cntxt_list.get(context);
+	if (list == null)
 	{
-	    Hashtable perm_redir_list =
-			HttpClientUtil.getList(perm_redir_cntxt_list, con.getContext());
-	    perm_redir_list.put(cur_loc, new_loc);
+	    list = new RedirectCache(perm_redir_size);
+	    RedirectCache old =
+		(RedirectCache) perm_redir_cntxt_list.putIfAbsent(context, list);
+	    if (old != null)
+		list = old;
 	}
+
+	return list;
+    }
+
+
+    /**
+     * Works out until when a permanent redirection may be remembered: the
+     * max-age from the Cache-Control header if there is one, else the
+     * Expires header (relative to the Date header), else the default ttl.
+     * "no-store" and "no-cache" forbid remembering it at all.
+     *
+     * @param resp the redirection response
+     * @return the time the redirection expires
+     */
+    private static long perm_redir_expires(Response resp)  throws IOException
+    {
+	long now = System.currentTimeMillis();
+
+	String cc = resp.getHeader("Cache-Control");
+	if (cc != null)
+	{
+	    try
+	    {
+		Vector pcc = HttpClientUtil.parseHeader(cc);
+		if (HttpClientUtil.getElement(pcc, "no-store") != null  ||
+		    HttpClientUtil.getElement(pcc, "no-cache") != null)
+		    return now;
+
+		HttpHeaderElement max_age = HttpClientUtil.getElement(pcc, "max-age");
+		if (max_age != null  &&  max_age.getValue() != null)
+		    return now + 1000L * Long.parseLong(max_age.getValue().trim());
+	    }
+	    catch (ParseException pe)
+		{ }
+	    catch (NumberFormatException nfe)
+		{ return now; }
+	}
+
+	try
+	{
+	    Date exp = resp.getHeaderAsDate("Expires");
+	    if (exp != null)
+	    {
+		Date date = resp.getHeaderAsDate("Date");
+		return now + exp.getTime() -
+			     ((date != null) ? date.getTime() : now);
+	    }
+	}
+	catch (IllegalArgumentException iae)
+	    { return now; }			// invalid dates mean "expired"
+
+	return now + perm_redir_ttl;
     }
 
 
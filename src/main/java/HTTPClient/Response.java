@@ -97,10 +97,10 @@ public final class Response implements RoResponse, GlobalConstants, Cloneable
             HttpClientURI          EffectiveURI = null;
 
     /** any headers which were received and do not fit in the above list. */
-            CIHashtable  Headers = new CIHashtable();
+            HeaderMap    Headers = new HeaderMap();
 
     /** any trailers which were received and do not fit in the above list. */
-            CIHashtable  Trailers = new CIHashtable();
+            HeaderMap    Trailers = new HeaderMap();
 
     /** the ContentLength of the data. */
             int          ContentLength = -1;
@@ -301,7 +301,7 @@ public final class Response implements RoResponse, GlobalConstants, Cloneable
     public String getHeader(String hdr)  throws IOException
     {
 	if (!got_headers)  getHeaders(true);
-	return (String) Headers.get(hdr.trim());
+	return Headers.get(hdr.trim());
     }
 
     /**
@@ -405,7 +405,7 @@ public final class Response implements RoResponse, GlobalConstants, Cloneable
     public String getTrailer(String trailer)  throws IOException
     {
 	if (!got_trailers)  getTrailers();
-	return (String) Trailers.get(trailer.trim());
+	return Trailers.get(trailer.trim());
     }
 
 
@@ -626,7 +626,7 @@ public final class Response implements RoResponse, GlobalConstants, Cloneable
 	    do
 	    {
 		Headers.clear();	// clear any headers from 100 Continue
-		char[] headers = readResponseHeaders(inp_stream);
+		byte[] headers = readResponseHeaders(inp_stream);
 		parseResponseHeaders(headers);
 	    } while ((StatusCode == 100  &&  skip_cont)  ||	// Continue
 		     (StatusCode > 101  &&  StatusCode < 200));	// Unknown
@@ -836,8 +836,8 @@ public final class Response implements RoResponse, GlobalConstants, Cloneable
     /* these are external to readResponseHeaders() because we need to be
      * able to restart after an InterruptedIOException
      */
-    private byte[]       buf     = new byte[600];
-    private char[]       hdrs    = new char[600];
+    private byte[]       buf     = new byte[5];
+    private byte[]       hdrs    = new byte[600];
     private int          buf_pos = 0;
     private int          hdr_pos = 0;
     private boolean      reading_lines = false;
@@ -852,7 +852,7 @@ public final class Response implements RoResponse, GlobalConstants, Cloneable
      * @return a (newline separated) list of headers
      * @exception IOException if any read on the input stream fails
      */
-    private char[] readResponseHeaders(InputStream inp)  throws IOException
+    private byte[] readResponseHeaders(InputStream inp)  throws IOException
     {
 	if (DebugResp)
 	{
@@ -906,8 +906,8 @@ public final class Response implements RoResponse, GlobalConstants, Cloneable
 		}
 		throw eof;
 	    }
-	    for (int idx=0; idx<buf_pos; idx++)
-		hdrs[hdr_pos++] = (char) (buf[idx] & 0xFF);
+	    System.arraycopy(buf, 0, hdrs, 0, buf_pos);
+	    hdr_pos = buf_pos;
 
 	    reading_lines = true;
 	}
@@ -924,13 +924,14 @@ public final class Response implements RoResponse, GlobalConstants, Cloneable
 	buf_pos = 0;
 	reading_lines = false;
 
-	char[] tmp = HttpClientUtil.resizeArray(hdrs, hdr_pos);
+	// the values parsed from this copy refer to it, so hdrs can be reused
+	byte[] tmp = HttpClientUtil.resizeArray(hdrs, hdr_pos);
 	hdr_pos = 0;
 	return tmp;
     }
 
 
-    char[] trailers;
+    byte[] trailers;
 
     /**
      * This is called by the StreamDemultiplexor to read all the trailers
@@ -969,12 +970,13 @@ public final class Response implements RoResponse, GlobalConstants, Cloneable
     {
 	int got;
 
-	while ((got = inp.read(buf, 0, buf.length)) > 0)
+	while (true)
 	{
-	    if (hdr_pos + got > hdrs.length)
-		hdrs = HttpClientUtil.resizeArray(hdrs, (hdr_pos + got) * 2);
-	    for (int idx=0; idx<got; idx++)
-		hdrs[hdr_pos++] = (char) (buf[idx] & 0xFF); 	// ISO-8859-1
+	    if (hdr_pos == hdrs.length)
+		hdrs = HttpClientUtil.resizeArray(hdrs, hdrs.length * 2);
+	    if ((got = inp.read(hdrs, hdr_pos, hdrs.length - hdr_pos)) <= 0)
+		break;
+	    hdr_pos += got;
 	}
 
 	hdr_pos -= 2;				// remove last CRLF
@@ -988,7 +990,7 @@ public final class Response implements RoResponse, GlobalConstants, Cloneable
      * @exception ProtocolException if any part of the headers do not
      *            conform
      */
-    private void parseResponseHeaders(char[] headers) throws ProtocolException
+    private void parseResponseHeaders(byte[] headers) throws ProtocolException
     {
 	if (DebugResp)
 	{
@@ -996,7 +998,7 @@ public final class Response implements RoResponse, GlobalConstants, Cloneable
 			 method + " " + resource + "\":  (" +
 			 inp_stream.hashCode() + ")");
 	    String nl = System.getProperty("line.separator");
-	    HttpClientUtil.logMessage(nl + new String(headers) + nl);
+	    HttpClientUtil.logMessage(nl + HeaderParser.string(headers, 0, headers.length) + nl);
 	}
 
 
@@ -1009,9 +1011,7 @@ public final class Response implements RoResponse, GlobalConstants, Cloneable
 	    StatusCode = 200;
 	    ReasonLine = "OK";
 
-	    Data = new byte[headers.length];
-	    for (int idx=0; idx<Data.length; idx++)
-		Data[idx] = (byte) headers[idx];
+	    Data = headers;
 
 	    return;
 	}
@@ -1019,35 +1019,39 @@ public final class Response implements RoResponse, GlobalConstants, Cloneable
 
 	// get the status line
 
+	int len = headers.length;
 	int beg = 0;
-	int end = HttpClientUtil.findSpace(headers, beg);
-	if (end - beg > 4)
-	    Version = new String(headers, beg, end-beg);
+	int end = HeaderParser.findSpace(headers, beg, len);
+	if (end - beg == 8  &&  headers[5] == '1'  &&  headers[6] == '.'  &&
+	    (headers[7] == '1'  ||  headers[7] == '0')  &&  headers[4] == '/')
+	    Version = (headers[7] == '1') ? "HTTP/1.1" : "HTTP/1.0";
+	else if (end - beg > 4)
+	    Version = HeaderParser.string(headers, beg, end);
 	else
 	    Version = "HTTP/1.0";		// NCSA bug
 
-	beg = HttpClientUtil.skipSpace(headers, end);
-	end = HttpClientUtil.findSpace(headers, beg);
+	beg = HeaderParser.skipSpace(headers, end, len);
+	end = HeaderParser.findSpace(headers, beg, len);
 	if (beg == end)
 	    throw new ProtocolException("Invalid HTTP status line received: " +
 					"no status code found in '" +
-					new String(headers) + "'");
-	try
-	    { StatusCode = Integer.parseInt(new String(headers, beg, end-beg)); }
-	catch (NumberFormatException nfe)
+					HeaderParser.string(headers, 0, len) + "'");
+	StatusCode = 0;
+	for (int idx=beg; idx<end; idx++)
 	{
-	    throw new ProtocolException("Invalid HTTP status line received: " +
-					"status code '" +
-					new String(headers, beg, end-beg) +
-					"' not a number in '" +
-					new String(headers) + "'");
+	    if (headers[idx] < '0'  ||  headers[idx] > '9'  ||  idx-beg > 8)
+		throw new ProtocolException("Invalid HTTP status line received: " +
+					    "status code '" +
+					    HeaderParser.string(headers, beg, end) +
+					    "' not a number in '" +
+					    HeaderParser.string(headers, 0, len) + "'");
+	    StatusCode = StatusCode*10 + (headers[idx] - '0');
 	}
 
 	beg = end;
-	while (end < headers.length  &&  headers[end] != '\r'  &&
-	       headers[end] != '\n')
+	while (end < len  &&  headers[end] != '\r'  &&  headers[end] != '\n')
 	    end++;
-	ReasonLine = new String(headers, beg, end-beg).trim();
+	ReasonLine = HeaderParser.string(headers, beg, end).trim();
 
 
 	/* If the status code shows an error and we're sending (or have sent)
@@ -1064,7 +1068,7 @@ public final class Response implements RoResponse, GlobalConstants, Cloneable
 
 	// get the rest of the headers
 
-	parseHeaderFields(headers, HttpClientUtil.skipSpace(headers, end), Headers);
+	parseHeaderFields(headers, HeaderParser.skipSpace(headers, end, len), Headers);
 
 
 	/* make sure the connection isn't closed prematurely if we have
@@ -1083,8 +1087,8 @@ public final class Response implements RoResponse, GlobalConstants, Cloneable
 
 	try
 	{
-	    String con = (String) Headers.get("Connection"),
-		  pcon = (String) Headers.get("Proxy-Connection");
+	    String con = Headers.get("Connection"),
+		  pcon = Headers.get("Proxy-Connection");
 
 	    // parse connection header
 	    if ((vers == 1  &&  con != null  &&  HttpClientUtil.hasToken(con, "close"))
@@ -1137,7 +1141,7 @@ public final class Response implements RoResponse, GlobalConstants, Cloneable
 				 "Request \"" + method + " " + resource +
 				 "\":  (" + inp_stream.hashCode() + ")");
 		    String nl = System.getProperty("line.separator");
-		    HttpClientUtil.logMessage(nl + new String(hdrs, 0, hdr_pos) + nl);
+		    HttpClientUtil.logMessage(nl + HeaderParser.string(trailers, 0, trailers.length) + nl);
 		}
 
 		parseHeaderFields(trailers, 0, Trailers);
@@ -1156,125 +1160,35 @@ public final class Response implements RoResponse, GlobalConstants, Cloneable
 
     /**
      * Parses the given header block as fields of the form "<name>: <value>"
-     * into the given list. Continuation lines are honored. Multiple
-     * headers with the same name are stored as one header with the values
-     * joined by a ",".
+     * into the given list and sets the ContentLength if a Content-Length
+     * header is found. See {@link HeaderParser#parseFields(byte[], int,
+     * HTTPClient.HeaderMap) HeaderParser.parseFields()}.
      *
      * @param hdrs  the header or trailer block
      * @param beg   the position in hdrs where parsing is to begin
-     * @param list  the Hashtable to store the parsed fields in
+     * @param list  the map to store the parsed fields in
      * @exception ProtocolException if any part of the headers do not
      *                              conform
      */
-    private void parseHeaderFields(char[] hdrs, int beg, CIHashtable list)
+    private void parseHeaderFields(byte[] hdrs, int beg, HeaderMap list)
 	    throws ProtocolException
     {
-	int end = beg, len = hdrs.length;
+	Object cont_len = HeaderParser.parseFields(hdrs, beg, list);
 
-	while (end < len)
+	// special case Content-length
+	if (cont_len != null)
 	{
-	    // get name
-
-	    while (end < len  &&  !Character.isWhitespace(hdrs[end])  &&
-		   hdrs[end] != ':')
-		end++;
-	    String hdr_name = new String(hdrs, beg, end-beg);
-
-
-	    // skip spaces
-
-	    while (end < len  &&  Character.isWhitespace(hdrs[end]))
-		end++;
-
-
-	    // skip ':'
-
-	    /* It seems there are a number of broken servers out there. So
-	     * we'll try make the best of things and don't throw this execption
-	     * after all
-	    if (end >= len  ||  hdrs[end] != ':')
-	    {
-		while (end < len  &&  hdrs[end] != '\n')  end++;
-		throw new ProtocolException("Invalid HTTP header received: " +
-					    "no ':' found in '" +
-					    new String(hdrs, beg, end-beg) +
-					    "'");
-	    }
-	    */
-
-	    if (end < len  &&  hdrs[end] == ':'  &&  hdrs[end-1] != '\n')
-		beg = end + 1;
-	    else
-		beg = end;
-
-
-	    // find start of value
-
-	    String hdr_value = "";
-	    if (hdrs[end-1] != '\n')
-	    {
-		// skip spaces
-
-		while (beg < len  &&  Character.isWhitespace(hdrs[beg]))
-		    beg++;
-
-
-		// find end of value
-
-		end = beg;
-		while (end < len  &&  hdrs[end] != '\n')
-		    end++;
-		if (hdrs[end-1] == '\r')
-		    hdr_value = new String(hdrs, beg, end-1-beg);
-		else
-		    hdr_value = new String(hdrs, beg, end-beg);
-		end++;
-
-		while (end < len  && (hdrs[end] == ' '  ||  hdrs[end] == '\t'))
-		{
-		    beg = end + 1;
-		    while (beg < len  &&  (hdrs[beg] == ' '  ||  hdrs[beg] == '\t'))
-			beg++;
-		    end = beg;
-		    while (end < len  &&  hdrs[end] != '\n')
-			end++;
-		    if (hdrs[end-1] == '\r')
-			hdr_value += ' ' + new String(hdrs, beg, end-1-beg);
-		    else
-			hdr_value += ' ' + new String(hdrs, beg, end-beg);
-		    end++;
-		}
-
-		beg = end;
-	    }
-
-	    // special case Content-length
-	    if (hdr_name.equalsIgnoreCase("Content-length"))
+	    String hdr_value = cont_len.toString();
+	    try
 	    {
-		try
-		{
-		    ContentLength = Integer.parseInt(hdr_value.trim());
-		    if (ContentLength < 0)
-			throw new NumberFormatException();
-		}
-		catch (NumberFormatException nfe)
-		{
-		    throw new ProtocolException("Invalid Content-length header"+
-						" received: '"+hdr_value + "'");
-		}
-		list.put(hdr_name, hdr_value);
+		ContentLength = Integer.parseInt(hdr_value.trim());
+		if (ContentLength < 0)
+		    throw new NumberFormatException();
 	    }
-
-
-	    // add header to hashtable
-
-	    else
+	    catch (NumberFormatException nfe)
 	    {
-		String old_value  = (String) list.get(hdr_name);
-		if (old_value == null)
-		    list.put(hdr_name, hdr_value);
-		else
-		    list.put(hdr_name, old_value + ", " + hdr_value);
+		throw new ProtocolException("Invalid Content-length header"+
+					    " received: '"+hdr_value + "'");
 	    }
 	}
     }
@@ -1331,27 +1245,29 @@ public final class Response implements RoResponse, GlobalConstants, Cloneable
 	    }
 	    else
 	    {
-		int inc  = 1000,
-		    rcvd = 0;
+		// collect the data in segments and copy it only once at the end
+		SegmentedBuffer buf = new SegmentedBuffer(Data);
 
-		do
+		try
+		    { while (buf.readFrom(inp) != -1) ; }
+		finally
 		{
-		    off  += rcvd;
-		    Data  = HttpClientUtil.resizeArray(Data, off+inc);
-		} while ((rcvd = inp.read(Data, off, inc)) != -1);
-
-		Data = HttpClientUtil.resizeArray(Data, off);
+		    Data = buf.toByteArray();
+		    off  = Data.length;
+		}
 	    }
 	}
 	catch (InterruptedIOException iioe)
 	{
-	    Data = HttpClientUtil.resizeArray(Data, off);
+	    if (off != Data.length)
+		Data = HttpClientUtil.resizeArray(Data, off);
 	    interrupted = true;
 	    throw iioe;
 	}
 	catch (IOException ioe)
 	{
-	    Data = HttpClientUtil.resizeArray(Data, off);
+	    if (off != Data.length)
+		Data = HttpClientUtil.resizeArray(Data, off);
 	    throw ioe;
 	}
 	finally
@@ -1397,8 +1313,8 @@ public final class Response implements RoResponse, GlobalConstants, Cloneable
 	catch (CloneNotSupportedException cnse)
 	    { throw new InternalError(cnse.toString()); /* shouldn't happen */ }
 
-	cl.Headers  = (CIHashtable) Headers.clone();
-	cl.Trailers = (CIHashtable) Trailers.clone();
+	cl.Headers  = (HeaderMap) Headers.clone();
+	cl.Trailers = (HeaderMap) Trailers.clone();
 
 	return cl;
     }
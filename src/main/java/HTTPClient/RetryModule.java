@@ -48,7 +48,7 @@ import java.io.IOException;
  * @since	V0.3
  */
 
-class RetryModule implements HTTPClientModule, GlobalConstants
+class RetryModule implements StatelessModule, GlobalConstants
 {
     // Constructors
 
@@ -61,6 +61,15 @@ class RetryModule implements HTTPClientModule, GlobalConstants
 
     // Methods
 
+    /**
+     * Invoked by the HTTPClient. Only the phase 1 and phase 2 handlers do any work.
+     */
+    public int getPhases()
+    {
+	return PHASE_RESPONSE_1 | PHASE_RESPONSE_2;
+    }
+
+
     /**
      * Invoked by the HTTPClient.
      */
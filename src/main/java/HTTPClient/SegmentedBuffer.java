@@ -0,0 +1,136 @@
+package HTTPClient;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Collects data of unknown length, such as a chunked response body, in a
+ * list of segments. Each new segment is twice as big as the previous one (up
+ * to a limit), so the data is never copied while it's being collected, and
+ * the number of segments grows only logarithmically for bodies up to a few
+ * megabytes. {@link #toByteArray()} then copies everything into one array.
+ *
+ * <P>This class is not thread-safe.
+ *
+ * @see Response
+ * @see HTTPResponse
+ */
+final class SegmentedBuffer
+	{
+		/** the size of the first segment allocated */
+		private static final int MIN_SEGMENT = 4096;
+
+		/** the size no segment allocated grows beyond */
+		private static final int MAX_SEGMENT = 1 << 20;
+
+		/** the segments; all but the last one are full */
+		private byte[][] segments = new byte[8][];
+
+		/** the number of segments */
+		private int nsegs = 0;
+
+		/** the number of bytes in the last segment */
+		private int pos = 0;
+
+		/** the number of bytes in all but the last segment */
+		private int done = 0;
+
+		/**
+		 * Creates a new buffer.
+		 *
+		 * @param data
+		 *          the data the buffer starts out with; the array is used as the
+		 *          first segment and must not be modified afterwards. May be
+		 *          null.
+		 */
+		SegmentedBuffer(byte[] data)
+			{
+				if (data != null && data.length > 0)
+					{
+						segments[nsegs++] = data;
+						pos = data.length;
+					}
+			}
+
+		/**
+		 * Reads the next bytes from the given stream into the buffer. A new
+		 * segment is added when the last one is full.
+		 *
+		 * @param inp
+		 *          the stream to read from
+		 * @return the number of bytes read, or -1 on EOF
+		 * @exception IOException
+		 *              if the read fails
+		 */
+		int readFrom(InputStream inp) throws IOException
+			{
+				if (nsegs == 0 || pos == segments[nsegs - 1].length)
+					{
+						addSegment();
+					}
+
+				byte[] seg = segments[nsegs - 1];
+				int rcvd = inp.read(seg, pos, seg.length - pos);
+				if (rcvd > 0)
+					{
+						pos += rcvd;
+					}
+				return rcvd;
+			}
+
+		private void addSegment()
+			{
+				int size = MIN_SEGMENT;
+				if (nsegs > 0)
+					{
+						int last = segments[nsegs - 1].length;
+						done += last;
+						size = Math.max(Math.min(last * 2, MAX_SEGMENT), MIN_SEGMENT);
+					}
+
+				if (nsegs == segments.length)
+					{
+						byte[][] tmp = new byte[nsegs * 2][];
+						System.arraycopy(segments, 0, tmp, 0, nsegs);
+						segments = tmp;
+					}
+
+				segments[nsegs++] = new byte[size];
+				pos = 0;
+			}
+
+		/**
+		 * @return the number of bytes in the buffer
+		 */
+		int size()
+			{
+				return done + pos;
+			}
+
+		/**
+		 * Returns the data as a single array. If the data fills exactly one
+		 * segment that segment is returned, otherwise the data is copied.
+		 *
+		 * @return the data
+		 */
+		byte[] toByteArray()
+			{
+				if (nsegs == 1 && pos == segments[0].length)
+					{
+						return segments[0];
+					}
+
+				byte[] data = new byte[size()];
+				int off = 0;
+				for (int idx = 0; idx < nsegs - 1; idx++)
+					{
+						System.arraycopy(segments[idx], 0, data, off, segments[idx].length);
+						off += segments[idx].length;
+					}
+				if (nsegs > 0)
+					{
+						System.arraycopy(segments[nsegs - 1], 0, data, off, pos);
+					}
+				return data;
+			}
+	}
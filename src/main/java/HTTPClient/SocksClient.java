@@ -135,8 +135,29 @@ public class SocksClient implements GlobalConstants
      * @author      modified by Stefan K&ouml;psell, 04/11/24
      */
     public Socket getSocket(String host, int port)  throws IOException
+    {
+	return getSocket(host, port, 0);
+    }
+
+
+    /**
+     * Initiates a connection to the socks server, does the startup
+     * protocol and returns a socket ready for talking. The whole procedure
+     * (connecting to the socks server and the protocol exchange) is
+     * limited to the given timeout.
+     *
+     * @param host    the host you wish to connect to
+     * @param port    the port you wish to connect to
+     * @param timeout the maximum time in milliseconds, or 0 for no limit
+     * @return a Socket with a connection via socks to the desired host/port
+     * @exception java.io.InterruptedIOException if the timeout expired
+     * @exception IOException if any socket operation fails
+     */
+    public Socket getSocket(String host, int port, int timeout)
+	    throws IOException
     {
 	Socket sock = null;
+	long   end  = (timeout > 0) ? System.currentTimeMillis() + timeout : 0;
 
 	try
 	{
@@ -147,7 +168,7 @@ public class SocksClient implements GlobalConstants
 
 	    // create socket and streams
 
-	    sock = connect(socks_host, socks_port);
+	    sock = connect(socks_host, socks_port, end);
 	    InputStream  inp = sock.getInputStream();
 	    OutputStream out = sock.getOutputStream();
 
@@ -176,7 +197,7 @@ public class SocksClient implements GlobalConstants
 					 se.getMessage());
 
 			sock.close();
-			sock = connect(socks_host, socks_port);
+			sock = connect(socks_host, socks_port, end);
 			inp = sock.getInputStream();
 			out = sock.getOutputStream();
 
@@ -191,6 +212,8 @@ public class SocksClient implements GlobalConstants
 
 	    if (DebugSocks)  HttpClientUtil.logLine("Socks: connection established.");
 
+	    if (end != 0)
+		sock.setSoTimeout(0);
 	    return sock;
 	}
 	catch (IOException ioe)
@@ -210,17 +233,28 @@ public class SocksClient implements GlobalConstants
      * Connect to the host/port, trying all addresses assciated with that
      * host.
      *
+     * @param end  the time by which the connection must be established and
+     *             the protocol exchange completed, or 0 for no limit
      * @return the Socket
      * @exception IOException if the connection could not be established
      */
-    private static final Socket connect(String host, int port)
+    private static final Socket connect(String host, int port, long end)
 	    throws IOException
     {
 	InetAddress[] addr_list = InetAddress.getAllByName(host);
 	for (int idx=0; idx<addr_list.length; idx++)
 	{
 	    try
-		{ return new Socket(addr_list[idx], port); }
+	    {
+		if (end == 0)
+		    return new Socket(addr_list[idx], port);
+
+		int timeout = remaining(end);
+		Socket sock = new Socket();
+		sock.connect(new InetSocketAddress(addr_list[idx], port), timeout);
+		sock.setSoTimeout(remaining(end));	// for the protocol exchange
+		return sock;
+	    }
 	    catch (SocketException se)
 	    {
 		if (idx < addr_list.length-1)
@@ -234,6 +268,19 @@ public class SocksClient implements GlobalConstants
     }
 
 
+    /**
+     * @return the number of milliseconds left until <var>end</var>
+     * @exception InterruptedIOException if there are none left
+     */
+    private static final int remaining(long end)  throws InterruptedIOException
+    {
+	long left = end - System.currentTimeMillis();
+	if (left <= 0)
+	    throw new InterruptedIOException("Connection establishment timed out");
+	return (int) Math.min(left, Integer.MAX_VALUE);
+    }
+
+
     private boolean v4A  = false;	// SOCKS version 4A
     private byte[]  user = null;
 
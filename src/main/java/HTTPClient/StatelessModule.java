@@ -0,0 +1,49 @@
+package HTTPClient;
+
+/**
+ * A module which keeps no state between the invocations of its handlers.
+ * Normally a new instance of each module is created for every request (see
+ * {@link HTTPClientModule}). For a module implementing this interface a
+ * single instance is created instead and shared by all requests of all
+ * connections, so its handlers must be thread-safe; any state must be kept
+ * in the request (or in static, properly synchronized, structures).
+ *
+ * <P>In addition a stateless module declares which of its handlers do any
+ * work. Handlers not declared are never invoked; the request handler is
+ * then treated as if it returned <var>REQ_CONTINUE</var> and the phase 2
+ * handler as if it returned <var>RSP_CONTINUE</var>.
+ *
+ * <P>The list of modules to use for a request, together with the shared
+ * instances and the handlers to invoke in each phase, is worked out once and
+ * reused until the module list of the connection is changed.
+ *
+ * @see HTTPConnection#addModule(java.lang.Class, int)
+ */
+public interface StatelessModule extends HTTPClientModule
+	{
+		/** the request handler does some work */
+		int PHASE_REQUEST = 1;
+
+		/** the phase 1 response handler does some work */
+		int PHASE_RESPONSE_1 = 2;
+
+		/** the phase 2 response handler does some work */
+		int PHASE_RESPONSE_2 = 4;
+
+		/** the phase 3 response handler does some work */
+		int PHASE_RESPONSE_3 = 8;
+
+		/** the trailer handler does some work */
+		int PHASE_TRAILER = 16;
+
+		/** all handlers do some work */
+		int PHASE_ALL = PHASE_REQUEST | PHASE_RESPONSE_1 | PHASE_RESPONSE_2 | PHASE_RESPONSE_3 | PHASE_TRAILER;
+
+		/**
+		 * Returns the handlers of this module which need to be invoked. This is
+		 * asked once, when the module chain is built.
+		 *
+		 * @return a combination of the <var>PHASE_XXX</var> flags
+		 */
+		int getPhases();
+	}
@@ -32,6 +32,7 @@ package HTTPClient;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.util.Vector;
 import java.util.Enumeration;
 
@@ -65,10 +66,10 @@ class StreamDemultiplexor implements GlobalConstants
     private ResponseHandler        MarkedForClose;
 
     /** timer used to close the socket if unused for a given time */
-    private SocketTimeout.TimeoutEntry Timer = null;
+    private IdleTimer              Timer = null;
 
-    /** timer thread which implements the timers */
-    private static SocketTimeout   TimerThread = null;
+    /** the number of milliseconds after which an unused socket is closed */
+    private static final long      IdleTimeout = 60000L;
 
     /** a Vector to hold the list of response handlers were serving */
     private LinkedList             RespHandlerList;
@@ -103,12 +104,23 @@ class StreamDemultiplexor implements GlobalConstants
      */
     private Socket m_hiddenSocket;
 
+    /** the pool the socket was leased from, or null if not pooled */
+    private ConnectionPool         Pool = null;
 
-    static
-    {
-	TimerThread = new SocketTimeout(60);
-	TimerThread.start();
-    }
+    /** the route under which the socket was leased */
+    private ConnectionPool.Route   PoolRoute;
+
+    /**
+     * set while a request is being sent on the socket but hasn't been
+     * registered yet; the socket must not be given back to the pool then.
+     */
+    private boolean                reserved = false;
+
+    /**
+     * the number of further requests the server allows on this socket
+     * (Keep-Alive max), or -1 if unlimited; guarded by the connection.
+     */
+    private int                    req_left = -1;
 
 
     // Constructors
@@ -170,7 +182,7 @@ class StreamDemultiplexor implements GlobalConstants
 	chunk_len       = -1;
 
 	// start a timer to close the socket after 60 seconds
-	Timer = TimerThread.setTimeout(this);
+	Timer = new IdleTimer(this);
     }
 
 
@@ -188,6 +200,120 @@ class StreamDemultiplexor implements GlobalConstants
 
 	    RespHandlerList.addToEnd(
 				new ResponseHandler(resp_handler, req, this));
+	    reserved = false;
+	}
+    }
+
+
+    /**
+     * Tells this demux that its socket was leased from the given pool. The
+     * socket will be handed back to the pool once all responses have been
+     * read, or its slot freed when the socket is closed.
+     *
+     * @param pool  the pool
+     * @param route the route the socket was leased for
+     */
+    void setConnectionPool(ConnectionPool pool, ConnectionPool.Route route)
+    {
+	synchronized(RespHandlerList)
+	{
+	    Pool      = pool;
+	    PoolRoute = route;
+	}
+    }
+
+
+    /**
+     * Frees this demux's slot in the connection pool (if any). If
+     * <var>sock</var> is not null it is kept by the pool for reuse.
+     */
+    private void releasePoolSlot(Socket sock)
+    {
+	ConnectionPool pool;
+	synchronized(RespHandlerList)
+	{
+	    pool = Pool;
+	    Pool = null;
+	}
+
+	if (pool != null)
+	    pool.release(PoolRoute, sock, sock != null);
+    }
+
+
+    /**
+     * Returns the stream to which requests are to be written.
+     *
+     * @exception IOException if the socket has been closed
+     */
+    synchronized OutputStream getOutputStream()  throws IOException
+    {
+	if (Sock == null)
+	    throw new IOException("Socket closed");
+
+	return Sock.getOutputStream();
+    }
+
+
+    /**
+     * Returns the socket's channel, through which request data may be
+     * written directly (e.g. with <code>FileChannel.transferTo()</code>).
+     * Only sockets which were connected as channels have one.
+     *
+     * @return the channel, or null if the socket has none or is closed
+     */
+    synchronized SocketChannel getChannel()
+    {
+	return (Sock != null) ? Sock.getChannel() : null;
+    }
+
+
+    /**
+     * If the socket was leased from a connection pool and all responses
+     * have been completely read, then give the socket back to the pool
+     * instead of keeping it. Afterwards this demux is dead, just as if it
+     * had been closed.
+     *
+     * @param resph the response handler which was just finished
+     */
+    private void releaseToPool(ResponseHandler resph)
+    {
+	if (Pool == null  ||  Sock == null  ||  reserved  ||
+	    MarkedForClose != null  ||  m_httpConnectCompatibilityMode  ||
+	    resph.resp.cd_type == CD_CLOSE  ||  resph.resp.cd_type == CD_NONE)
+	    return;
+
+	synchronized(RespHandlerList)
+	{
+	    if (RespHandlerList.getFirst() != null)
+		return;
+
+	    try
+	    {
+		if (Stream.available() > 0)	// unexpected data - don't reuse
+		    return;
+	    }
+	    catch (IOException ioe)
+		{ return; }
+
+	    if (DebugDemux)
+		HttpClientUtil.logLine("Demux: Returning socket to pool (" +
+				       this.hashCode() + ")");
+
+	    Socket sock = Sock;
+	    Sock = null;
+
+	    if (Stream instanceof ExtBufferedInputStream)	// the socket stays open
+		((ExtBufferedInputStream) Stream).releaseBuffer();
+
+	    if (Timer != null)
+	    {
+		Timer.kill();
+		Timer = null;
+	    }
+
+	    Connection.DemuxList.remove(this);
+	    releasePoolSlot(sock);
 	}
     }
 
@@ -281,6 +407,38 @@ class StreamDemultiplexor implements GlobalConstants
       return m_httpConnectCompatibilityMode;
     }
 
+    /**
+     * Sets the number of further requests the server allows on this socket.
+     *
+     * @param num the number of requests, or -1 if unlimited
+     */
+    void setRequestsLeft(int num)
+    {
+	req_left = num;
+    }
+
+
+    /**
+     * @return the number of further requests the server allows on this
+     *         socket, or -1 if unlimited
+     */
+    int getRequestsLeft()
+    {
+	return req_left;
+    }
+
+
+    /**
+     * Counts a request sent on this socket against the server's limit.
+     *
+     * @return true if the socket must be closed after this request
+     */
+    boolean countRequest()
+    {
+	return (req_left != -1  &&  --req_left <= 0);
+    }
+
+
     /**
      * Restarts the timer thread that will close an unused socket after
      * 60 seconds.
@@ -623,6 +781,7 @@ class StreamDemultiplexor implements GlobalConstants
 	}
 
 	Sock = null;
+	releasePoolSlot(null);
 
 	if (Timer != null)
 	{
@@ -707,7 +866,10 @@ class StreamDemultiplexor implements GlobalConstants
 	if (resph == MarkedForClose)
 	    close(new IOException("Premature end of Keep-Alive"), false);
 	else
+	{
 	    closeSocketIfAllStreamsClosed();
+	    releaseToPool(resph);
+	}
     }
 
 
@@ -773,10 +935,26 @@ class StreamDemultiplexor implements GlobalConstants
 	    return null;
 
 	if (Timer != null)  Timer.hyber();
+	if (Sock != null)  reserved = true;
 	return Sock;
     }
 
 
+    /**
+     * Is this demux able to take a new request which will be answered
+     * right away, i.e. is the socket open and no response outstanding?
+     */
+    synchronized boolean isIdle()
+    {
+	synchronized(RespHandlerList)
+	{
+	    return (Sock != null  &&  MarkedForClose == null  &&  !reserved  &&
+		    !m_httpConnectCompatibilityMode  &&
+		    RespHandlerList.getFirst() == null);
+	}
+    }
+
+
     /**
      * Mark this demux to not accept any more request and to close the
      * stream after this <var>resp</var>onse or all requests have been
@@ -923,6 +1101,8 @@ class StreamDemultiplexor implements GlobalConstants
 		catch (NullPointerException npe)
 		    { }
 
+		releasePoolSlot(null);
+
 		Connection.DemuxList.remove(this);
 	    }
 	}
@@ -1020,189 +1200,68 @@ class StreamDemultiplexor implements GlobalConstants
 
 
     /**
-     * This thread is used to implement socket timeouts. It keeps a list of
-     * timer entries and expries them after a given time.
+     * This timer closes the socket once it has been unused for IdleTimeout
+     * milliseconds. Once running, the timer may be suspended (hyber()),
+     * restarted (reset()), or aborted (kill()). These only set flags, so
+     * they are cheap and don't contend on any lock; when the timeout
+     * scheduled with the HTTPClientTimer fires, the flags are checked and
+     * the timeout is either rescheduled or markForClose() is invoked on the
+     * demultiplexor.
      */
-    private static class SocketTimeout extends Thread implements GlobalConstants
+    private static final class IdleTimer implements Runnable
     {
-	/**
-	 * This class represents a timer entry. It is used to close an
-	 * inactive socket after n seconds. Once running, the timer may be
-	 * suspended (hyber()), restarted (reset()), or aborted (kill()).
-	 * When the timer expires it invokes markForClose() on the
-	 * associated stream demultipexer.
-	 */
-	private class TimeoutEntry
-	{
-	    boolean restart = false,
-		    hyber   = false,
-		    alive   = true;
-	    StreamDemultiplexor demux;
-	    TimeoutEntry next = null,
-			 prev = null;
-
-	    TimeoutEntry(StreamDemultiplexor demux)
-	    {
-		this.demux = demux;
-	    }
-
-	    void reset()
-	    {
-		hyber = false;
-		if (restart)  return;
-		restart = true;
-
-		synchronized(time_list)
-		{
-		    // remove from current position
-		    next.prev = prev;
-		    prev.next = next;
-
-		    // and add to end of timeout list
-		    next = time_list[current];
-		    prev = time_list[current].prev;
-		    prev.next = this;
-		    next.prev = this;
-		}
-	    }
+	private final StreamDemultiplexor demux;
+	private volatile long    last_used;
+	private volatile boolean hyber = false,
+				 alive = true;
+	private HTTPClientTimer.Timeout timeout;
 
-	    void hyber()
-	    {
-		if (alive)  hyber = true;
-	    }
-
-	    void kill()
-	    {
-		alive   = false;
-		restart = false;
-		hyber   = false;
-
-		synchronized(time_list)
-		{
-		    next.prev = prev;
-		    prev.next = next;
-		}
-	    }
+	IdleTimer(StreamDemultiplexor demux)
+	{
+	    this.demux = demux;
+	    last_used  = System.currentTimeMillis();
+	    timeout    = HTTPConnection.getTimer().schedule(this, IdleTimeout);
 	}
 
-	private TimeoutEntry[]  time_list;
-	private int		current;
-
-
-	SocketTimeout(int secs)
+	void reset()
 	{
-	    super("SocketTimeout");
-
-	    try { setDaemon(true); }
-	    catch (SecurityException se) { }	// Oh well...
-	    setPriority(MAX_PRIORITY);
-
-	    time_list = new TimeoutEntry[secs];
-	    for (int idx=0; idx<secs; idx++)
-	    {
-		time_list[idx] = new TimeoutEntry(null);
-		time_list[idx].next = time_list[idx].prev = time_list[idx];
-	    }
-	    current = 0;
+	    last_used = System.currentTimeMillis();
+	    hyber     = false;
 	}
 
-
-	public TimeoutEntry setTimeout(StreamDemultiplexor demux)
+	void hyber()
 	{
-	    TimeoutEntry entry = new TimeoutEntry(demux);
-	    synchronized(time_list)
-	    {
-		entry.next = time_list[current];
-		entry.prev = time_list[current].prev;
-		entry.prev.next = entry;
-		entry.next.prev = entry;
-	    }
-
-	    return entry;
+	    if (alive)  hyber = true;
 	}
 
+	void kill()
+	{
+	    alive = false;
+	    hyber = false;
+	    timeout.cancel();
+	}
 
-	/**
-	 * This timer is implemented by sleeping for 1 second and then
-	 * checking the timer list.
-	 */
 	public void run()
 	{
-            TimeoutEntry entry, currentEntry;
-	    while (true)
+	    if (!alive)  return;
+
+	    long idle = System.currentTimeMillis() - last_used;
+	    if (hyber  ||  idle < IdleTimeout)
 	    {
-		try { sleep(1000L); } catch (InterruptedException ie) { }
+		timeout = HTTPConnection.getTimer().schedule(this,
+					hyber ? IdleTimeout : IdleTimeout - idle);
+		return;
+	    }
 
-		synchronized(time_list)
+	    synchronized(demux)
+	    {
+		if (alive  &&  !hyber)
 		{
-		    // reset all restart flags
-		    for (entry = time_list[current].next;
-			 entry != time_list[current];
-			 entry = entry.next)
-		    {
-			entry.restart = false;
-		    }
-
-		    current++;
-		    if (current >= time_list.length)
-			current = 0;
-
-        /**
-         * The following is a very sophisticated bugfix for deadlocks, as the time_list must always
-         * be synchronized AFTER a StreamDemultiplexor. Here ist the original code, that was transformed to
-         * fulfill this condition:
-
-            // remove all expired timers
-            for (TimeoutEntry entry = time_list[current].next;
-                 entry != time_list[current];
-                 entry = entry.next)
-            {
-               try
-                        {
-                            synchronized(entry.demux)
-                            {
-                                if (entry.alive  &&  !entry.hyber)
-                                {
-                                    entry.demux.markForClose(null);
-                                    entry.kill();
-                                }
-                            }
-                        }
-                        catch (NullPointerException npe)
-                            { }
-                    }
-         */
-
-                   // remove all expired timers
-                   entry = time_list[current].next;
-                   currentEntry = time_list[current];
-                }
-
-		    for (;
-			 entry != currentEntry;
-			 entry = entry.next)
-		    {
-			try
-			{
-			    synchronized(entry.demux)
-			    {
-					//synchronized (time_list)
-					{
-						if (entry.alive && !entry.hyber)
-						{
-							entry.demux.markForClose(null);
-							entry.kill();
-						}
-					}
-				}
-			}
-			catch (NullPointerException npe)
-			    { }
-		    }
-
+		    demux.markForClose(null);
+		    kill();
+		}
 	    }
 	}
     }
-
 }
 
@@ -47,7 +47,7 @@ import java.util.zip.GZIPInputStream;
  * @author      modified by Stefan K&ouml;psell, 04/11/24
  */
 
-class TransferEncodingModule implements HTTPClientModule, GlobalConstants
+class TransferEncodingModule implements StatelessModule, GlobalConstants
 {
   /** @author modified by Stefan K&ouml;psell, 04/11/24 */
    // static
@@ -68,6 +68,15 @@ class TransferEncodingModule implements HTTPClientModule, GlobalConstants
 
     // Methods
 
+    /**
+     * Invoked by the HTTPClient. Only the request and the phase 3 handlers do any work.
+     */
+    public int getPhases()
+    {
+	return PHASE_REQUEST | PHASE_RESPONSE_3;
+    }
+
+
     /**
      * Invoked by the HTTPClient.
      */
@@ -0,0 +1,78 @@
+package HTTPClient;
+
+import java.util.Random;
+
+/**
+ * Checks <code>HttpClientUtil.hasToken()</code>, which scans the header
+ * without creating any objects, against the definition it must agree with:
+ * whether <code>parseHeader()</code> yields an element with the token's name.
+ * Random headers are built from the characters the parsers care about, and
+ * both the result and whether a ParseException is thrown are compared.
+ *
+ * <PRE>
+ * java HTTPClient.HasTokenCheck [cases [seed]]
+ * </PRE>
+ */
+public class HasTokenCheck
+	{
+		/** the pieces headers are made of */
+		private static final String[] PIECES = { "a", "b", "ab", "A", "-", ",", ";", "=", "\"", "\\", " ", "\t", "x=\"a,b\"" };
+
+		/** the tokens looked for */
+		private static final String[] TOKENS = { "a", "b", "ab", "x" };
+
+		public static void main(String[] args) throws Exception
+			{
+				int cases = (args.length > 0) ? Integer.parseInt(args[0]) : 500000;
+				long seed = (args.length > 1) ? Long.parseLong(args[1]) : System.currentTimeMillis();
+				Random rand = new Random(seed);
+
+				int failures = 0;
+				for (int idx = 0; idx < cases; idx++)
+					{
+						StringBuffer buf = new StringBuffer();
+						int len = rand.nextInt(12);
+						for (int pidx = 0; pidx < len; pidx++)
+							{
+								buf.append(PIECES[rand.nextInt(PIECES.length)]);
+							}
+						String header = buf.toString();
+						String token = TOKENS[rand.nextInt(TOKENS.length)];
+
+						String fast = outcome(header, token, true);
+						String slow = outcome(header, token, false);
+						if (!fast.equals(slow))
+							{
+								failures++;
+								System.out.println("hasToken(\"" + header + "\", \"" + token + "\") = " + fast + ", expected " + slow);
+							}
+					}
+
+				System.out.println(cases + " cases, seed " + seed + ", " + failures + " failures");
+				if (failures > 0)
+					{
+						System.exit(1);
+					}
+			}
+
+		private static String outcome(String header, String token, boolean fast)
+			{
+				try
+					{
+						boolean found;
+						if (fast)
+							{
+								found = HttpClientUtil.hasToken(header, token);
+							}
+						else
+							{
+								found = HttpClientUtil.parseHeader(header).contains(new HttpHeaderElement(token));
+							}
+						return String.valueOf(found);
+					}
+				catch (ParseException pe)
+					{
+						return "ParseException";
+					}
+			}
+	}
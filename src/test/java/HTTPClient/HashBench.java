@@ -0,0 +1,68 @@
+package HTTPClient;
+
+import java.security.MessageDigest;
+
+/**
+ * Compares the throughput of the JCA's MD5 with the package's own, on short
+ * strings (as in Digest authentication) and on a large body (as in
+ * Content-MD5 verification). These are the two implementations
+ * {@link Hash} chooses between.
+ *
+ * <PRE>
+ * java HTTPClient.HashBench [iterations]
+ * </PRE>
+ */
+public class HashBench
+	{
+		public static void main(String[] args) throws Exception
+			{
+				int iter = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+				byte[] body = new byte[1024 * 1024];
+				for (int idx = 0; idx < body.length; idx++)
+					{
+						body[idx] = (byte) idx;
+					}
+				byte[] a2 = "GET:/some/where/over/the/rainbow.html".getBytes();
+
+				for (int round = 0; round < 3; round++)
+					{
+						for (int impl = 0; impl < 2; impl++)
+							{
+								boolean jca = (impl == 0);
+								String name = jca ? "jca    " : "builtin";
+
+								long start = System.nanoTime();
+								String res = null;
+								for (int idx = 0; idx < iter; idx++)
+									{
+										res = Hash.toHex(md5(jca, a2));
+									}
+								long strings = System.nanoTime() - start;
+
+								start = System.nanoTime();
+								for (int idx = 0; idx < 64; idx++)
+									{
+										md5(jca, body);
+									}
+								long large = System.nanoTime() - start;
+
+								System.out.println(name + ": " + (strings / iter) + " ns per short string (" + res + "), "
+										+ (64L * body.length * 1000 / large) + " MB/s on 1MB bodies");
+							}
+					}
+			}
+
+		private static byte[] md5(boolean jca, byte[] data) throws Exception
+			{
+				if (jca)
+					{
+						MessageDigest md = MessageDigest.getInstance("MD5");
+						md.update(data);
+						return md.digest();
+					}
+
+				MD5 md5 = new MD5();
+				md5.Update(data);
+				return md5.Final();
+			}
+	}